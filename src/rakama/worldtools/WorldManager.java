@@ -23,6 +23,7 @@ import java.io.IOException;
 import rakama.worldtools.canvas.WorldCanvas;
 import rakama.worldtools.io.ChunkAccess;
 import rakama.worldtools.io.ChunkManager;
+import rakama.worldtools.io.JobManifest;
 import rakama.worldtools.light.WorldRelighter;
 
 public class WorldManager
@@ -123,6 +124,34 @@ public class WorldManager
         return canvas;
     }
     
+    /**
+     * Flushes expired chunks on a background thread, which also relights 
+     * their neighbors. Off by default.
+     * 
+     * @see ChunkManager#setAsyncFlushEnabled(boolean)
+     */
+    public void setAsyncFlushEnabled(boolean enabled)
+    {
+        manager.setAsyncFlushEnabled(enabled);
+    }
+    
+    public boolean isAsyncFlushEnabled()
+    {
+        return manager.isAsyncFlushEnabled();
+    }
+    
+    /** Sets the deflate level for chunks written from now on. **/
+    public void setCompressionLevel(int level)
+    {
+        access.setCompressionLevel(level);
+    }
+    
+    /** Limits open region files and memory mapped region bytes. **/
+    public void setRegionCacheBudget(int maxHandles, long maxMappedBytes)
+    {
+        access.setRegionCacheBudget(maxHandles, maxMappedBytes);
+    }
+    
     public void relightAll()
     {
         if(manager.isReadOnly())
@@ -132,6 +161,35 @@ public class WorldManager
         WorldRelighter.relightWorld(access, true);
     }
     
+    /**
+     * Relights only the chunks written since the last successful call 
+     * started, and their neighbors. The first call relights the whole world.
+     */
+    public void relightModified() throws IOException
+    {
+        if(manager.isReadOnly())
+            throw new IllegalStateException("Cannot modify chunk data (read only)");
+        
+        manager.closeAll();
+        JobManifest manifest = JobManifest.load(getManifestFile("relight"));
+        WorldRelighter.relightWorld(access, true, manifest);
+    }
+    
+    /** Location of the manifest for a whole-world job. **/
+    public File getManifestFile(String job)
+    {
+        return new File(rootDirectory, "worldtools/" + job + ".manifest");
+    }
+    
+    public void compactAll() throws IOException
+    {
+        if(manager.isReadOnly())
+            throw new IllegalStateException("Cannot modify chunk data (read only)");
+        
+        manager.closeAll();
+        access.compactRegions();
+    }
+    
     public void closeAll()
     {
         manager.closeAll();
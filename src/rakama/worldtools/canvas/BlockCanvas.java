@@ -29,6 +29,13 @@ public interface BlockCanvas
     public void setBlock(int x, int y, int z, int id, int data);    
     public void setBlockID(int x, int y, int z, int id);
     public void setMetaData(int x, int y, int z, int data);    
+    
+    /** Sets every block from y0 to y1 inclusive, in either order. **/
+    public void setColumn(int x, int z, int y0, int y1, Block block);
+    
+    /** Fills the box between two opposite corners, given in either order. **/
+    public void fill(int x0, int y0, int z0, int x1, int y1, int z1, Block block);
+    
     public Block getBlock(int x, int y, int z);    
     public int getBlockID(int x, int y, int z);
     public int getMetaData(int x, int y, int z);
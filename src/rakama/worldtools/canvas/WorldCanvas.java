@@ -20,6 +20,7 @@ import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
+import rakama.worldtools.coord.BoundingBox;
 import rakama.worldtools.data.Biome;
 import rakama.worldtools.data.Block;
 import rakama.worldtools.data.Chunk;
@@ -28,6 +29,10 @@ import rakama.worldtools.data.Schematic;
 import rakama.worldtools.data.TileEntity;
 import rakama.worldtools.io.ChunkManager;
 
+/**
+ * Block level view of a world. A canvas can be shared by several threads,
+ * as long as they modify different chunks.
+ */
 public class WorldCanvas implements BlockCanvas
 {    
     protected final ChunkManager manager;
@@ -61,6 +66,37 @@ public class WorldCanvas implements BlockCanvas
         chunk.setMetaData(x & 0xF, y, z & 0xF, data);
     }
     
+    public void setColumn(int x, int z, int y0, int y1, Block block)
+    {
+        Chunk chunk = manager.getChunk(x >> 4, z >> 4, true);        
+        chunk.setColumn(x & 0xF, z & 0xF, y0, y1, block);
+    }
+
+    /** Fills a box with a block, with one bulk fill per chunk. **/
+    public void fill(int x0, int y0, int z0, int x1, int y1, int z1, Block block)
+    {
+        if(x1 < x0 || y1 < y0 || z1 < z0)
+        {
+            fill(Math.min(x0, x1), Math.min(y0, y1), Math.min(z0, z1),
+                    Math.max(x0, x1), Math.max(y0, y1), Math.max(z0, z1), block);
+            return;
+        }
+
+        for(int cx = x0 >> 4; cx <= x1 >> 4; cx++)
+        {
+            for(int cz = z0 >> 4; cz <= z1 >> 4; cz++)
+            {
+                int bx0 = Math.max(x0, cx << 4) & 0xF;
+                int bz0 = Math.max(z0, cz << 4) & 0xF;
+                int bx1 = Math.min(x1, (cx << 4) + 15) & 0xF;
+                int bz1 = Math.min(z1, (cz << 4) + 15) & 0xF;
+
+                Chunk chunk = manager.getChunk(cx, cz, true);
+                chunk.fill(new BoundingBox(bx0, y0, bz0, bx1, y1, bz1), block.id, block.data);
+            }
+        }
+    }
+    
     public Block getBlock(int x, int y, int z)
     {
         Chunk chunk = manager.getChunk(x >> 4, z >> 4);
@@ -71,6 +71,22 @@ public class Coordinate2D implements Comparable<Coordinate2D>
         return c.x == x && c.z == z;
     }
 
+    /** Packs a coordinate pair into a long, for primitive keyed maps. **/
+    public static long pack(int x, int z)
+    {
+        return ((long)x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    public static int unpackX(long key)
+    {
+        return (int)(key >> 32);
+    }
+
+    public static int unpackZ(long key)
+    {
+        return (int)key;
+    }
+
     public int hashCode()
     {
         return x ^ z;
@@ -16,10 +16,17 @@
 
 package rakama.worldtools.data;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+import rakama.worldtools.coord.BoundingBox;
 import rakama.worldtools.data.entity.EntityFactory;
 
 import com.mojang.nbt.ByteArrayTag;
@@ -46,7 +53,7 @@ public class Chunk
     protected final static int default_blocklight = Section.default_blocklight;
 
     protected int x, z;
-    protected Section[] sections;
+    protected final AtomicReferenceArray<Section> sections;
     protected int[] heightmap;
     protected byte[] biomes;
 
@@ -54,6 +61,11 @@ public class Chunk
     protected List<TileEntity> tileEntities;
     
     protected CompoundTag tag;
+    protected byte[] unknownRootTags, unknownLevelTags;
+    protected Set<Projection> projection = Projection.ALL;
+
+    // guards trimming and heightmap updates, section access doesn't lock
+    private final Object layoutLock = new Object();
 
     public Chunk(int x, int z)
     {
@@ -65,7 +77,7 @@ public class Chunk
         if(heightmap.length != area || biomes.length != area)
             throw new IllegalArgumentException("Expected array of size " + area);
         
-        this.sections = new Section[num_sections];
+        this.sections = new AtomicReferenceArray<Section>(num_sections);
         this.heightmap = heightmap;
         this.biomes = biomes;
         this.x = x;
@@ -106,71 +118,220 @@ public class Chunk
     
     public void setHeight(int x, int z, int val)
     {
+        checkLoaded(Projection.HEIGHTMAP);
         checkBounds(x, z);
         heightmap[x + (z << 4)] = val;
     }
 
     public void setBiome(int x, int z, int val)
     {
+        checkLoaded(Projection.BIOMES);
         checkBounds(x, z);
         biomes[x + (z << 4)] = (byte)val;
     }
 
     public void setBiome(int x, int z, Biome biome)
     {
+        checkLoaded(Projection.BIOMES);
         checkBounds(x, z);
         biomes[x + (z << 4)] = (byte)biome.getID();
     }
     
     public int getHeight(int x, int z)
     {
+        checkLoaded(Projection.HEIGHTMAP);
         checkBounds(x, z);
         return heightmap[x + (z << 4)];
     }
 
     public int getBiome(int x, int z)
     {
+        checkLoaded(Projection.BIOMES);
         checkBounds(x, z);
         return biomes[x + (z << 4)];
     }
 
     public void setBlock(int x, int y, int z, Block block)
     {
+        checkLoaded(Projection.BLOCKS);
         checkBounds(x, y, z);
-        Section sec = getContainingSection(y, true);
-        sec.setBlock(x, y & 0xF, z, block);
+        Section sec;
+
+        do
+        {
+            sec = getContainingSection(y, true);
+            sec.setBlock(x, y & 0xF, z, block);
+        }
+        while(!isAttached(sec));
     }
     
     public void setBlockID(int x, int y, int z, int val)
     {
+        checkLoaded(Projection.BLOCKS);
         checkBounds(x, y, z);
-        Section sec = getContainingSection(y, true);
-        sec.setBlockID(x, y & 0xF, z, val);
+        Section sec;
+
+        do
+        {
+            sec = getContainingSection(y, true);
+            sec.setBlockID(x, y & 0xF, z, val);
+        }
+        while(!isAttached(sec));
     }
 
     public void setMetaData(int x, int y, int z, int val)
     {
+        checkLoaded(Projection.BLOCKS);
         checkBounds(x, y, z);
-        Section sec = getContainingSection(y, true);
-        sec.setMetaData(x, y & 0xF, z, val);
+        Section sec;
+
+        do
+        {
+            sec = getContainingSection(y, true);
+            sec.setMetaData(x, y & 0xF, z, val);
+        }
+        while(!isAttached(sec));
     }
 
     public void setBlockLight(int x, int y, int z, int val)
     {
+        checkLoaded(Projection.LIGHT);
         checkBounds(x, y, z);
-        Section sec = getContainingSection(y, true);
-        sec.setBlockLight(x, y & 0xF, z, val);
+        Section sec;
+
+        do
+        {
+            sec = getContainingSection(y, true);
+            sec.setBlockLight(x, y & 0xF, z, val);
+        }
+        while(!isAttached(sec));
     }
 
     public void setSkyLight(int x, int y, int z, int val)
     {
+        checkLoaded(Projection.LIGHT);
         checkBounds(x, y, z);
-        Section sec = getContainingSection(y, true);
-        sec.setSkyLight(x, y & 0xF, z, val);
+        Section sec;
+
+        do
+        {
+            sec = getContainingSection(y, true);
+            sec.setSkyLight(x, y & 0xF, z, val);
+        }
+        while(!isAttached(sec));
+    }
+
+    /** Fills a box of chunk coordinates with a block, one section at a time. **/
+    public void fill(BoundingBox box, int id, int data)
+    {
+        checkLoaded(Projection.BLOCKS);
+        checkBounds(box.min.x, box.min.y, box.min.z);
+        checkBounds(box.max.x, box.max.y, box.max.z);
+        fillBlocks(box.min.x, box.min.y, box.min.z, box.max.x, box.max.y, box.max.z, Section.toState(id, data));
+    }
+
+    public void setColumn(int x, int z, int y0, int y1, Block block)
+    {
+        checkLoaded(Projection.BLOCKS);
+        checkBounds(x, y0, z);
+        checkBounds(x, y1, z);
+        fillBlocks(x, Math.min(y0, y1), z, x, Math.max(y0, y1), z, Section.toState(block.id, block.data));
+    }
+
+    private void fillBlocks(int x0, int y0, int z0, int x1, int y1, int z1, int state)
+    {
+        // missing sections are already filled with air
+        boolean create = state != Section.toState(default_blockid, default_metadata);
+
+        for(int sec = y0 >> 4; sec <= y1 >> 4; sec++)
+        {
+            int sy0 = Math.max(y0, sec << 4) & 0xF;
+            int sy1 = Math.min(y1, (sec << 4) + 15) & 0xF;
+            Section section;
+
+            do
+            {
+                section = getContainingSection(sec << 4, create);
+
+                if(section == null)
+                    break;
+
+                section.fillBlocks(x0, sy0, z0, x1, sy1, z1, state);
+            }
+            while(!isAttached(section));
+        }
+    }
+
+    /** 
+     * Replaces a block id with another throughout the chunk, keeping the 
+     * metadata. Returns false if the chunk doesn't contain the id.
+     */
+    public boolean replace(int fromId, int toId)
+    {
+        checkLoaded(Projection.BLOCKS);
+        
+        if(fromId == toId)
+            return false;
+        
+        // missing sections are filled with air, which is replaced as well
+        boolean create = fromId == default_blockid;
+        boolean found = false;
+
+        for(int sec = 0; sec < num_sections; sec++)
+        {
+            Section section;
+
+            do
+            {
+                section = getContainingSection(sec << 4, create);
+
+                if(section == null)
+                    break;
+
+                found |= section.replace(fromId, toId);
+            }
+            while(!isAttached(section));
+        }
+
+        return found;
+    }
+
+    /** Copies the blocks in a box of chunk coordinates from another chunk. **/
+    public void copyFrom(Chunk source, BoundingBox box)
+    {
+        checkLoaded(Projection.BLOCKS);
+        source.checkLoaded(Projection.BLOCKS);
+        checkBounds(box.min.x, box.min.y, box.min.z);
+        checkBounds(box.max.x, box.max.y, box.max.z);
+
+        int air = Section.toState(default_blockid, default_metadata);
+
+        for(int sec = box.min.y >> 4; sec <= box.max.y >> 4; sec++)
+        {
+            int sy0 = Math.max(box.min.y, sec << 4) & 0xF;
+            int sy1 = Math.min(box.max.y, (sec << 4) + 15) & 0xF;
+            Section from = source.getContainingSection(sec << 4, false);
+            Section to;
+
+            do
+            {
+                to = getContainingSection(sec << 4, from != null);
+
+                if(to == null)
+                    break;
+
+                if(from == null)
+                    to.fillBlocks(box.min.x, sy0, box.min.z, box.max.x, sy1, box.max.z, air);
+                else
+                    to.copyBlocks(from, box.min.x, sy0, box.min.z, box.max.x, sy1, box.max.z);
+            }
+            while(!isAttached(to));
+        }
     }
 
     public Block getBlock(int x, int y, int z)
     {
+        checkLoaded(Projection.BLOCKS);
         checkBounds(x, y, z);
         Section sec = getContainingSection(y, false);
 
@@ -182,6 +343,7 @@ public class Chunk
     
     public int getBlockID(int x, int y, int z)
     {
+        checkLoaded(Projection.BLOCKS);
         checkBounds(x, y, z);
         Section sec = getContainingSection(y, false);
 
@@ -193,6 +355,7 @@ public class Chunk
 
     public int getMetaData(int x, int y, int z)
     {
+        checkLoaded(Projection.BLOCKS);
         checkBounds(x, y, z);
         Section sec = getContainingSection(y, false);
 
@@ -204,6 +367,7 @@ public class Chunk
 
     public int getBlockLight(int x, int y, int z)
     {
+        checkLoaded(Projection.LIGHT);
         checkBounds(x, y, z);
         Section sec = getContainingSection(y, false);
 
@@ -215,6 +379,7 @@ public class Chunk
 
     public int getSkyLight(int x, int y, int z)
     {
+        checkLoaded(Projection.LIGHT);
         checkBounds(x, y, z);
         Section sec = getContainingSection(y, false);
 
@@ -234,9 +399,25 @@ public class Chunk
         return biomes;
     }
     
+    /** 
+     * Returns a section, or null if it's missing. Unlike writes through the
+     * chunk, writes made directly to the section aren't repeated if 
+     * trimSections() removes it concurrently.
+     */
     public Section getSection(int y)
     {
-        return sections[y];
+        return sections.get(y);
+    }
+
+    /** Returns a snapshot of the sections, missing sections are null. **/
+    public Section[] getSections()
+    {
+        Section[] copy = new Section[num_sections];
+
+        for(int i = 0; i < num_sections; i++)
+            copy[i] = sections.get(i);
+
+        return copy;
     }
     
     protected Section getContainingSection(int y, boolean create)
@@ -246,54 +427,86 @@ public class Chunk
         if(index < 0 || index >= num_sections)
             return null;
 
-        synchronized(this)
-        {
-            Section sec = sections[index];
-            
-            if(create && sec == null)
-            {
-                createSection(index);
-                sec = sections[index];
-            }
-            
-            return sec;
-        }
+        Section sec = sections.get(index);
+
+        if(create && sec == null)
+            sec = createSection(index);
+
+        return sec;
     }
     
     public List<Entity> getEntities()
     {
+        checkLoaded(Projection.ENTITIES);
         return Collections.unmodifiableList(entities);
     }
 
     public List<TileEntity> getTileEntities()
     {
+        checkLoaded(Projection.ENTITIES);
         return Collections.unmodifiableList(tileEntities);
     }
 
     public void addEntity(Entity e)
     {
+        checkLoaded(Projection.ENTITIES);
         entities.add(e);
     }
     
     public void addTileEntity(TileEntity e)
     {
+        checkLoaded(Projection.ENTITIES);
         tileEntities.add(e);
     }
     
     public boolean removeEntity(Entity e)
     {
+        checkLoaded(Projection.ENTITIES);
         return entities.remove(e);
     }
     
     public boolean removeTileEntity(TileEntity e)
     {
+        checkLoaded(Projection.ENTITIES);
         return tileEntities.remove(e);
     }
     
-    private synchronized void createSection(int index)
+    /** 
+     * Creates a missing section. Creation is rare, so it shares the lock with
+     * trimSections(), which relies on no sections being created meanwhile.
+     */
+    private Section createSection(int index)
     {
-        if(sections[index] == null)        
-            sections[index] = new Section(index);
+        synchronized(layoutLock)
+        {
+            Section sec = sections.get(index);
+
+            if(sec == null)
+            {
+                sec = newSection(index);
+                sections.set(index, sec);
+            }
+
+            return sec;
+        }
+    }
+
+    /**
+     * Called after writing to a section, returns false if trimSections() 
+     * removed the section meanwhile, in which case the write must be 
+     * repeated. The compare-and-set publishes the write to the trim, so a 
+     * section that was written to is never dropped as empty.
+     */
+    private boolean isAttached(Section sec)
+    {
+        int index = sec.getY();
+        return sections.compareAndSet(index, sec, sec);
+    }
+
+    /** Creates an empty section, for subclasses that track section changes. **/
+    protected Section newSection(int y)
+    {
+        return new Section(y);
     }
 
     public synchronized CompoundTag getTag()
@@ -301,15 +514,23 @@ public class Chunk
         if(tag == null)
             tag = createChunkTag();
 
-        // recreate list to guarantee that new sections are included
-        ListTag<CompoundTag> list = new ListTag<CompoundTag>();
+        CompoundTag level = (CompoundTag)tag.get("Level");
 
-        for(Section sec : sections)
-            if(sec != null)
-                list.add(sec.createTag());
+        // unloaded parts are already in the tag as raw copies
+        if(isLoaded(Projection.BLOCKS) || isLoaded(Projection.LIGHT))
+        {
+            // recreate list to guarantee that new sections are included
+            ListTag<CompoundTag> list = new ListTag<CompoundTag>();
+
+            for(Section sec : getSections())
+                if(sec != null)
+                    list.add(sec.createTag());
+            
+            level.put("Sections", list);
+        }
         
-        CompoundTag level = (CompoundTag)tag.get("Level");
-        level.put("Sections", list);
+        if(!isLoaded(Projection.ENTITIES))
+            return tag;
         
         ListTag<CompoundTag> tagEntities = new ListTag<CompoundTag>("Entities");
         for(Entity e : entities)
@@ -325,21 +546,69 @@ public class Chunk
         return tag;
     }
     
+    /**
+     * Writes the chunk as an uncompressed NBT stream without building a tag
+     * tree. The output is equivalent to writing getTag() with NbtIo.
+     */
+    public synchronized void write(DataOutput out) throws IOException
+    {
+        ChunkEncoder.encode(this, out);
+    }
+    
     private CompoundTag createChunkTag()
     {
         CompoundTag level = new CompoundTag("Level");
-        level.put("Biomes", new ByteArrayTag("Biomes", biomes));
-        level.put("HeightMap", new IntArrayTag("HeightMap", heightmap));
-        level.put("LastUpdate", new LongTag("LastUpdate", 0));
+        
+        // restore tags that weren't decoded when the chunk was loaded
+        if(unknownLevelTags != null)
+        {
+            ChunkDecoder.putRawTags(unknownLevelTags, level);
+        }
+        else
+        {
+            level.put("LastUpdate", new LongTag("LastUpdate", 0));
+            level.put("TerrainPopulated", new ByteTag("TerrainPopulated", (byte)1));
+        }
+        
+        if(biomes != null)
+            level.put("Biomes", new ByteArrayTag("Biomes", biomes));
+        if(heightmap != null)
+            level.put("HeightMap", new IntArrayTag("HeightMap", heightmap));
+        
         level.put("xPos", new IntTag("xPos", x));
         level.put("zPos", new IntTag("zPos", z));
-        level.put("TerrainPopulated", new ByteTag("TerrainPopulated", (byte)1));
 
         CompoundTag root = new CompoundTag("");
+        ChunkDecoder.putRawTags(unknownRootTags, root);
         root.put("Level", level);
+        
+        // the tag now holds the unknown tags
+        unknownRootTags = null;
+        unknownLevelTags = null;
+        
         return root;
     }
 
+    /**
+     * Returns true if the given part was decoded when the chunk was loaded.
+     * Parts that weren't loaded can't be accessed, but are saved unchanged.
+     */
+    public boolean isLoaded(Projection part)
+    {
+        return projection.contains(part);
+    }
+
+    public Set<Projection> getProjection()
+    {
+        return projection;
+    }
+    
+    protected void checkLoaded(Projection part)
+    {
+        if(!projection.contains(part))
+            throw new IllegalStateException(part + " not loaded");
+    }
+    
     protected void checkBounds(int x, int z)
     {
         if(!inBounds(x, 0, z))
@@ -359,84 +628,133 @@ public class Chunk
 
     public boolean isEmpty()
     {
-        for(Section section : sections)
-            if(section != null)
+        for(int i = 0; i < num_sections; i++)
+            if(sections.get(i) != null)
                 return false;
 
         return true;
     }
 
-    public synchronized void recomputeHeightmap()
+    public void recomputeHeightmap()
     {
-        for(int z = 0; z < length; z++)
-            for(int x = 0; x < width; x++)
-                recomputeHeight(x, z);
+        checkLoaded(Projection.BLOCKS);
+        checkLoaded(Projection.HEIGHTMAP);
+        
+        synchronized(layoutLock)
+        {
+            for(int z = 0; z < length; z++)
+                for(int x = 0; x < width; x++)
+                    recomputeHeight(x, z);
+        }
+    }
+
+    protected void recomputeHeight(int x, int z)
+    {
+        synchronized(layoutLock)
+        {
+            heightmap[x + (z << 4)] = computeHeight(x, z);
+        }
     }
 
-    protected synchronized void recomputeHeight(int x, int z)
+    private int computeHeight(int x, int z)
     {
         int hindex = x + (z << 4);
-        heightmap[hindex] = 0;
 
         for(int sec = num_sections - 1; sec >= 0; sec--)
         {
-            Section section = sections[sec];
+            Section section = sections.get(sec);
 
             if(section == null)
                 continue;
 
+            // a uniform section either shades the whole column or none of it
+            Block uniform = section.getUniformBlock();
+            
+            if(uniform != null)
+            {
+                if(!uniform.providesShade())
+                    continue;
+                
+                return (sec + 1) << 4;
+            }
+            
             Block block = Block.AIR;
             int y = Section.height;
             while(!block.providesShade() && --y >= 0)
-                block = Block.getBlock(0xFF & section.blockid[hindex + (y << 8)]);
+                block = Block.getBlock(section.getBlockID(hindex + (y << 8)));
 
             if(block.providesShade())
-            {
-                heightmap[hindex] = y + (sec << 4) + 1;
-                break;
-            }
+                return y + (sec << 4) + 1;
         }
+
+        return 0;
     }
     
-    public synchronized void trimSections()
-    {
-        boolean fill = false;
-
-        for(int i = num_sections - 1; i >= 0; i--)
+    /**
+     * Removes empty sections above the terrain and fills gaps below it. 
+     * Writers through the chunk may run concurrently: a section is removed 
+     * before it's checked for blocks, and put back if a write reached it, 
+     * while writes that find their section removed are repeated.
+     */
+    public void trimSections()
+    {
+        checkLoaded(Projection.BLOCKS);
+        
+        synchronized(layoutLock)
         {
-            if(sections[i] == null)
+            boolean fill = false;
+
+            for(int i = num_sections - 1; i >= 0; i--)
             {
-                if(fill)
-                    sections[i] = new Section(i);
+                Section sec = sections.get(i);
+
+                if(sec == null)
+                {
+                    if(fill)
+                        createSection(i);
+                }
+                else if(fill || !sec.isEmptyAir())
+                {
+                    fill = true;
+                }
                 else
-                    continue;
+                {
+                    // reading the slot makes every write confirmed by isAttached() visible
+                    sections.getAndSet(i, null);
+
+                    if(!sec.isEmptyAir())
+                    {
+                        sections.set(i, sec);
+                        fill = true;
+                    }
+                }
             }
-            else if(!fill && sections[i].isEmptyAir())
-                sections[i] = null;
-            else
-                fill = true;
         }
     }
 
-    public synchronized void clearBlockLights()
+    public void clearBlockLights()
     {
-        for(Section section : sections)
+        checkLoaded(Projection.LIGHT);
+        
+        for(Section section : getSections())
         {
             if(section == null)
                 continue;
 
-            section.blocklight.fill(0);
+            section.fillBlockLights(0);
         }
     }
 
-    public synchronized void clearSkyLights()
+    public void clearSkyLights()
     {
-        for(Section section : sections)
+        checkLoaded(Projection.LIGHT);
+        
+        for(Section section : getSections())
         {
             if(section == null)
                 continue;
 
-            section.skylight.fill(0);
+            section.fillSkyLights(0);
         }
     }
 
@@ -444,6 +762,58 @@ public class Chunk
     {
         return loadChunk(tag, EntityFactory.getDefaultFactory());
     }
+
+    public static Chunk loadChunk(DataInput in) throws IOException
+    {
+        return loadChunk(in, EntityFactory.getDefaultFactory());
+    }
+    
+    /**
+     * Decodes a chunk directly from an uncompressed NBT stream, without 
+     * building a CompoundTag tree first. 
+     * 
+     * @param in NBT stream positioned at the root tag
+     * @param factory used to create entities and tile entities
+     * @return the decoded chunk
+     * @throws IOException if the stream is not a valid chunk
+     */
+    public static Chunk loadChunk(DataInput in, EntityFactory factory) throws IOException
+    {
+        return loadChunk(in, factory, Projection.ALL);
+    }
+
+    /**
+     * Decodes only the given parts of a chunk. The remaining parts are kept 
+     * as raw NBT and written back unchanged when the chunk is saved.
+     * 
+     * @param in NBT stream positioned at the root tag
+     * @param factory used to create entities and tile entities
+     * @param projection the parts to decode
+     * @return the decoded chunk
+     * @throws IOException if the stream is not a valid chunk
+     */
+    public static Chunk loadChunk(DataInput in, EntityFactory factory, Set<Projection> projection) throws IOException
+    {
+        Chunk chunk = new Chunk(0, 0);
+        chunk.loadStream(in, factory, projection);
+        return chunk;
+    }
+    
+    protected void loadStream(DataInput in, EntityFactory factory, Set<Projection> projection) throws IOException
+    {
+        ChunkDecoder.decode(in, this, factory, projection);
+        
+        if(projection.containsAll(Projection.ALL))
+        {
+            this.projection = Projection.ALL;
+        }
+        else
+        {
+            EnumSet<Projection> parts = EnumSet.noneOf(Projection.class);
+            parts.addAll(projection);
+            this.projection = Collections.unmodifiableSet(parts);
+        }
+    }
     
     @SuppressWarnings("unchecked")
     public static Chunk loadChunk(CompoundTag tag, EntityFactory factory)
@@ -486,7 +856,7 @@ public class Chunk
             CompoundTag section = sections.get(i);
             Section sec = Section.loadSection(section);
             int y = sec.getY();
-            this.sections[y] = sec;
+            this.sections.set(y, sec);
         }
     }
 }
\ No newline at end of file
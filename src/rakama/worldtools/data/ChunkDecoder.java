@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Set;
+
+import rakama.worldtools.data.entity.EntityFactory;
+import rakama.worldtools.util.LightArray;
+import rakama.worldtools.util.NibbleArray;
+
+import com.mojang.nbt.CompoundTag;
+import com.mojang.nbt.ListTag;
+import com.mojang.nbt.Tag;
+
+/**
+ * Decodes chunk NBT straight into Chunk and Section fields, without building
+ * an intermediate CompoundTag tree. Tags that aren't recognized are kept as
+ * raw named-tag bytes so they can be written back unchanged.
+ */
+final class ChunkDecoder
+{
+    private final static byte tag_long_array = 12;
+
+    private final Chunk chunk;
+    private final EntityFactory factory;
+    private final boolean blocks, light, heightmap, biomes, entities;
+
+    private ChunkDecoder(Chunk chunk, EntityFactory factory, Set<Projection> projection)
+    {
+        this.chunk = chunk;
+        this.factory = factory;
+        this.blocks = projection.contains(Projection.BLOCKS);
+        this.light = projection.contains(Projection.LIGHT);
+        this.heightmap = projection.contains(Projection.HEIGHTMAP);
+        this.biomes = projection.contains(Projection.BIOMES);
+        this.entities = projection.contains(Projection.ENTITIES);
+    }
+
+    public static void decode(DataInput in, Chunk chunk, EntityFactory factory, 
+            Set<Projection> projection) throws IOException
+    {
+        ChunkDecoder decoder = new ChunkDecoder(chunk, factory, projection);
+        decoder.decodeRoot(in);
+    }
+
+    private void decodeRoot(DataInput in) throws IOException
+    {
+        if(in.readByte() != Tag.TAG_Compound)
+            throw new IOException("Root tag must be a named compound tag");
+
+        in.readUTF();
+
+        RawTagBuffer unknown = new RawTagBuffer();
+        boolean hasLevel = false;
+        byte type;
+
+        while((type = in.readByte()) != Tag.TAG_End)
+        {
+            String name = in.readUTF();
+
+            if(type == Tag.TAG_Compound && name.equals("Level"))
+            {
+                decodeLevel(in);
+                hasLevel = true;
+            }
+            else
+                unknown.copyNamedTag(type, name, in);
+        }
+
+        if(!hasLevel)
+            throw new IOException("Missing Level tag");
+
+        chunk.unknownRootTags = unknown.toByteArray();
+    }
+
+    private void decodeLevel(DataInput in) throws IOException
+    {
+        RawTagBuffer unknown = new RawTagBuffer();
+        byte type;
+
+        while((type = in.readByte()) != Tag.TAG_End)
+        {
+            String name = in.readUTF();
+
+            if(type == Tag.TAG_Int && name.equals("xPos"))
+                chunk.x = in.readInt();
+            else if(type == Tag.TAG_Int && name.equals("zPos"))
+                chunk.z = in.readInt();
+            else if(heightmap && type == Tag.TAG_Int_Array && name.equals("HeightMap"))
+                readIntArray(in, chunk.heightmap);
+            else if(biomes && type == Tag.TAG_Byte_Array && name.equals("Biomes"))
+                readByteArray(in, chunk.biomes);
+            else if((blocks || light) && type == Tag.TAG_List && name.equals("Sections"))
+                decodeSections(in);
+            else if(entities && type == Tag.TAG_List && name.equals("Entities"))
+                decodeEntities(in);
+            else if(entities && type == Tag.TAG_List && name.equals("TileEntities"))
+                decodeTileEntities(in);
+            else
+                unknown.copyNamedTag(type, name, in);
+        }
+
+        // parts outside the projection were copied along with the unknown tags
+        if(!heightmap)
+            chunk.heightmap = null;
+        if(!biomes)
+            chunk.biomes = null;
+        
+        byte[] raw = unknown.toByteArray();
+        chunk.unknownLevelTags = (raw == null) ? new byte[0] : raw;
+    }
+
+    private void decodeSections(DataInput in) throws IOException
+    {
+        byte type = in.readByte();
+        int size = in.readInt();
+
+        if(size > 0 && type != Tag.TAG_Compound)
+            throw new IOException("Expected list of compound tags");
+
+        for(int i = 0; i < size; i++)
+        {
+            Section sec = decodeSection(in);
+            chunk.sections.set(sec.getY(), sec);
+        }
+    }
+
+    private Section decodeSection(DataInput in) throws IOException
+    {
+        RawTagBuffer unknown = new RawTagBuffer();
+        byte[] blockid, metadata, blocklight, skylight;
+        blockid = metadata = blocklight = skylight = null;
+        int y = -1;
+        byte type;
+
+        while((type = in.readByte()) != Tag.TAG_End)
+        {
+            String name = in.readUTF();
+
+            if(type == Tag.TAG_Byte && name.equals("Y"))
+                y = in.readByte();
+            else if(blocks && type == Tag.TAG_Byte_Array && name.equals("Blocks"))
+                blockid = readByteArray(in, Section.volume);
+            else if(blocks && type == Tag.TAG_Byte_Array && name.equals("Data"))
+                metadata = readByteArray(in, Section.volume / 2);
+            else if(light && type == Tag.TAG_Byte_Array && name.equals("BlockLight"))
+                blocklight = readByteArray(in, Section.volume / 2);
+            else if(light && type == Tag.TAG_Byte_Array && name.equals("SkyLight"))
+                skylight = readByteArray(in, Section.volume / 2);
+            else
+                unknown.copyNamedTag(type, name, in);
+        }
+
+        if(y < 0 || y >= Chunk.num_sections)
+            throw new IOException("Section index out of bounds " + y);
+
+        if(blocks && (blockid == null || metadata == null))
+            throw new IOException("Incomplete section " + y);
+        
+        if(light && (blocklight == null || skylight == null))
+            throw new IOException("Incomplete section " + y);
+
+        Section sec = new Section(y, Section.toPaletteArray(blockid, toNibbleArray(metadata)),
+                toLightArray(blocklight), toLightArray(skylight));
+        sec.unknownTags = unknown.toByteArray();
+        return sec;
+    }
+
+    private void decodeEntities(DataInput in) throws IOException
+    {
+        ListTag<CompoundTag> list = readCompoundList(in, "Entities");
+
+        for(int i = 0; i < list.size(); i++)
+            chunk.entities.add(factory.createEntity(list.get(i)));
+    }
+
+    private void decodeTileEntities(DataInput in) throws IOException
+    {
+        ListTag<CompoundTag> list = readCompoundList(in, "TileEntities");
+
+        for(int i = 0; i < list.size(); i++)
+            chunk.tileEntities.add(factory.createTileEntity(list.get(i)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ListTag<CompoundTag> readCompoundList(DataInput in, String name) throws IOException
+    {
+        // entities are tag based, so only this list is built as a tree
+        RawTagBuffer raw = new RawTagBuffer();
+        raw.copyNamedTag(Tag.TAG_List, name, in);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(raw.toByteArray()));
+        return (ListTag<CompoundTag>)Tag.readNamedTag(dis);
+    }
+
+    private static NibbleArray toNibbleArray(byte[] data)
+    {
+        if(data == null)
+            return null;
+        
+        return new NibbleArray(data);
+    }
+
+    private static LightArray toLightArray(byte[] data)
+    {
+        if(data == null)
+            return null;
+        
+        return new LightArray(data);
+    }
+
+    private static void readIntArray(DataInput in, int[] array) throws IOException
+    {
+        int length = in.readInt();
+
+        if(length != array.length)
+            throw new IOException("Expected array of size " + array.length);
+
+        for(int i = 0; i < length; i++)
+            array[i] = in.readInt();
+    }
+
+    private static void readByteArray(DataInput in, byte[] array) throws IOException
+    {
+        int length = in.readInt();
+
+        if(length != array.length)
+            throw new IOException("Expected array of size " + array.length);
+
+        in.readFully(array);
+    }
+
+    private static byte[] readByteArray(DataInput in, int expectedLength) throws IOException
+    {
+        byte[] array = new byte[expectedLength];
+        readByteArray(in, array);
+        return array;
+    }
+
+    /**
+     * Adds every named tag in a raw tag sequence to a compound tag.
+     */
+    public static void putRawTags(byte[] raw, CompoundTag target)
+    {
+        if(raw == null)
+            return;
+
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(raw));
+
+        try
+        {
+            while(dis.available() > 0)
+            {
+                Tag tag = Tag.readNamedTag(dis);
+                target.put(tag.getName(), tag);
+            }
+        }
+        catch(IOException e)
+        {
+            // raw tags were validated when they were copied
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void copyPayload(byte type, String name, DataInput in, DataOutput out) throws IOException
+    {
+        switch(type)
+        {
+            case Tag.TAG_Byte:
+                out.writeByte(in.readByte());
+                break;
+            case Tag.TAG_Short:
+                out.writeShort(in.readShort());
+                break;
+            case Tag.TAG_Int:
+            case Tag.TAG_Float:
+                out.writeInt(in.readInt());
+                break;
+            case Tag.TAG_Long:
+            case Tag.TAG_Double:
+                out.writeLong(in.readLong());
+                break;
+            case Tag.TAG_Byte_Array:
+                copyArray(name, in, out, 1);
+                break;
+            case Tag.TAG_String:
+                out.writeUTF(in.readUTF());
+                break;
+            case Tag.TAG_List:
+                byte elementType = in.readByte();
+                int size = in.readInt();
+                out.writeByte(elementType);
+                out.writeInt(size);
+                for(int i = 0; i < size; i++)
+                    copyPayload(elementType, name, in, out);
+                break;
+            case Tag.TAG_Compound:
+                byte childType;
+                while((childType = in.readByte()) != Tag.TAG_End)
+                {
+                    String childName = in.readUTF();
+                    out.writeByte(childType);
+                    out.writeUTF(childName);
+                    copyPayload(childType, childName, in, out);
+                }
+                out.writeByte(Tag.TAG_End);
+                break;
+            case Tag.TAG_Int_Array:
+                copyArray(name, in, out, 4);
+                break;
+            case tag_long_array:
+                copyArray(name, in, out, 8);
+                break;
+            default:
+                throw new IOException("Unrecognized tag type " + type);
+        }
+    }
+
+    private static void copyArray(String name, DataInput in, DataOutput out, int elementSize) throws IOException
+    {
+        int length = in.readInt();
+
+        if(length < 0 || length > Integer.MAX_VALUE / elementSize)
+            throw new IOException("Invalid array length " + length + " in tag \"" + name + "\"");
+
+        byte[] data = new byte[length * elementSize];
+        in.readFully(data);
+        out.writeInt(length);
+        out.write(data);
+    }
+
+    /** Accumulates raw named tags, allocating nothing until the first one. **/
+    static final class RawTagBuffer
+    {
+        private ByteArrayOutputStream bytes;
+        private DataOutputStream out;
+
+        public void copyNamedTag(byte type, String name, DataInput in) throws IOException
+        {
+            if(out == null)
+            {
+                bytes = new ByteArrayOutputStream();
+                out = new DataOutputStream(bytes);
+            }
+
+            out.writeByte(type);
+            out.writeUTF(name);
+            copyPayload(type, name, in, out);
+        }
+
+        public byte[] toByteArray()
+        {
+            if(bytes == null)
+                return null;
+
+            return bytes.toByteArray();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.mojang.nbt.CompoundTag;
+import com.mojang.nbt.ListTag;
+import com.mojang.nbt.Tag;
+
+/**
+ * Writes Chunk and Section fields straight to an NBT stream, without building 
+ * an intermediate CompoundTag tree. Raw tags kept by the decoder are copied 
+ * through unchanged.
+ */
+final class ChunkEncoder
+{
+    private final Chunk chunk;
+    private DataOutput out;
+    private final boolean sections, entities;
+    private byte[] blockBuffer, metaBuffer, lightBuffer;
+    private ByteArrayOutputStream sectionBuffer;
+
+    private ChunkEncoder(Chunk chunk, DataOutput out)
+    {
+        this.chunk = chunk;
+        this.out = out;
+        this.sections = chunk.isLoaded(Projection.BLOCKS) || chunk.isLoaded(Projection.LIGHT);
+        this.entities = chunk.isLoaded(Projection.ENTITIES);
+    }
+
+    public static void encode(Chunk chunk, DataOutput out) throws IOException
+    {
+        ChunkEncoder encoder = new ChunkEncoder(chunk, out);
+        encoder.encodeRoot();
+    }
+
+    private void encodeRoot() throws IOException
+    {
+        out.writeByte(Tag.TAG_Compound);
+        out.writeUTF("");
+
+        // unknown tags live in the tag tree once getTag() has been called
+        if(chunk.tag != null)
+            writeTags(chunk.tag, Collections.singleton("Level"));
+        else if(chunk.unknownRootTags != null)
+            out.write(chunk.unknownRootTags);
+
+        out.writeByte(Tag.TAG_Compound);
+        out.writeUTF("Level");
+        encodeLevel();
+        out.writeByte(Tag.TAG_End);
+
+        out.writeByte(Tag.TAG_End);
+    }
+
+    private void encodeLevel() throws IOException
+    {
+        writeInt("xPos", chunk.x);
+        writeInt("zPos", chunk.z);
+
+        if(chunk.heightmap != null)
+            writeIntArray("HeightMap", chunk.heightmap);
+
+        if(chunk.biomes != null)
+            writeByteArray("Biomes", chunk.biomes);
+
+        if(chunk.tag != null)
+        {
+            writeTags(chunk.tag.getCompound("Level"), getLevelTagNames());
+        }
+        else if(chunk.unknownLevelTags != null)
+        {
+            out.write(chunk.unknownLevelTags);
+        }
+        else
+        {
+            out.writeByte(Tag.TAG_Long);
+            out.writeUTF("LastUpdate");
+            out.writeLong(0);
+            out.writeByte(Tag.TAG_Byte);
+            out.writeUTF("TerrainPopulated");
+            out.writeByte(1);
+        }
+
+        if(sections)
+            encodeSections();
+
+        if(entities)
+        {
+            encodeEntities();
+            encodeTileEntities();
+        }
+    }
+
+    private void encodeSections() throws IOException
+    {
+        // sections may be created concurrently, the count must match the list
+        Section[] snapshot = chunk.getSections();
+        int count = 0;
+
+        for(Section sec : snapshot)
+            if(sec != null)
+                count++;
+
+        // empty lists are typed as bytes, same as ListTag
+        out.writeByte(Tag.TAG_List);
+        out.writeUTF("Sections");
+        out.writeByte(count > 0 ? Tag.TAG_Compound : Tag.TAG_Byte);
+        out.writeInt(count);
+
+        for(Section sec : snapshot)
+            if(sec != null)
+                encodeSection(sec);
+    }
+
+    private void encodeSection(Section sec) throws IOException
+    {
+        // unchanged sections are copied from the tags kept by the last encode
+        byte[] tags = sec.getEncodedTags();
+
+        if(tags != null)
+        {
+            out.write(tags);
+            return;
+        }
+
+        if(!sec.startEncoding())
+        {
+            encodeSectionTags(sec);
+            return;
+        }
+
+        if(sectionBuffer == null)
+            sectionBuffer = new ByteArrayOutputStream(Section.volume * 5 / 2);
+
+        DataOutput target = out;
+        sectionBuffer.reset();
+        out = new DataOutputStream(sectionBuffer);
+
+        try
+        {
+            encodeSectionTags(sec);
+        }
+        finally
+        {
+            out = target;
+        }
+
+        tags = sectionBuffer.toByteArray();
+        sec.keepEncodedTags(tags);
+        out.write(tags);
+    }
+
+    private void encodeSectionTags(Section sec) throws IOException
+    {
+        out.writeByte(Tag.TAG_Byte);
+        out.writeUTF("Y");
+        out.writeByte(sec.y);
+
+        if(sec.blocks != null)
+        {
+            // block states are unpacked into the Anvil arrays one section at a time
+            if(blockBuffer == null)
+            {
+                blockBuffer = new byte[Section.volume];
+                metaBuffer = new byte[Section.volume / 2];
+            }
+            
+            sec.copyBlockIDs(blockBuffer);
+            sec.copyMetaData(metaBuffer);
+            writeByteArray("Blocks", blockBuffer);
+            writeByteArray("Data", metaBuffer);
+        }
+
+        if(sec.skylight != null)
+        {
+            // uniform light levels are expanded into the Anvil arrays as well
+            if(lightBuffer == null)
+                lightBuffer = new byte[Section.volume / 2];
+
+            sec.skylight.copyTo(lightBuffer);
+            writeByteArray("SkyLight", lightBuffer);
+            sec.blocklight.copyTo(lightBuffer);
+            writeByteArray("BlockLight", lightBuffer);
+        }
+
+        if(sec.unknownTags != null)
+            out.write(sec.unknownTags);
+
+        out.writeByte(Tag.TAG_End);
+    }
+
+    private void encodeEntities() throws IOException
+    {
+        // entities are tag based, so only this list is built as a tree
+        ListTag<CompoundTag> list = new ListTag<CompoundTag>("Entities");
+
+        for(Entity e : chunk.entities)
+            list.add(e.getTag());
+
+        Tag.writeNamedTag(list, out);
+    }
+
+    private void encodeTileEntities() throws IOException
+    {
+        ListTag<CompoundTag> list = new ListTag<CompoundTag>("TileEntities");
+
+        for(TileEntity e : chunk.tileEntities)
+            list.add(e.getTag());
+
+        Tag.writeNamedTag(list, out);
+    }
+
+    /** Names of tags that are written from chunk fields. **/
+    private Set<String> getLevelTagNames()
+    {
+        Set<String> names = new TreeSet<String>();
+        names.add("xPos");
+        names.add("zPos");
+
+        if(chunk.heightmap != null)
+            names.add("HeightMap");
+        if(chunk.biomes != null)
+            names.add("Biomes");
+        if(sections)
+            names.add("Sections");
+
+        if(entities)
+        {
+            names.add("Entities");
+            names.add("TileEntities");
+        }
+
+        return names;
+    }
+
+    private void writeTags(CompoundTag tag, Set<String> exclude) throws IOException
+    {
+        for(Tag child : tag.getAllTags())
+            if(!exclude.contains(child.getName()))
+                Tag.writeNamedTag(child, out);
+    }
+
+    private void writeInt(String name, int value) throws IOException
+    {
+        out.writeByte(Tag.TAG_Int);
+        out.writeUTF(name);
+        out.writeInt(value);
+    }
+
+    private void writeByteArray(String name, byte[] array) throws IOException
+    {
+        out.writeByte(Tag.TAG_Byte_Array);
+        out.writeUTF(name);
+        out.writeInt(array.length);
+        out.write(array);
+    }
+
+    private void writeIntArray(String name, int[] array) throws IOException
+    {
+        out.writeByte(Tag.TAG_Int_Array);
+        out.writeUTF(name);
+        out.writeInt(array.length);
+
+        for(int i = 0; i < array.length; i++)
+            out.writeInt(array[i]);
+    }
+}
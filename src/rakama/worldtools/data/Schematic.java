@@ -19,6 +19,7 @@ package rakama.worldtools.data;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
@@ -137,6 +138,42 @@ public class Schematic implements BlockCanvas
         metadata[index] = (byte)data;
     }
     
+    public void setColumn(int x, int z, int y0, int y1, Block block)
+    {
+        checkBounds(x, y0, z);
+        checkBounds(x, y1, z);
+
+        for(int y = Math.min(y0, y1); y <= Math.max(y0, y1); y++)
+        {
+            int index = toIndex(x, y, z);
+            blockid[index] = (byte)block.id;
+            metadata[index] = (byte)block.data;
+        }
+    }
+
+    public void fill(int x0, int y0, int z0, int x1, int y1, int z1, Block block)
+    {
+        checkBounds(x0, y0, z0);
+        checkBounds(x1, y1, z1);
+
+        if(x1 < x0 || y1 < y0 || z1 < z0)
+        {
+            fill(Math.min(x0, x1), Math.min(y0, y1), Math.min(z0, z1),
+                    Math.max(x0, x1), Math.max(y0, y1), Math.max(z0, z1), block);
+            return;
+        }
+
+        for(int y = y0; y <= y1; y++)
+        {
+            for(int z = z0; z <= z1; z++)
+            {
+                int index = toIndex(x0, y, z);
+                Arrays.fill(blockid, index, index + x1 - x0 + 1, (byte)block.id);
+                Arrays.fill(metadata, index, index + x1 - x0 + 1, (byte)block.data);
+            }
+        }
+    }
+    
     public Block getBlock(int x, int y, int z)
     {
         checkBounds(x, y, z);
@@ -16,12 +16,26 @@
 
 package rakama.worldtools.data;
 
+import java.util.Arrays;
+
+import rakama.worldtools.coord.BoundingBox;
+import rakama.worldtools.util.LightArray;
 import rakama.worldtools.util.NibbleArray;
+import rakama.worldtools.util.PaletteArray;
 
 import com.mojang.nbt.ByteArrayTag;
 import com.mojang.nbt.ByteTag;
 import com.mojang.nbt.CompoundTag;
 
+/**
+ * Sixteen block high slice of a chunk. Block ids and metadata are stored
+ * together as 12 bit block states (id << 4 | data) in a PaletteArray, and
+ * converted to the Anvil arrays only when the section is written. Sections
+ * made of a single block state, such as solid stone or air, are uniform 
+ * and store no per-block data until a different block is set. Light 
+ * levels are stored the same way, so sections at a constant light level 
+ * don't allocate light arrays.
+ */
 public class Section
 {
     public final static int width = 16;
@@ -36,33 +50,105 @@ public class Section
     protected final static int default_blocklight = 15;
 
     protected final int y;
-    protected final byte[] blockid;
-    protected final NibbleArray metadata;
-    protected final NibbleArray blocklight;
-    protected final NibbleArray skylight;
+    protected final PaletteArray blocks;
+    protected final LightArray blocklight;
+    protected final LightArray skylight;
+    protected byte[] unknownTags;
 
     public Section(int y)
     {
         this.y = y;
 
-        blockid = new byte[volume];
-        metadata = new NibbleArray(volume);
-        blocklight = new NibbleArray(volume);
-        skylight = new NibbleArray(volume);
+        blocks = new PaletteArray(volume, toState(default_blockid, default_metadata));
+        blocklight = new LightArray(volume, 0);
+        skylight = new LightArray(volume, 0);
     }
 
+    /**
+     * Creates a section from existing arrays. Arrays may be null for parts 
+     * that are not loaded (see {@link Projection}).
+     */
     public Section(int y, byte[] blockid, NibbleArray metadata, NibbleArray blocklight, NibbleArray skylight)
     {
-        if(blockid.length != volume || metadata.size() != volume || blocklight.size() != volume || skylight.size() != volume)
+        this(y, toPaletteArray(blockid, metadata), toLightArray(blocklight), toLightArray(skylight));
+    }
+
+    /** Creates a section that shares all storage with another section. **/
+    protected Section(Section source)
+    {
+        this(source.y, source.blocks, source.blocklight, source.skylight);
+        this.unknownTags = source.unknownTags;
+    }
+
+    /**
+     * Creates a section that shares the block storage of another section, 
+     * with its own light arrays.
+     */
+    public Section(Section source, LightArray blocklight, LightArray skylight)
+    {
+        this(source.y, source.blocks, blocklight, skylight);
+    }
+
+    protected Section(int y, PaletteArray blocks, LightArray blocklight, LightArray skylight)
+    {
+        if((blocks != null && blocks.size() != volume) || (blocklight != null && blocklight.size() != volume) 
+        || (skylight != null && skylight.size() != volume))
             throw new IllegalArgumentException("Expected array of size " + volume);
 
         this.y = y;
-        this.blockid = blockid;
-        this.metadata = metadata;
+        this.blocks = blocks;
         this.blocklight = blocklight;
         this.skylight = skylight;
     }
 
+    protected static LightArray toLightArray(NibbleArray light)
+    {
+        if(light == null)
+            return null;
+        
+        return new LightArray(light.array);
+    }
+
+    protected static PaletteArray toPaletteArray(byte[] blockid, NibbleArray metadata)
+    {
+        if((blockid != null && blockid.length != volume) || (metadata != null && metadata.size() != volume))
+            throw new IllegalArgumentException("Expected array of size " + volume);
+
+        if((blockid == null) != (metadata == null))
+            throw new IllegalArgumentException("Block ids and metadata must be loaded together");
+
+        if(blockid == null)
+            return null;
+        
+        // one bit per 12-bit state, to size the palette before filling it
+        long[] seen = new long[(1 << 12) / 64];
+        int distinct = 0;
+
+        for(int i = 0; i < volume; i++)
+        {
+            int state = toState(0xFF & blockid[i], metadata.get(i));
+            long bit = 1L << (state & 63);
+
+            if((seen[state >> 6] & bit) == 0)
+            {
+                seen[state >> 6] |= bit;
+                distinct++;
+            }
+        }
+
+        PaletteArray blocks = new PaletteArray(volume, toState(0xFF & blockid[0], metadata.get(0)), distinct);
+
+        for(int i = 0; i < volume; i++)
+            blocks.set(i, toState(0xFF & blockid[i], metadata.get(i)));
+
+        return blocks;
+    }
+
+    protected static int toState(int id, int data)
+    {
+        return ((id & 0xFF) << 4) | (data & 0xF);
+    }
+
     public int getY()
     {
         return y;
@@ -70,38 +156,127 @@ public class Section
 
     public void setBlock(int index, Block block)
     {
-        blockid[index] = (byte)block.id;
-        metadata.set(index, block.data);
+        blocks.set(index, toState(block.id, block.data));
     }
     
     public void setBlock(int x, int y, int z, Block block)
     {
         checkBounds(x, y, z);
-        int index = toIndex(x, y, z);
-        blockid[index] = (byte)block.id;
-        metadata.set(index, block.data);
+        setBlock(toIndex(x, y, z), block);
     }
 
     public void setBlockID(int index, int val)
     {
-        blockid[index] = (byte)val;
+        blocks.set(index, toState(val, blocks.get(index)));
     }
     
     public void setBlockID(int x, int y, int z, int val)
     {
         checkBounds(x, y, z);
-        blockid[toIndex(x, y, z)] = (byte)val;
+        setBlockID(toIndex(x, y, z), val);
     }
 
     public void setMetaData(int index, int val)
     {
-        metadata.set(index, val);
+        blocks.set(index, (blocks.get(index) & ~0xF) | (val & 0xF));
     }
     
     public void setMetaData(int x, int y, int z, int val)
     {
         checkBounds(x, y, z);
-        metadata.set(toIndex(x, y, z), val);
+        setMetaData(toIndex(x, y, z), val);
+    }
+
+    /** Fills a box of section coordinates with a block. **/
+    public void fill(BoundingBox box, int id, int data)
+    {
+        checkBounds(box.min.x, box.min.y, box.min.z);
+        checkBounds(box.max.x, box.max.y, box.max.z);
+        fillBlocks(box.min.x, box.min.y, box.min.z, box.max.x, box.max.y, box.max.z, toState(id, data));
+    }
+
+    public void setColumn(int x, int z, int y0, int y1, Block block)
+    {
+        checkBounds(x, y0, z);
+        checkBounds(x, y1, z);
+        fillBlocks(x, Math.min(y0, y1), z, x, Math.max(y0, y1), z, toState(block.id, block.data));
+    }
+
+    /** Fills a box of section coordinates (inclusive) with a block state. **/
+    protected void fillBlocks(int x0, int y0, int z0, int x1, int y1, int z1, int state)
+    {
+        if(x0 == 0 && z0 == 0 && x1 == width - 1 && z1 == length - 1)
+        {
+            // whole layers are a single range, the whole section becomes uniform
+            blocks.fill(toIndex(0, y0, 0), (y1 - y0 + 1) * area, 1, state);
+            return;
+        }
+
+        if(x0 == x1 && z0 == z1)
+        {
+            blocks.fill(toIndex(x0, y0, z0), y1 - y0 + 1, area, state);
+            return;
+        }
+
+        for(int y = y0; y <= y1; y++)
+            for(int z = z0; z <= z1; z++)
+                blocks.fill(toIndex(x0, y, z), x1 - x0 + 1, 1, state);
+    }
+
+    /** 
+     * Replaces a block id with another, keeping the metadata. Returns 
+     * false if the section doesn't contain the id. 
+     */
+    public boolean replace(int fromId, int toId)
+    {
+        boolean found = false;
+
+        for(int data = 0; data < 16; data++)
+            found |= blocks.replace(toState(fromId, data), toState(toId, data));
+
+        return found;
+    }
+
+    /** Checks if a block id may be present, ids that were overwritten can still be reported. **/
+    protected boolean containsBlockID(int id)
+    {
+        for(int data = 0; data < 16; data++)
+            if(blocks.contains(toState(id, data)))
+                return true;
+
+        return false;
+    }
+
+    /** Copies the blocks in a box of section coordinates from another section. **/
+    public void copyFrom(Section source, BoundingBox box)
+    {
+        checkBounds(box.min.x, box.min.y, box.min.z);
+        checkBounds(box.max.x, box.max.y, box.max.z);
+
+        if(source.blocks == null)
+            throw new IllegalArgumentException("Source blocks not loaded");
+
+        copyBlocks(source, box.min.x, box.min.y, box.min.z, box.max.x, box.max.y, box.max.z);
+    }
+
+    protected void copyBlocks(Section source, int x0, int y0, int z0, int x1, int y1, int z1)
+    {
+        if(x0 == 0 && y0 == 0 && z0 == 0 && x1 == width - 1 && y1 == height - 1 && z1 == length - 1)
+        {
+            blocks.copyFrom(source.blocks);
+            return;
+        }
+
+        for(int y = y0; y <= y1; y++)
+        {
+            for(int z = z0; z <= z1; z++)
+            {
+                int index = toIndex(x0, y, z);
+
+                for(int x = x0; x <= x1; x++, index++)
+                    blocks.set(index, source.blocks.get(index));
+            }
+        }
     }
 
     public void setBlockLight(int index, int val)
@@ -112,7 +287,7 @@ public class Section
     public void setBlockLight(int x, int y, int z, int val)
     {
         checkBounds(x, y, z);
-        blocklight.set(toIndex(x, y, z), val);
+        setBlockLight(toIndex(x, y, z), val);
     }
 
     public void setSkyLight(int index, int val)
@@ -123,41 +298,51 @@ public class Section
     public void setSkyLight(int x, int y, int z, int val)
     {
         checkBounds(x, y, z);
-        skylight.set(toIndex(x, y, z), val);
+        setSkyLight(toIndex(x, y, z), val);
+    }
+
+    public void fillBlockLights(int val)
+    {
+        blocklight.fill(val);
+    }
+
+    public void fillSkyLights(int val)
+    {
+        skylight.fill(val);
     }
 
     public Block getBlock(int index)
     {
-        return Block.getBlock(0xFF & blockid[index], metadata.get(index));
+        int state = blocks.get(index);
+        return Block.getBlock(state >> 4, state & 0xF);
     }
 
     public Block getBlock(int x, int y, int z)
     {
         checkBounds(x, y, z);
-        int index = toIndex(x, y, z);
-        return Block.getBlock(0xFF & blockid[index], metadata.get(index));
+        return getBlock(toIndex(x, y, z));
     }
 
     public int getBlockID(int index)
     {
-        return 0xFF & blockid[index];
+        return blocks.get(index) >> 4;
     }
     
     public int getBlockID(int x, int y, int z)
     {
         checkBounds(x, y, z);
-        return 0xFF & blockid[toIndex(x, y, z)];
+        return blocks.get(toIndex(x, y, z)) >> 4;
     }
 
     public int getMetaData(int index)
     {
-        return metadata.get(index);
+        return blocks.get(index) & 0xF;
     }
     
     public int getMetaData(int x, int y, int z)
     {
         checkBounds(x, y, z);
-        return metadata.get(toIndex(x, y, z));
+        return blocks.get(toIndex(x, y, z)) & 0xF;
     }
 
     public int getBlockLight(int index)
@@ -182,24 +367,79 @@ public class Section
         return skylight.get(toIndex(x, y, z));
     }
 
+    /** Returns a copy of the block ids, as stored in the Anvil format. **/
     public byte[] getBlockIDs()
     {
+        if(blocks == null)
+            return null;
+        
+        byte[] blockid = new byte[volume];
+        copyBlockIDs(blockid);
         return blockid;
     }
 
+    /** Returns a copy of the block metadata, as stored in the Anvil format. **/
     public NibbleArray getMetaData()
     {
-        return metadata;
+        if(blocks == null)
+            return null;
+        
+        byte[] metadata = new byte[volume / 2];
+        copyMetaData(metadata);
+        return new NibbleArray(metadata);
+    }
+    
+    protected void copyBlockIDs(byte[] dest)
+    {
+        if(blocks.isUniform())
+        {
+            Arrays.fill(dest, 0, volume, (byte)(blocks.get(0) >> 4));
+            return;
+        }
+        
+        for(int i = 0; i < volume; i++)
+            dest[i] = (byte)(blocks.get(i) >> 4);
+    }
+    
+    protected void copyMetaData(byte[] dest)
+    {
+        if(blocks.isUniform())
+        {
+            int data = blocks.get(0) & 0xF;
+            Arrays.fill(dest, 0, volume / 2, (byte)(data | (data << 4)));
+            return;
+        }
+        
+        for(int i = 0; i < volume; i += 2)
+            dest[i >> 1] = (byte)((blocks.get(i) & 0xF) | ((blocks.get(i + 1) & 0xF) << 4));
     }
 
+    /** Returns a copy of the block light levels, as stored in the Anvil format. **/
     public NibbleArray getBlockLights()
     {
-        return skylight;
+        if(blocklight == null)
+            return null;
+        
+        return new NibbleArray(blocklight.toByteArray());
     }
 
+    /** Returns a copy of the sky light levels, as stored in the Anvil format. **/
     public NibbleArray getSkyLights()
     {
-        return blocklight;
+        if(skylight == null)
+            return null;
+        
+        return new NibbleArray(skylight.toByteArray());
+    }
+
+    /** Drops light arrays that hold a single level. **/
+    public void compactLights()
+    {
+        if(blocklight != null)
+            blocklight.compact();
+        
+        if(skylight != null && skylight != blocklight)
+            skylight.compact();
     }
 
     protected static void checkBounds(int x, int y, int z)
@@ -218,30 +458,78 @@ public class Section
         return x + (z << 4) + (y << 8);
     }
 
+    /** Checks if the section is known to consist of a single block state. **/
+    public boolean isUniform()
+    {
+        return blocks != null && blocks.isUniform();
+    }
+    
+    /** Returns the block filling a uniform section, or null if it isn't uniform. **/
+    public Block getUniformBlock()
+    {
+        if(!isUniform())
+            return null;
+        
+        return getBlock(0);
+    }
+
     public boolean isEmptyAir()
     {
+        if(blocks == null)
+            return false;
+        
+        if(blocks.isUniform())
+            return blocks.get(0) >> 4 == 0;
+        
         for(int i = 0; i < volume; i++)
-            if(blockid[i] != 0)
+            if(blocks.get(i) >> 4 != 0)
                 return false;
 
         return true;
     }
 
-    public CompoundTag createTag()
+    /** 
+     * Returns the tags written for this section by the last encode, or null 
+     * if they aren't kept or the section changed since. 
+     */
+    protected byte[] getEncodedTags()
     {
-        CompoundTag tag = new CompoundTag();
+        return null;
+    }
 
-        ByteTag tagY = new ByteTag("Y", (byte) y);
-        ByteArrayTag tagBlockid = new ByteArrayTag("Blocks", blockid);
-        ByteArrayTag tagMetadata = new ByteArrayTag("Data", metadata.array);
-        ByteArrayTag tagSkylight = new ByteArrayTag("SkyLight", skylight.array);
-        ByteArrayTag tagBlocklight = new ByteArrayTag("BlockLight", blocklight.array);
+    /**
+     * Called before the section is encoded, returns true if the encoded
+     * tags should be passed to {@link #keepEncodedTags(byte[])}.
+     */
+    protected boolean startEncoding()
+    {
+        return false;
+    }
 
-        tag.put("Y", tagY);
-        tag.put("Blocks", tagBlockid);
-        tag.put("Data", tagMetadata);
-        tag.put("SkyLight", tagSkylight);
-        tag.put("BlockLight", tagBlocklight);
+    protected void keepEncodedTags(byte[] tags)
+    {
+        // implemented by subclass
+    }
+
+    public CompoundTag createTag()
+    {
+        CompoundTag tag = new CompoundTag();
+        tag.put("Y", new ByteTag("Y", (byte) y));
+        
+        if(blocks != null)
+        {
+            tag.put("Blocks", new ByteArrayTag("Blocks", getBlockIDs()));
+            tag.put("Data", new ByteArrayTag("Data", getMetaData().array));
+        }
+
+        if(skylight != null)
+        {
+            tag.put("SkyLight", new ByteArrayTag("SkyLight", skylight.toByteArray()));
+            tag.put("BlockLight", new ByteArrayTag("BlockLight", blocklight.toByteArray()));
+        }
+        
+        // parts that weren't loaded are restored from their raw tags
+        ChunkDecoder.putRawTags(unknownTags, tag);
 
         return tag;
     }
@@ -256,10 +544,10 @@ public class Section
 
         int y = tagY.data;
 
-        NibbleArray metadata = new NibbleArray(tagMetadata.data);
-        NibbleArray skylight = new NibbleArray(tagSkylight.data);
-        NibbleArray blocklight = new NibbleArray(tagBlocklight.data);
+        PaletteArray blocks = toPaletteArray(tagBlockid.data, new NibbleArray(tagMetadata.data));
+        LightArray skylight = new LightArray(tagSkylight.data);
+        LightArray blocklight = new LightArray(tagBlocklight.data);
 
-        return new Section(y, tagBlockid.data, metadata, blocklight, skylight);
+        return new Section(y, blocks, blocklight, skylight);
     }
 }
\ No newline at end of file
@@ -69,12 +69,12 @@ public class Mandelbrot
         canvas.setBlock(x, height, z, block);
 
         Block fill = getFill(block);  
-        for(int y=0; y<height; y++)
-            canvas.setBlock(x, y, z, fill);
+        if(height > 0)
+            canvas.setColumn(x, z, 0, height - 1, fill);
         
-        double waterLevel = getWaterLevel(maxY);        
-        for(int y=height; y<waterLevel; y++)
-            canvas.setBlock(x, y, z, Block.WATER);
+        int waterTop = (int)Math.ceil(getWaterLevel(maxY)) - 1;        
+        if(height <= waterTop)
+            canvas.setColumn(x, z, height, waterTop, Block.WATER);
         
         canvas.setBlock(x, 0, z, Block.BEDROCK);
     }
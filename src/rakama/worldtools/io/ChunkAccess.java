@@ -17,35 +17,74 @@
 package rakama.worldtools.io;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
-import net.minecraft.world.level.chunk.storage.RegionFile;
+import rakama.worldtools.coord.Coordinate2D;
 import rakama.worldtools.data.Chunk;
+import rakama.worldtools.data.Projection;
 import rakama.worldtools.data.entity.EntityFactory;
 
-import com.mojang.nbt.CompoundTag;
-import com.mojang.nbt.NbtIo;
-
 public class ChunkAccess
 {
     protected final boolean debug = false;
     protected final boolean write_empty_chunks = false;
     
+    /** maximum number of decoded chunks queued per reader thread **/
+    protected final static int read_queue_scale = 4;
+
+    /** seconds an idle reader thread is kept alive **/
+    protected final static int reader_keep_alive = 10;
+    
     private File regionDirectory;
     private RegionManager regionManager;
     private EntityFactory entityFactory;
+    private ExecutorService readExecutor;
+    private ThreadLocal<ChunkInflater> inflaters;
+    private ThreadLocal<ChunkCompressor> compressors;
+    private volatile int compressionLevel;
+    private int readThreads;
 
     protected ChunkAccess()
     {
         regionManager = new RegionManager();
         entityFactory = EntityFactory.getDefaultFactory();
+        compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        
+        // zlib streams hold native memory, so each thread keeps its own
+        inflaters = new ThreadLocal<ChunkInflater>(){
+            protected ChunkInflater initialValue(){
+                return new ChunkInflater();}};
+        compressors = new ThreadLocal<ChunkCompressor>(){
+            protected ChunkCompressor initialValue(){
+                return new ChunkCompressor();}};
+        readThreads = Runtime.getRuntime().availableProcessors();
     }
 
     public static ChunkAccess createInstance(File directory) throws IOException
@@ -78,9 +117,17 @@ public class ChunkAccess
         
         // check for any .mca files in the current directory
         File[] files = getRegionFiles(directory);
+        List<RegionInfo> regions = new ArrayList<RegionInfo>(files.length);
 
         for(File file : files)
-            addFile(file);
+        {
+            RegionInfo region = parseFile(file);
+            
+            if(region != null)
+                regions.add(region);
+        }
+        
+        regionManager.addRegions(regions);
     }
 
     private static File[] getRegionFiles(File regionDirectory)
@@ -90,7 +137,7 @@ public class ChunkAccess
                 return s.endsWith(".mca");}});
     }
     
-    private boolean addFile(File file)
+    private static RegionInfo parseFile(File file)
     {
         String index = "(-??[0123456789]*)";
         Pattern pattern = Pattern.compile("r\\." + index + "\\." + index + "\\.mca");
@@ -104,19 +151,27 @@ public class ChunkAccess
             {
                 int x = Integer.parseInt(matcher.group(1));
                 int z = Integer.parseInt(matcher.group(2));
-                regionManager.addFile(file, x, z);
-                return true;
+                return new RegionInfo(file, x, z);
             }
         }
         catch(NumberFormatException e)
         {
-            return false;
+            return null;
         }
 
-        return false;
+        return null;
     }
     
     public Chunk readChunk(int x, int z) throws IOException
+    {
+        return readChunk(x, z, Projection.ALL);
+    }
+    
+    /**
+     * Reads a chunk, decoding only the given parts. The other parts can't be
+     * accessed, but are preserved when the chunk is written back.
+     */
+    public Chunk readChunk(int x, int z, Set<Projection> projection) throws IOException
     {
         if(debug)
             log("READ_CHUNK " + x + " " + z);
@@ -127,8 +182,7 @@ public class ChunkAccess
             return null;
 
         // decompress chunk
-        CompoundTag tag = NbtIo.read(dis);
-        Chunk chunk = Chunk.loadChunk(tag);
+        Chunk chunk = Chunk.loadChunk(dis, entityFactory, projection);
         dis.close();
         
         return chunk;
@@ -145,8 +199,7 @@ public class ChunkAccess
             return null;
 
         // decompress chunk
-        CompoundTag tag = NbtIo.read(dis);
-        ManagedChunk chunk = ManagedChunk.loadChunk(tag, manager);
+        ManagedChunk chunk = ManagedChunk.loadChunk(dis, manager);
         dis.close();
         
         if(x != chunk.getX() || z != chunk.getZ())
@@ -155,53 +208,367 @@ public class ChunkAccess
         return chunk;
     }
 
+    /**
+     * Reads and decodes many chunks at once on a pool of worker threads. 
+     * Chunks are grouped by region so each region file is opened once, and 
+     * the handler is invoked on the calling thread, in no particular order, 
+     * for every chunk that exists. A chunk that can't be read doesn't stop
+     * the others from being delivered.
+     * 
+     * @param coordinates chunk coordinates to read
+     * @param handler receives each decoded chunk
+     * @throws ChunkReadException after the other chunks were delivered, if
+     *     some chunks could not be read
+     * @throws IOException if a region could not be read, in which case 
+     *     chunks may be left undelivered
+     */
+    public void readChunks(Collection<Coordinate2D> coordinates, ChunkHandler handler) throws IOException
+    {
+        readChunks(coordinates, handler, Projection.ALL);
+    }
+
+    /**
+     * Reads many chunks at once, decoding only the given parts of each chunk.
+     * 
+     * @see #readChunks(Collection, ChunkHandler)
+     */
+    public void readChunks(Collection<Coordinate2D> coordinates, ChunkHandler handler, 
+            Set<Projection> projection) throws IOException
+    {
+        CompletionService<Chunk> completion = new ExecutorCompletionService<Chunk>(getReadExecutor());
+        int maxPending = readThreads * read_queue_scale;
+        Map<Future<Chunk>, Coordinate2D> pending = new HashMap<Future<Chunk>, Coordinate2D>();
+        Map<Coordinate2D, IOException> failures = new TreeMap<Coordinate2D, IOException>();
+        
+        try
+        {
+            for(Entry<Coordinate2D, List<Coordinate2D>> group : groupByRegion(coordinates).entrySet())
+            {
+                List<Coordinate2D> list = getExistingChunks(group.getValue());
+                
+                if(list.isEmpty())
+                    continue;
+
+                Coordinate2D key = group.getKey();
+                MappedRegionFile region = regionManager.getMappedRegionFile(key.x, key.z);
+
+                if(region == null)
+                    continue;
+
+                // read chunks in file order
+                Collections.sort(list, new SectorComparator(region));
+                
+                for(Coordinate2D coord : list)
+                {
+                    pending.put(completion.submit(new ChunkReader(coord.x, coord.z, projection)), coord);
+                    
+                    while(pending.size() >= maxPending)
+                        deliverChunk(completion, pending, handler, failures);
+                }
+            }
+
+            while(!pending.isEmpty())
+                deliverChunk(completion, pending, handler, failures);
+        }
+        finally
+        {
+            for(Future<Chunk> future : pending.keySet())
+                future.cancel(true);
+        }
+        
+        if(!failures.isEmpty())
+            throw new ChunkReadException(failures);
+    }
+    
+    private void deliverChunk(CompletionService<Chunk> completion, Map<Future<Chunk>, Coordinate2D> pending, 
+            ChunkHandler handler, Map<Coordinate2D, IOException> failures) throws IOException
+    {
+        Chunk chunk;
+        Coordinate2D coord = null;
+        
+        try
+        {
+            Future<Chunk> future = completion.take();
+            coord = pending.remove(future);
+            chunk = future.get();
+        }
+        catch(InterruptedException e)
+        {
+            throw new InterruptedIOException();
+        }
+        catch(ExecutionException e)
+        {
+            // a bad chunk is reported with the others, once the rest are delivered
+            if(e.getCause() instanceof IOException)
+            {
+                failures.put(coord, (IOException)e.getCause());
+                return;
+            }
+            else if(e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            else
+                throw new IOException(e.getCause());
+        }
+        
+        if(chunk != null)
+            handler.handleChunk(chunk);
+    }
+    
+    private static Map<Coordinate2D, List<Coordinate2D>> groupByRegion(Collection<Coordinate2D> coordinates)
+    {
+        Map<Coordinate2D, List<Coordinate2D>> groups = new TreeMap<Coordinate2D, List<Coordinate2D>>();
+        
+        for(Coordinate2D coord : coordinates)
+        {
+            Coordinate2D key = new Coordinate2D(coord.x >> 5, coord.z >> 5);
+            List<Coordinate2D> list = groups.get(key);
+            
+            if(list == null)
+            {
+                list = new ArrayList<Coordinate2D>();
+                groups.put(key, list);
+            }
+            
+            list.add(coord);
+        }
+        
+        return groups;
+    }
+    
+    private List<Coordinate2D> getExistingChunks(List<Coordinate2D> coordinates) throws IOException
+    {
+        List<Coordinate2D> existing = new ArrayList<Coordinate2D>(coordinates.size());
+        
+        for(Coordinate2D coord : coordinates)
+            if(regionManager.hasChunk(coord.x, coord.z))
+                existing.add(coord);
+        
+        return existing;
+    }
+    
+    private synchronized ExecutorService getReadExecutor()
+    {
+        if(readExecutor == null)
+        {
+            // idle readers exit, so an unclosed instance doesn't leak threads
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(readThreads, readThreads, 
+                    reader_keep_alive, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), 
+                    new ReaderThreadFactory());
+            executor.allowCoreThreadTimeOut(true);
+            readExecutor = executor;
+        }
+        
+        return readExecutor;
+    }
+    
+    public synchronized void setReadThreads(int numThreads)
+    {
+        if(numThreads < 1)
+            throw new IllegalArgumentException("numThreads must be positive");
+        
+        shutdownReaders();
+        readThreads = numThreads;
+    }
+
+    public int getReadThreads()
+    {
+        return readThreads;
+    }
+    
+    private synchronized void shutdownReaders()
+    {
+        if(readExecutor == null)
+            return;
+        
+        readExecutor.shutdown();
+        readExecutor = null;
+    }
+    
     public void writeChunk(Chunk chunk) throws IOException
     {
         if(debug)
             log("WRITE_CHUNK " + chunk.getX() + " " + chunk.getZ());
         
-        if(!write_empty_chunks && chunk.isEmpty() 
-        && getDataInputStream(chunk.getX(), chunk.getZ()) == null)
+        int x = chunk.getX();
+        int z = chunk.getZ();
+        
+        if(!write_empty_chunks && chunk.isEmpty() && !regionManager.hasChunk(x, z))
             return;
         
-        DataOutputStream dos = getDataOutputStream(chunk.getX(), chunk.getZ());
-
-        if(dos == null)
-            throw new IOException();
-
-        NbtIo.write(chunk.getTag(), dos);
-        dos.close();
+        // serialize and deflate without building a tag tree
+        ChunkCompressor compressor = compressors.get();
+        compressor.compress(chunk, compressionLevel);
+        
+        RegionInfo region = getWritableRegion(x >> 5, z >> 5);
+        regionManager.writeChunk(region, x, z, compressor.getData(), compressor.getLength());
     }
 
+    /**
+     * Writes many chunks at once. Chunks are grouped by region, and each 
+     * region is written in a single pass in sector order, with one header 
+     * update and one sync.
+     * 
+     * @param chunks chunks to write
+     * @throws IOException if a region could not be written
+     */
+    public void writeChunks(Collection<? extends Chunk> chunks) throws IOException
+    {
+        writeChunks(chunks, 0);
+    }
+    
+    /**
+     * Writes many chunks at once, giving them all the same header timestamp.
+     * 
+     * @param chunks chunks to write
+     * @param timestamp header timestamp in seconds since the epoch, or 0 for 
+     * the time of writing
+     * @throws IOException if a region could not be written
+     */
+    public void writeChunks(Collection<? extends Chunk> chunks, int timestamp) throws IOException
+    {
+        Map<Coordinate2D, List<Chunk>> groups = new TreeMap<Coordinate2D, List<Chunk>>();
+        
+        for(Chunk chunk : chunks)
+        {
+            Coordinate2D key = new Coordinate2D(chunk.getX() >> 5, chunk.getZ() >> 5);
+            List<Chunk> list = groups.get(key);
+            
+            if(list == null)
+            {
+                list = new ArrayList<Chunk>();
+                groups.put(key, list);
+            }
+            
+            list.add(chunk);
+        }
+        
+        for(Entry<Coordinate2D, List<Chunk>> group : groups.entrySet())
+            writeRegion(group.getKey().x, group.getKey().z, group.getValue(), timestamp);
+    }
+    
+    private void writeRegion(int x, int z, List<Chunk> chunks, int timestamp) throws IOException
+    {
+        if(debug)
+            log("WRITE_REGION " + x + " " + z + " " + chunks.size());
+        
+        RegionBatch batch = new RegionBatch(timestamp);
+        ChunkCompressor compressor = compressors.get();
+        
+        for(Chunk chunk : chunks)
+        {
+            int chunkX = chunk.getX();
+            int chunkZ = chunk.getZ();
+            
+            if(!write_empty_chunks && chunk.isEmpty() && !regionManager.hasChunk(chunkX, chunkZ))
+                continue;
+            
+            compressor.compress(chunk, compressionLevel);
+            batch.add(chunkX & 0x1F, chunkZ & 0x1F, compressor.getData(), compressor.getLength());
+        }
+        
+        if(batch.isEmpty())
+            return;
+        
+        regionManager.writeBatch(getWritableRegion(x, z), batch);
+    }
+    
     protected DataInputStream getDataInputStream(int x, int z) throws IOException
     {
-        RegionFile region = regionManager.getRegionFile(x >> 5, z >> 5);
-
-        if(region == null)
-            return null;
-
-        return region.getChunkDataInputStream(x & 0x1F, z & 0x1F);
+        return regionManager.readChunk(x, z, inflaters.get());
     }
 
-    protected DataOutputStream getDataOutputStream(int x, int z) throws IOException
+    /** Returns the region, registering a new region file if needed. **/
+    private RegionInfo getWritableRegion(int x, int z) throws IOException
     {
-        RegionFile region = regionManager.getRegionFile(x >> 5, z >> 5);
+        RegionInfo region = regionManager.getRegionInfo(x, z);
 
         if(region == null)
         {
-            region = createRegionFile(x >> 5, z >> 5);
-            if(region == null)
-                throw new IOException();
+            String path = regionDirectory.getCanonicalPath() + "/r." + x + "." + z + ".mca";        
+            regionManager.addFile(new File(path), x, z);
+            region = regionManager.getRegionInfo(x, z);
         }
 
-        return region.getChunkDataOutputStream(x & 0x1F, z & 0x1F);
+        return region;
     }
-
-    private RegionFile createRegionFile(int x, int z) throws IOException
+    
+    /**
+     * Sets the deflate level used for chunks written from now on, e.g. 
+     * Deflater.BEST_SPEED for scratch worlds or BEST_COMPRESSION for archival.
+     * 
+     * @param level 0-9, or Deflater.DEFAULT_COMPRESSION
+     */
+    public void setCompressionLevel(int level)
+    {
+        if((level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) 
+        && level != Deflater.DEFAULT_COMPRESSION)
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        
+        compressionLevel = level;
+    }
+    
+    public int getCompressionLevel()
+    {
+        return compressionLevel;
+    }
+    
+    /** Checks the region header for a chunk, without reading its data. **/
+    public boolean hasChunk(int x, int z) throws IOException
+    {
+        return regionManager.hasChunk(x, z);
+    }
+    
+    /**
+     * Returns the time a chunk was last written, in seconds since the epoch, 
+     * or 0 if the chunk doesn't exist. Only the region header is read.
+     */
+    public int getChunkTimestamp(int x, int z) throws IOException
+    {
+        return regionManager.chunkTimestamp(x, z);
+    }
+    
+    /**
+     * Sets how many region files may be held open, and how many bytes of 
+     * region files may be memory mapped, before the least used are released.
+     */
+    public void setRegionCacheBudget(int maxHandles, long maxMappedBytes)
+    {
+        regionManager.setCacheBudget(maxHandles, maxMappedBytes);
+    }
+    
+    /**
+     * Checks the region header for a chunk written after a given time.
+     * 
+     * @param time seconds since the epoch
+     */
+    public boolean isModifiedAfter(int x, int z, int time) throws IOException
     {
-        String path = regionDirectory.getCanonicalPath() + "/r." + x + "." + z + ".mca";        
-        regionManager.addFile(new File(path), x, z);
-        return regionManager.getRegionFile(x, z);
+        return regionManager.hasChunk(x, z) && regionManager.chunkTimestamp(x, z) > time;
+    }
+    
+    /**
+     * Returns the coordinates of chunks in a region that were written after 
+     * a given time. Only the region header is read.
+     * 
+     * @param time seconds since the epoch
+     */
+    public List<Coordinate2D> getModifiedChunks(RegionInfo region, int time) throws IOException
+    {
+        List<Coordinate2D> list = new ArrayList<Coordinate2D>();
+        
+        if(region.getLatestTimestamp() <= time)
+            return list;
+        
+        Coordinate2D coord = region.getRegionCoordinate();
+        int x0 = coord.x << 5;
+        int z0 = coord.z << 5;
+        
+        for(int z = z0; z < z0 + 32; z++)
+            for(int x = x0; x < x0 + 32; x++)
+                if(isModifiedAfter(x, z, time))
+                    list.add(new Coordinate2D(x, z));
+        
+        return list;
     }
     
     public EntityFactory getEntityFactory()
@@ -214,6 +581,26 @@ public class ChunkAccess
         return regionManager.getRegions();
     }
 
+    /**
+     * Rewrites a region file so its live chunks are stored contiguously in 
+     * coordinate order, discarding sectors orphaned by earlier writes. 
+     * Nothing else should be reading or writing the region meanwhile.
+     * 
+     * @param region the region to compact
+     * @return statistics for the compacted region
+     * @throws IOException
+     */
+    public RegionStatistics compactRegion(RegionInfo region) throws IOException
+    {
+        return regionManager.compact(region);
+    }
+    
+    public void compactRegions() throws IOException
+    {
+        for(RegionInfo region : getRegions())
+            compactRegion(region);
+    }
+    
     public File getRegionDirectory()
     {
         return regionDirectory;
@@ -226,6 +613,7 @@ public class ChunkAccess
     
     public void closeAll()
     {
+        shutdownReaders();
         regionManager.closeAll();
     }
 
@@ -233,10 +621,61 @@ public class ChunkAccess
     {
         System.out.println(str);
     }
+    
+    private final class ChunkReader implements Callable<Chunk>
+    {
+        final Set<Projection> projection;
+        final int x, z;
+        
+        public ChunkReader(int x, int z, Set<Projection> projection)
+        {
+            this.projection = projection;
+            this.x = x;
+            this.z = z;
+        }
+        
+        public Chunk call() throws IOException
+        {
+            DataInputStream dis = getDataInputStream(x, z);
+
+            if(dis == null)
+                return null;
+
+            // decompress chunk
+            Chunk chunk = Chunk.loadChunk(dis, entityFactory, projection);
+            dis.close();
+            
+            if(x != chunk.getX() || z != chunk.getZ())
+                chunk.setPosition(x, z);
+            
+            return chunk;
+        }
+    }
+}
 
-    @Override
-    protected void finalize()
+final class SectorComparator implements Comparator<Coordinate2D>
+{
+    final MappedRegionFile region;
+    
+    public SectorComparator(MappedRegionFile region)
+    {
+        this.region = region;
+    }
+    
+    public int compare(Coordinate2D a, Coordinate2D b)
+    {
+        int offsetA = region.getOffset(a.x & 0x1F, a.z & 0x1F) >>> 8;
+        int offsetB = region.getOffset(b.x & 0x1F, b.z & 0x1F) >>> 8;
+        return offsetA < offsetB ? -1 : (offsetA == offsetB ? 0 : 1);
+    }
+}
+
+final class ReaderThreadFactory implements ThreadFactory
+{
+    public Thread newThread(Runnable r)
     {
-        closeAll();
+        Thread thread = new Thread(r, "ChunkReader");
+        thread.setDaemon(true);
+        return thread;
     }
 }
\ No newline at end of file
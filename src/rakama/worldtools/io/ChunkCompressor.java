@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+import rakama.worldtools.data.Chunk;
+
+/**
+ * Serializes chunks straight into a reusable buffer and deflates them into 
+ * a second one. Instances aren't thread safe, and the compressed data is only
+ * valid until the next call.
+ */
+final class ChunkCompressor
+{
+    private final static int initial_size = MappedRegionFile.sector_bytes * 8;
+
+    private final Deflater deflater;
+    private final RawBuffer raw;
+    private final DataOutputStream out;
+    private byte[] compressed;
+    private int length;
+
+    public ChunkCompressor()
+    {
+        this.deflater = new Deflater();
+        this.raw = new RawBuffer(initial_size);
+        this.out = new DataOutputStream(raw);
+        this.compressed = new byte[initial_size];
+    }
+
+    public void compress(Chunk chunk, int level) throws IOException
+    {
+        raw.reset();
+        chunk.write(out);
+        out.flush();
+
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(raw.array(), 0, raw.size());
+        deflater.finish();
+        length = 0;
+
+        while(!deflater.finished())
+        {
+            if(length == compressed.length)
+                grow();
+
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+    }
+
+    private void grow()
+    {
+        byte[] array = new byte[compressed.length * 2];
+        System.arraycopy(compressed, 0, array, 0, length);
+        compressed = array;
+    }
+
+    public byte[] getData()
+    {
+        return compressed;
+    }
+
+    public int getLength()
+    {
+        return length;
+    }
+
+    /** Exposes the backing array to avoid copying it. **/
+    private static final class RawBuffer extends ByteArrayOutputStream
+    {
+        public RawBuffer(int size)
+        {
+            super(size);
+        }
+
+        public byte[] array()
+        {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.io;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import rakama.worldtools.light.ChunkRelighter;
+
+/**
+ * Background thread that notifies neighbors, relights and writes expired
+ * dirty chunks. A chunk belongs to the flusher from submit() until it has
+ * been flushed or reclaimed, and submit() blocks while the queue is full.
+ * Chunks near a window are handed back to the manager's deferred list.
+ */
+final class ChunkFlusher extends Thread
+{
+    private final ChunkManager manager;
+    private final ChunkRelighter relighter;
+    private final BlockingQueue<ManagedChunk> queue;
+    private int outstanding;
+
+    public ChunkFlusher(ChunkManager manager, int capacity)
+    {
+        super("ChunkFlusher");
+        setDaemon(true);
+        this.manager = manager;
+        this.relighter = new ChunkRelighter();
+        this.queue = new ArrayBlockingQueue<ManagedChunk>(capacity);
+    }
+
+    public void submit(ManagedChunk chunk) throws InterruptedException
+    {
+        if(chunk.isFlushPending())
+            return;
+
+        synchronized(this)
+        {
+            outstanding++;
+        }
+
+        chunk.setFlushPending(true);
+
+        try
+        {
+            queue.put(chunk);
+        }
+        catch(InterruptedException e)
+        {
+            release(chunk);
+            throw e;
+        }
+    }
+
+    /** Blocks until the chunk is no longer owned by the flusher. **/
+    public synchronized void reclaim(ManagedChunk chunk)
+    {
+        if(queue.remove(chunk))
+        {
+            release(chunk);
+            return;
+        }
+
+        boolean interrupted = false;
+
+        while(chunk.isFlushPending())
+        {
+            try
+            {
+                wait();
+            }
+            catch(InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /** Blocks until every submitted chunk has been flushed. **/
+    public synchronized void drain()
+    {
+        boolean interrupted = false;
+
+        while(outstanding > 0 && isAlive())
+        {
+            try
+            {
+                wait();
+            }
+            catch(InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    public void shutdown()
+    {
+        drain();
+        interrupt();
+    }
+
+    public boolean isCurrentThread()
+    {
+        return Thread.currentThread() == this;
+    }
+
+    private synchronized void release(ManagedChunk chunk)
+    {
+        chunk.setFlushPending(false);
+        outstanding--;
+        notifyAll();
+    }
+
+    @Override
+    public void run()
+    {
+        while(!isInterrupted())
+        {
+            ManagedChunk chunk;
+
+            try
+            {
+                chunk = queue.take();
+            }
+            catch(InterruptedException e)
+            {
+                break;
+            }
+
+            try
+            {
+                manager.flushOrDefer(chunk, relighter);
+            }
+            catch(RuntimeException e)
+            {
+                e.printStackTrace();
+            }
+            finally
+            {
+                release(chunk);
+            }
+        }
+
+        synchronized(this)
+        {
+            notifyAll();
+        }
+    }
+}
\ No newline at end of file
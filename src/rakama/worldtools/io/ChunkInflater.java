@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Inflates zlib chunk data with a reusable Inflater and reusable buffers.
+ * Instances aren't thread safe, and each stream is only valid until the 
+ * next call to inflate().
+ */
+final class ChunkInflater
+{
+    private final static int initial_size = MappedRegionFile.sector_bytes * 8;
+
+    private final Inflater inflater;
+    private byte[] input, output;
+
+    public ChunkInflater()
+    {
+        this.inflater = new Inflater();
+        this.input = new byte[initial_size];
+        this.output = new byte[initial_size * 4];
+    }
+
+    public DataInputStream inflate(ByteBuffer data) throws IOException
+    {
+        int length = data.remaining();
+
+        // mapped buffers have no backing array, so copy the input once
+        if(input.length < length)
+            input = new byte[Math.max(length, input.length * 2)];
+
+        data.get(input, 0, length);
+        inflater.reset();
+        inflater.setInput(input, 0, length);
+
+        int size = 0;
+
+        try
+        {
+            while(!inflater.finished())
+            {
+                if(size == output.length)
+                    grow(size);
+
+                int count = inflater.inflate(output, size, output.length - size);
+
+                if(count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new ZipException("Truncated chunk data");
+
+                size += count;
+            }
+        }
+        catch(DataFormatException e)
+        {
+            throw new ZipException(e.getMessage());
+        }
+
+        return new DataInputStream(new ByteArrayInputStream(output, 0, size));
+    }
+
+    private void grow(int size)
+    {
+        byte[] array = new byte[output.length * 2];
+        System.arraycopy(output, 0, array, 0, size);
+        output = array;
+    }
+}
@@ -17,39 +17,67 @@
 package rakama.worldtools.io;
 
 import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
+import rakama.worldtools.coord.Coordinate2D;
 import rakama.worldtools.data.Chunk;
+import rakama.worldtools.data.Projection;
 import rakama.worldtools.data.entity.EntityFactory;
 import rakama.worldtools.light.ChunkRelighter;
-import rakama.worldtools.util.PriorityCache;
-
+import rakama.worldtools.util.LongPriorityCache;
 
+/**
+ * Caches chunks for reading and editing, and relights and writes them once
+ * they expire. Safe for use by several threads at once: each thread gets 
+ * its own window of recently used chunks, and chunks missing from the cache
+ * are loaded under one of a set of locks striped by region, so threads 
+ * working in different regions read in parallel. Threads should modify 
+ * different chunks, as changes to a single chunk aren't synchronized.
+ */
 public class ChunkManager
 {
     protected final static int default_max_cache_size = 1024;
     protected final static int default_window_scale = 3;
     protected final static int minimum_cleanup_size = 32;
+    protected final static int default_flush_queue_size = 256;
+    protected final static int batch_write_size = 1024;
+    protected final static int default_prefetch_lookahead = 2;
     protected final static int priority_access = 10000;
     protected final static int priority_light = 5000;
     protected final static int priority_read = 100;
+    protected final static int lock_stripes = 64;
+    protected final static int flush_lock_radius = 2;
     protected final boolean debug = false;
     
     private final ChunkAccess access;
-    private final ManagedChunk[] window;
+    private final ThreadLocal<ChunkWindow> windows;
+    private final Map<Thread, ChunkWindow> windowOwners;
     private final ChunkCache cache;
-    private final ChunkRelighter relighter;
-    private final List<ManagedChunk> cleanup;
+    private final Object[] stripes;
+    private final Set<ManagedChunk> cleanup;
+    private final List<ManagedChunk> deferred;
+    private final Set<Projection> projection;
     
     private final int windowSize, windowScale, windowMask;
-    private int windowMinX, windowMinZ, reads, writes;
-    private boolean lightingEnabled, readOnly;
-    private Thread shutdownHook;
+    private final boolean lightingEnabled, readOnly;
+    private volatile ChunkFlusher flusher;
+    private volatile ChunkPrefetcher prefetcher;
+    private volatile boolean pinned;
+    private final ChunkMetrics metrics;
     
     public ChunkManager(ChunkAccess access)
     {
@@ -58,30 +86,73 @@ public class ChunkManager
 
     public ChunkManager(ChunkAccess access, boolean readOnly)
     {
-        this(access, readOnly, readOnly, default_window_scale, default_max_cache_size);
+        this(access, readOnly, readOnly, default_window_scale, default_max_cache_size, Projection.ALL);
     }
     
     public ChunkManager(ChunkAccess access, boolean readOnly, boolean lightingEnabled)
     {
-        this(access, readOnly, lightingEnabled, default_window_scale, default_max_cache_size);
+        this(access, readOnly, lightingEnabled, default_window_scale, default_max_cache_size, Projection.ALL);
+    }
+
+    /**
+     * Creates a chunk manager that only decodes the given parts of each chunk.
+     * Parts needed for relighting are always loaded when chunks can change.
+     */
+    public ChunkManager(ChunkAccess access, boolean readOnly, Set<Projection> projection)
+    {
+        this(access, readOnly, !readOnly, default_window_scale, default_max_cache_size, projection);
     }
         
-    protected ChunkManager(ChunkAccess access, boolean ro, boolean le, int windowScale, int cacheSize)
+    protected ChunkManager(ChunkAccess access, boolean ro, boolean le, int windowScale, int cacheSize, 
+            Set<Projection> projection)
     {
         this.access = access;
         this.windowScale = windowScale;
         this.windowSize = 1 << windowScale;
         this.windowMask = bitmask(windowScale);
-        this.window = new ManagedChunk[windowSize * windowSize];
+        this.windowOwners = Collections.synchronizedMap(new WeakHashMap<Thread, ChunkWindow>());
+        this.windows = new ThreadLocal<ChunkWindow>(){
+            protected ChunkWindow initialValue(){
+                return createWindow();}};
         this.cache = new ChunkCache(cacheSize);
-        this.relighter = new ChunkRelighter();
-        this.cleanup = new LinkedList<ManagedChunk>();
+        this.stripes = new Object[lock_stripes];
+        this.cleanup = new LinkedHashSet<ManagedChunk>();
+        this.deferred = new ArrayList<ManagedChunk>();
+        this.metrics = new ChunkMetrics();
+        this.readOnly = false;
         this.lightingEnabled = true;
+        this.projection = createProjection(projection, readOnly, lightingEnabled);
+        
+        for(int i = 0; i < stripes.length; i++)
+            stripes[i] = new Object();
         
-        shutdownHook = new CloseOpenChunks(this);
-        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        CloseOpenChunks.register(this);
     }
 
+    private ChunkWindow createWindow()
+    {
+        ChunkWindow window = new ChunkWindow(windowSize);
+        windowOwners.put(Thread.currentThread(), window);
+        return window;
+    }
+
+    private static Set<Projection> createProjection(Set<Projection> parts, boolean ro, boolean le)
+    {
+        EnumSet<Projection> projection = EnumSet.noneOf(Projection.class);
+        projection.addAll(parts);
+        
+        // edited chunks and their neighbors are relit
+        if(!ro && le)
+            projection.addAll(EnumSet.of(Projection.BLOCKS, Projection.LIGHT, Projection.HEIGHTMAP));
+
+        return Collections.unmodifiableSet(projection);
+    }
+    
+    public Set<Projection> getProjection()
+    {
+        return projection;
+    }
+    
     public boolean isReadOnly()
     {
         return readOnly;
@@ -92,6 +163,67 @@ public class ChunkManager
         return lightingEnabled;
     }
     
+    /**
+     * Moves neighbor notification, relighting and writing of expired chunks 
+     * onto a background thread. Chunks returned by getChunk() should not be 
+     * kept and modified across calls while this is enabled.
+     * 
+     * @param enabled true to flush expired chunks asynchronously
+     */
+    public synchronized void setAsyncFlushEnabled(boolean enabled)
+    {
+        if(enabled == isAsyncFlushEnabled())
+            return;
+        
+        if(enabled)
+        {
+            ChunkFlusher newFlusher = new ChunkFlusher(this, default_flush_queue_size);
+            newFlusher.start();
+            flusher = newFlusher;
+        }
+        else
+        {
+            flusher.shutdown();
+            flusher = null;
+        }
+    }
+    
+    public boolean isAsyncFlushEnabled()
+    {
+        return flusher != null;
+    }
+    
+    /**
+     * Reads chunks ahead of the window on a background thread, once the 
+     * window has moved the same way twice in a row, e.g. while sweeping 
+     * rows of blocks. Prefetched chunks go into the cache, not the window.
+     * 
+     * @param enabled true to prefetch chunks along the direction of travel
+     */
+    public synchronized void setPrefetchEnabled(boolean enabled)
+    {
+        if(enabled == isPrefetchEnabled())
+            return;
+        
+        if(enabled)
+        {
+            ChunkPrefetcher newPrefetcher = 
+                    new ChunkPrefetcher(this, windowSize, default_prefetch_lookahead);
+            newPrefetcher.start();
+            prefetcher = newPrefetcher;
+        }
+        else
+        {
+            prefetcher.shutdown();
+            prefetcher = null;
+        }
+    }
+    
+    public boolean isPrefetchEnabled()
+    {
+        return prefetcher != null;
+    }
+    
     public Chunk getChunk(int x, int z)
     {
         return getChunk(x, z, false);
@@ -108,7 +240,7 @@ public class ChunkManager
     {
         ManagedChunk chunk = getChunk(x, z, priority_access, true, create);        
         if(chunk != null && lightingEnabled && chunk.needsRelight())
-            relightChunk(chunk); 
+            relightChunk(chunk, windows.get().relighter); 
         doCleanup(minimum_cleanup_size);
         return chunk;
     }
@@ -116,22 +248,26 @@ public class ChunkManager
     protected ManagedChunk getChunk(int x, int z, int priority, boolean moveWindow, boolean create)
     {      
         // try window        
-        int winX = x - windowMinX;
-        int winZ = z - windowMinZ;
+        ChunkWindow window = windows.get();
+        int winX = x - window.minX;
+        int winZ = z - window.minZ;
         int winIndex;
 
         if(inWindow(winX, winZ))
         {
             winIndex = winX + (winZ << windowScale);       
-            ManagedChunk chunk = window[winIndex];       
+            ManagedChunk chunk = window.chunks[winIndex];       
             if(chunk != null)
+            {
+                metrics.windowHit();
                 return chunk;
+            }
         }
         else if(moveWindow)
         {
-            setWindow(x, z);
-            winX = x - windowMinX;
-            winZ = z - windowMinZ;
+            setWindow(window, x, z);
+            winX = x - window.minX;
+            winZ = z - window.minZ;
             winIndex = winX + (winZ << windowScale);
         }
         else
@@ -140,24 +276,88 @@ public class ChunkManager
         if(debug)
             log("WINDOW_MISS " + x + " " + z);
         
-        // try soft cache
-        cache.decay(1);        
-        ManagedChunk chunk = cache.get(x, z, priority);
+        metrics.windowMiss();
         
-        if(chunk != null)
+        ManagedChunk chunk = getCachedChunk(x, z, priority, create, true);
+        
+        // place chunk in window, under its stripe lock so nearby flushes see it
+        if(chunk != null && winIndex > -1) 
         {
-            // place chunk in window
-            if(winIndex > -1) 
-                window[winIndex] = chunk;     
+            synchronized(getStripe(x, z))
+            {
+                window.chunks[winIndex] = chunk;
+            }
+        }
+        
+        return chunk;
+    }
+    
+    private ManagedChunk getCachedChunk(int x, int z, int priority, boolean create, boolean reclaim)
+    {
+        ManagedChunk chunk = lookupChunk(x, z, priority, false);
+        
+        if(chunk == null)
+        {
+            // one loader per stripe, so a chunk is never read in twice
+            synchronized(getStripe(x, z))
+            {
+                chunk = lookupChunk(x, z, priority, true);
+                
+                if(chunk == null)
+                    chunk = loadChunk(x, z, priority, create);
+            }
+            
+            if(chunk == null)
+                return null;
+        }
+        
+        // take the chunk back if it's still queued for flushing, unless this
+        // thread is flushing nearby and the flusher may be waiting on its locks
+        ChunkFlusher flusher = this.flusher;
+        if(reclaim && flusher != null && chunk.isFlushPending() 
+                && !Thread.holdsLock(getStripe(x, z)))
+            flusher.reclaim(chunk);
+        
+        return chunk;
+    }
+    
+    /** 
+     * Gets a chunk from the cache or its weak references. A recheck only 
+     * counts as an access if the chunk was loaded in the meantime.
+     */
+    private ManagedChunk lookupChunk(int x, int z, int priority, boolean recheck)
+    {
+        synchronized(cache)
+        {
+            if(recheck && !cache.containsKey(Coordinate2D.pack(x, z)))
+                return null;
+            
+            boolean cached = cache.isCached(x, z);
+            ManagedChunk chunk = cache.get(x, z, priority);
+            
+            if(chunk != null)
+            {
+                if(cached)
+                    metrics.cacheHit();
+                else
+                    metrics.weakPromotion();
+                
+                metrics.setCacheSize(cache.size());
+            }
             
             return chunk;
         }
-
+    }
+    
+    /** Reads a chunk into the cache, holding the chunk's stripe lock. **/
+    private ManagedChunk loadChunk(int x, int z, int priority, boolean create)
+    {
         if(debug)
             log("CACHE_MISS " + x + " " + z);
         
         // try chunk access        
-        chunk = readChunk(x, z);
+        ManagedChunk chunk = readChunk(x, z);
+        boolean created = false;
         
         if(chunk == null)
         {    
@@ -168,33 +368,174 @@ public class ChunkManager
                 log("NEW_CHUNK " + x + " " + z);
           
             chunk = new ManagedChunk(x, z, this);
-            chunk.invalidateFile();
+            created = true;
         }
         
-        // place chunk in cache
-        cache.put(chunk, priority);
-
-        // place chunk in window
-        if(winIndex > -1) 
-            window[winIndex] = chunk;
+        synchronized(cache)
+        {
+            cache.put(chunk, priority);
+            metrics.setCacheSize(cache.size());
+        }
+        
+        if(created)
+            chunk.invalidateFile();
         
         return chunk;
     }
     
-    private void setWindow(int x0, int z0)
+    private Object getStripe(int x, int z)
+    {
+        return stripes[getStripeIndex(x, z)];
+    }
+    
+    private static int getStripeIndex(int x, int z)
+    {
+        int hash = (x >> 5) * 0x1F1F1F1F ^ (z >> 5);
+        return (hash ^ (hash >>> 16)) & (lock_stripes - 1);
+    }
+    
+    /** 
+     * Stripes of the regions within the flush lock radius of a chunk, in 
+     * index order so threads taking several can't deadlock. 
+     */
+    private Object[] getNeighborhoodStripes(int x, int z)
+    {
+        int r = flush_lock_radius;
+        
+        // the radius spans at most two regions along each axis
+        int[] indices = {getStripeIndex(x - r, z - r), getStripeIndex(x + r, z - r), 
+                getStripeIndex(x - r, z + r), getStripeIndex(x + r, z + r)};
+        Arrays.sort(indices);
+        
+        List<Object> locks = new ArrayList<Object>(indices.length);
+        
+        for(int i = 0; i < indices.length; i++)
+            if(i == 0 || indices[i] != indices[i - 1])
+                locks.add(stripes[indices[i]]);
+        
+        return locks.toArray();
+    }
+    
+    /** 
+     * Reads a chunk into the cache from the prefetcher thread, without 
+     * holding the cache lock during the read. 
+     */
+    protected void prefetchChunk(int x, int z)
+    {
+        long key = Coordinate2D.pack(x, z);
+        ManagedChunk chunk;
+        long start = System.nanoTime();
+        
+        synchronized(getStripe(x, z))
+        {
+            synchronized(cache)
+            {
+                if(cache.containsKey(key))
+                    return;
+            }
+            
+            try
+            {
+                if(!access.hasChunk(x, z))
+                    return;
+                
+                chunk = access.readChunk(x, z, this);
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+                return;
+            }
+            
+            if(chunk == null)
+                return;
+            
+            synchronized(cache)
+            {
+                cache.put(chunk, priority_read);
+                metrics.setCacheSize(cache.size());
+            }
+        }
+        
+        metrics.prefetch(System.nanoTime() - start);
+    }
+    
+    /**
+     * Called when a chunk first needs writing. A chunk that was modified 
+     * after it left the cache is queued for flushing right away, so its 
+     * changes never depend on the garbage collector.
+     */
+    protected void chunkDirtied(ManagedChunk chunk)
+    {
+        if(!pinned)
+            pin();
+        
+        boolean evicted;
+        
+        synchronized(cache)
+        {
+            evicted = !cache.isCached(chunk.getKey());
+        }
+        
+        if(evicted)
+            requestCleanup(chunk);
+    }
+    
+    /** Keeps the manager reachable until its changes have been written. **/
+    private void pin()
+    {
+        CloseOpenChunks.pin(this);
+        pinned = true;
+    }
+    
+    private ManagedChunk getNeighbor(int x, int z, int priority)
+    {
+        // the flusher thread must not touch the window
+        ChunkFlusher flusher = this.flusher;
+        if(flusher != null && flusher.isCurrentThread())
+            return getCachedChunk(x, z, priority, false, false);
+        else
+            return getChunk(x, z, priority, false, false);
+    }
+    
+    private void setWindow(ChunkWindow window, int x0, int z0)
     {        
         if(lightingEnabled)
-            invalidateLights();
+            invalidateLights(window);
+        
+        // window hits bypass the cache, count them once as the window moves
+        synchronized(cache)
+        {
+            for(ManagedChunk chunk : window.chunks)
+                if(chunk != null)
+                    cache.refresh(chunk, priority_access);
+        }
         
         int offset = windowSize >> 1;
-        windowMinX = x0 - offset;
-        windowMinZ = z0 - offset;
-        Arrays.fill(window, null);
+        window.minX = x0 - offset;
+        window.minZ = z0 - offset;
+        Arrays.fill(window.chunks, null);
+        
+        ChunkPrefetcher prefetcher = this.prefetcher;
+        if(prefetcher != null)
+            prefetcher.windowMoved(window.sweep, x0, z0);
+        
+        // chunks that left the window can be flushed now
+        List<ManagedChunk> released;
+        
+        synchronized(deferred)
+        {
+            released = new ArrayList<ManagedChunk>(deferred);
+            deferred.clear();
+        }
+        
+        for(ManagedChunk chunk : released)
+            requestCleanup(chunk);
     }
     
-    private void invalidateLights()
+    private void invalidateLights(ChunkWindow window)
     {
-        for(ManagedChunk chunk : window)
+        for(ManagedChunk chunk : window.chunks)
             if(chunk != null && chunk.needsNeighborNotify())
                 notifyNeighbors(chunk);
     }
@@ -203,30 +544,76 @@ public class ChunkManager
     {        
         int x = chunk.getX();
         int z = chunk.getZ();
+        int sections = chunk.validateNeighborNotify();
+        
+        if(sections == 0)
+            return;
         
-        notifyIfExists(getChunk(x - 1, z - 1, priority_light, false, false));
-        notifyIfExists(getChunk(x, z - 1, priority_light, false, false));
-        notifyIfExists(getChunk(x + 1, z - 1, priority_light, false, false));
-        notifyIfExists(getChunk(x - 1, z, priority_light, false, false));
-        notifyIfExists(getChunk(x + 1, z, priority_light, false, false));
-        notifyIfExists(getChunk(x - 1, z + 1, priority_light, false, false));
-        notifyIfExists(getChunk(x, z + 1, priority_light, false, false));
-        notifyIfExists(getChunk(x + 1, z + 1, priority_light, false, false));
+        notifyIfExists(getNeighbor(x - 1, z - 1, priority_light), sections);
+        notifyIfExists(getNeighbor(x, z - 1, priority_light), sections);
+        notifyIfExists(getNeighbor(x + 1, z - 1, priority_light), sections);
+        notifyIfExists(getNeighbor(x - 1, z, priority_light), sections);
+        notifyIfExists(getNeighbor(x + 1, z, priority_light), sections);
+        notifyIfExists(getNeighbor(x - 1, z + 1, priority_light), sections);
+        notifyIfExists(getNeighbor(x, z + 1, priority_light), sections);
+        notifyIfExists(getNeighbor(x + 1, z + 1, priority_light), sections);
         
-        cache.refresh(chunk, priority_light);
-        chunk.validateNeighborNotify();
+        synchronized(cache)
+        {
+            cache.refresh(chunk, priority_light);
+        }
     }
     
-    private void notifyIfExists(ManagedChunk chunk)
+    private void notifyIfExists(ManagedChunk chunk, int sections)
     {
         if(chunk != null)
-            chunk.invalidateLights();
+            chunk.invalidateLights(sections);
     }
     
     private final boolean inWindow(int x, int z)
     {
         return (x & windowMask) == x && (z & windowMask) == z;
     }
+    
+    /** 
+     * Checks if any window holds a chunk within the flush lock radius. A 
+     * window owner may be editing those chunks, or relighting their 
+     * neighbors, which overlap the chunks a flush relights. Must be called
+     * with the stripes around the chunk held, as the slots checked here are
+     * only filled under those locks.
+     */
+    private boolean isNearWindow(ManagedChunk chunk)
+    {
+        int r = flush_lock_radius;
+        
+        for(ChunkWindow window : getWindows())
+        {
+            int minX = window.minX;
+            int minZ = window.minZ;
+            
+            for(int z = chunk.getZ() - r; z <= chunk.getZ() + r; z++)
+            {
+                for(int x = chunk.getX() - r; x <= chunk.getX() + r; x++)
+                {
+                    int winX = x - minX;
+                    int winZ = z - minZ;
+                    
+                    if(inWindow(winX, winZ) && window.chunks[winX + (winZ << windowScale)] != null)
+                        return true;
+                }
+            }
+        }
+        
+        return false;
+    }
+    
+    private List<ChunkWindow> getWindows()
+    {
+        synchronized(windowOwners)
+        {
+            return new ArrayList<ChunkWindow>(windowOwners.values());
+        }
+    }
 
     protected void requestCleanup(ManagedChunk chunk)
     {
@@ -236,25 +623,92 @@ public class ChunkManager
         synchronized(cleanup)
         {
             cleanup.add(chunk);
+            metrics.setCleanupQueueDepth(cleanup.size());
         }
     }
     
     private void doCleanup(int minimumQueueSize)
     {
-        if(cleanup.size() < minimumQueueSize)
-            return;
-
+        List<ManagedChunk> remove;
+        
         synchronized(cleanup)
         {
-            List<ManagedChunk> remove = new ArrayList<ManagedChunk>(cleanup);
-            cleanup.clear();
+            if(cleanup.size() < minimumQueueSize)
+                return;
             
-            for(ManagedChunk chunk : remove)
-                flushChanges(chunk);
+            remove = new ArrayList<ManagedChunk>(cleanup);
+            cleanup.clear();
+            metrics.setCleanupQueueDepth(0);
+        }
+        
+        ChunkFlusher flusher = this.flusher;
+        ChunkRelighter relighter = windows.get().relighter;
+        
+        for(ManagedChunk chunk : remove)
+        {
+            // the flusher checks for nearby windows itself
+            if(flusher == null)
+                flushOrDefer(chunk, relighter);
+            else
+                submitChanges(flusher, chunk);
+        }
+    }
+    
+    private void defer(ManagedChunk chunk)
+    {
+        synchronized(deferred)
+        {
+            deferred.add(chunk);
+        }
+    }
+    
+    private void submitChanges(ChunkFlusher flusher, ManagedChunk chunk)
+    {
+        try
+        {
+            flusher.submit(chunk);
+        }
+        catch(InterruptedException e)
+        {
+            // flushing here could wait on the flusher while holding its locks
+            Thread.currentThread().interrupt();
+            defer(chunk);
         }
     }
 
-    private boolean flushChanges(ManagedChunk chunk)
+    protected boolean flushChanges(ManagedChunk chunk, ChunkRelighter relighter)
+    {
+        return flushChanges(chunk, relighter, null);
+    }
+    
+    /**
+     * Flushes a chunk, or defers it until a window moves if a window holds 
+     * a chunk nearby. Chunks are only placed in a window under their stripe
+     * lock, so holding the stripes around the chunk keeps windows from 
+     * reaching it until the flush is done.
+     */
+    protected void flushOrDefer(ManagedChunk chunk, ChunkRelighter relighter)
+    {
+        Object[] locks = getNeighborhoodStripes(chunk.getX(), chunk.getZ());
+        flushOrDefer(chunk, relighter, locks, 0);
+    }
+    
+    private void flushOrDefer(ManagedChunk chunk, ChunkRelighter relighter, Object[] locks, int index)
+    {
+        if(index < locks.length)
+        {
+            synchronized(locks[index])
+            {
+                flushOrDefer(chunk, relighter, locks, index + 1);
+            }
+        }
+        else if(isNearWindow(chunk))
+            defer(chunk);
+        else
+            flushChanges(chunk, relighter);
+    }
+    
+    private boolean flushChanges(ManagedChunk chunk, ChunkRelighter relighter, List<ManagedChunk> batch)
     {
         if(debug)
             log("FLUSH_CHANGES " + chunk.getX() + " " + chunk.getZ());
@@ -262,25 +716,39 @@ public class ChunkManager
         if(readOnly)
             return false;
         
+        long start = System.nanoTime();
         boolean pendingChanges = false;
 
+        // relighting first may add sections for neighbors to relight
+        if(lightingEnabled && chunk.needsRelight())
+            relightChunk(chunk, relighter);
+        
         if(chunk.needsNeighborNotify())
         {
             notifyNeighbors(chunk);
             pendingChanges = true;
         }
         
-        if(lightingEnabled && chunk.needsRelight())
-            relightChunk(chunk);
-        
         if(chunk.needsWrite())
-            writeChunk(chunk);
+        {
+            if(batch == null)
+                writeChunk(chunk);
+            else
+                batch.add(chunk);
+        }
 
+        metrics.flush(System.nanoTime() - start);
         return pendingChanges;
     }
         
-    private void relightChunk(ManagedChunk chunk)
+    private void relightChunk(ManagedChunk chunk, ChunkRelighter relighter)
     {
+        // validate first, so changes made by other threads during the relight stick
+        int sections = chunk.validateLights();
+        
+        if(sections == 0)
+            return;
+        
         int x0 = chunk.getX();
         int z0 = chunk.getZ();
         
@@ -296,12 +764,19 @@ public class ChunkManager
                 if(index == 4)
                     continue;
                 
-                local[index] = getChunk(x + x0 - 1, z + z0 - 1, priority_read, false, false);
+                local[index] = getNeighbor(x + x0 - 1, z + z0 - 1, priority_read);
             }
         }
 
-        relighter.lightChunks(local);
-        chunk.validateLights();
+        long start = System.nanoTime();
+        int relit = relighter.lightChunks(local, sections);
+        metrics.relight(System.nanoTime() - start);
+        
+        // heightmap changes reach beyond the sections that changed
+        int changed = relit & ~ChunkRelighter.expand(sections);
+        
+        if(changed != 0)
+            chunk.invalidateNeighbors(changed);
     }
     
     public void closeAll()
@@ -315,43 +790,155 @@ public class ChunkManager
         if(debug)
             log("UNLOADING_CACHE *");
 
-        invalidateLights();
-            
-        while(!cache.isEmpty())
+        ChunkPrefetcher prefetcher = this.prefetcher;
+        if(prefetcher != null)
+            prefetcher.cancel();
+        
+        ChunkFlusher flusher = this.flusher;
+        if(flusher != null)
+            flusher.drain();
+        
+        List<ChunkWindow> owned = getWindows();
+        ChunkRelighter relighter = windows.get().relighter;
+        
+        for(ChunkWindow window : owned)
+            invalidateLights(window);
+        
+        synchronized(deferred)
+        {
+            synchronized(cleanup)
+            {
+                cleanup.addAll(deferred);
+                deferred.clear();
+            }
+        }
+        
+        while(!isCacheEmpty())
         {
-            cache.clear();
-            flushWeakReferences();
-            doCleanup(0);
+            synchronized(cache)
+            {
+                cache.clear();
+            }
+            
+            flushWeakReferences(relighter);
+            flushCleanup(relighter);
         }
 
-        Arrays.fill(window, null);
+        for(ChunkWindow window : owned)
+            Arrays.fill(window.chunks, null);
 
+        // chunks modified from here on pin the manager again
+        if(pinned)
+        {
+            pinned = false;
+            CloseOpenChunks.unpin(this);
+        }
+        
         if(debug)
             log("CACHE_UNLOADED");
     }
     
-    private void flushWeakReferences()
+    private boolean isCacheEmpty()
+    {
+        synchronized(cache)
+        {
+            return cache.isEmpty();
+        }
+    }
+    
+    private void flushCleanup(ChunkRelighter relighter)
+    {
+        List<ManagedChunk> remove;
+        
+        synchronized(cleanup)
+        {
+            remove = new ArrayList<ManagedChunk>(cleanup);
+            cleanup.clear();
+            metrics.setCleanupQueueDepth(0);
+        }
+        
+        flushAll(remove, relighter);
+    }
+    
+    /** Flushes chunks in region order, writing them in batches. **/
+    private void flushAll(List<ManagedChunk> chunks, ChunkRelighter relighter)
+    {
+        Collections.sort(chunks, new RegionComparator());
+        List<ManagedChunk> batch = new ArrayList<ManagedChunk>();
+        
+        for(ManagedChunk chunk : chunks)
+        {
+            flushChanges(chunk, relighter, batch);
+            
+            if(batch.size() >= batch_write_size)
+                writeBatch(batch, relighter);
+        }
+        
+        writeBatch(batch, relighter);
+    }
+    
+    private void writeBatch(List<ManagedChunk> batch, ChunkRelighter relighter)
+    {
+        if(batch.isEmpty())
+            return;
+        
+        // chunks flushed later may have invalidated lights of earlier ones
+        if(lightingEnabled)
+            for(ManagedChunk chunk : batch)
+                if(chunk.needsRelight())
+                    relightChunk(chunk, relighter);
+        
+        // validate first, so changes made by other threads during the write stick
+        for(ManagedChunk chunk : batch)
+            chunk.validateFile();
+        
+        try
+        {
+            long start = System.nanoTime();
+            access.writeChunks(batch);
+            metrics.write(batch.size(), System.nanoTime() - start);
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+            
+            for(ManagedChunk chunk : batch)
+                chunk.invalidateFile();
+        }
+        
+        batch.clear();
+    }
+    
+    private void flushWeakReferences(ChunkRelighter relighter)
     {        
         List<ManagedChunk> flush = new ArrayList<ManagedChunk>();
         
-        for(WeakReference<ManagedChunk> ref : cache.getWeakReferences())
+        synchronized(cache)
         {
-            ManagedChunk chunk = ref.get();
-            if(chunk != null)
-                flush.add(chunk);
+            for(WeakReference<ManagedChunk> ref : cache.getWeakReferences())
+            {
+                ManagedChunk chunk = ref.get();
+                if(chunk != null)
+                    flush.add(chunk);
+            }
         }
         
-        for(ManagedChunk chunk : flush)
-            flushChanges(chunk);
+        flushAll(flush, relighter);
     }
 
     private ManagedChunk readChunk(int x, int z)
     {
+        long start = System.nanoTime();
+        
         try
         {
             ManagedChunk chunk = access.readChunk(x, z, this);
+            
             if(chunk != null)
-                reads++;
+                metrics.diskRead(System.nanoTime() - start);
+            else
+                metrics.diskMiss(System.nanoTime() - start);
+            
             return chunk;
         }
         catch(IOException e)
@@ -363,16 +950,19 @@ public class ChunkManager
 
     private boolean writeChunk(ManagedChunk chunk)
     {
+        chunk.validateFile();
+        
         try
         {
+            long start = System.nanoTime();
             access.writeChunk(chunk);
-            chunk.validateFile();
-            writes++;
+            metrics.write(1, System.nanoTime() - start);
             return true;
         }
         catch(IOException e)
         {
             e.printStackTrace();
+            chunk.invalidateFile();
             return false;
         }
     }
@@ -399,17 +989,31 @@ public class ChunkManager
 
     public int getCacheSize()
     {
-        return cache.size();
+        synchronized(cache)
+        {
+            return cache.size();
+        }
     }
     
     public int getNumReads()
     {
-        return reads;
+        return (int)metrics.getDiskReads();
     }
 
     public int getNumWrites()
     {
-        return writes;
+        return (int)metrics.getWrites();
+    }
+    
+    public int getNumPrefetches()
+    {
+        return (int)metrics.getPrefetches();
+    }
+    
+    /** Per-tier hit and miss counters, timings and flush latencies. **/
+    public ChunkMetrics getMetrics()
+    {
+        return metrics;
     }
 
     protected ChunkAccess getChunkAccess()
@@ -422,59 +1026,143 @@ public class ChunkManager
         System.out.println(str);
     }
 
-    @Override
-    protected void finalize() throws Exception
+    /** Window of recently used chunks, owned by a single thread. **/
+    static final class ChunkWindow
     {
-        closeAll();
-        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        final ManagedChunk[] chunks;
+        final ChunkRelighter relighter;
+        final ChunkPrefetcher.Sweep sweep;
+        
+        // read by flushes on other threads, slots are published by stripe locks
+        volatile int minX, minZ;
+        
+        ChunkWindow(int size)
+        {
+            chunks = new ManagedChunk[size * size];
+            relighter = new ChunkRelighter();
+            sweep = new ChunkPrefetcher.Sweep();
+        }
     }
-    
-    final class ChunkCache extends PriorityCache<ChunkID, ManagedChunk>
+
+    final class ChunkCache extends LongPriorityCache<ManagedChunk>
     {            
         public ChunkCache(int maxCapacity)
         {
-            super(maxCapacity, 0.9, true);
+            super(maxCapacity, true);
         }
 
         public ManagedChunk get(int x, int z, int priority)
         {
-            return super.get(new ChunkID(x, z), priority);
+            return super.get(Coordinate2D.pack(x, z), priority);
+        }
+        
+        public boolean isCached(int x, int z)
+        {
+            return super.isCached(Coordinate2D.pack(x, z));
         }
 
         public void put(ManagedChunk chunk, int priority)
         {
-            super.put(chunk.getID(), chunk, priority);
+            super.put(chunk.getKey(), chunk, priority);
         }
             
         public void refresh(ManagedChunk chunk, int priority)
         {
-            super.refresh(chunk.getID(), priority);
+            super.refresh(chunk.getKey(), priority);
         }
         
-        protected void expired(ChunkID key, ManagedChunk value)
+        protected void expired(long key, ManagedChunk value)
         {
-            if(value.isDirty())
+            boolean dirty = value.isDirty();
+            metrics.eviction(dirty);
+            
+            if(dirty)
                 requestCleanup(value);
         }
     }
 }
 
+final class RegionComparator implements Comparator<Chunk>
+{
+    public int compare(Chunk a, Chunk b)
+    {
+        int ax = a.getX() >> 5, az = a.getZ() >> 5;
+        int bx = b.getX() >> 5, bz = b.getZ() >> 5;
+        
+        if(ax != bx)
+            return ax < bx ? -1 : 1;
+        if(az != bz)
+            return az < bz ? -1 : 1;
+        
+        return 0;
+    }
+}
+
+/**
+ * Shutdown hook that closes every live chunk manager. Managers are tracked
+ * by weak reference, except while they hold changes that haven't been 
+ * written, so unsaved chunks are written on exit even if the manager was 
+ * dropped without calling closeAll().
+ */
 final class CloseOpenChunks extends Thread
 {
-    WeakReference<ChunkManager> ref;
+    private static final ReferenceQueue<ChunkManager> collected = new ReferenceQueue<ChunkManager>();
+    private static final Set<Reference<ChunkManager>> managers = new HashSet<Reference<ChunkManager>>();
+    private static final Set<ChunkManager> pinned = new HashSet<ChunkManager>();
+    private static CloseOpenChunks hook;
+    
+    private CloseOpenChunks()
+    {
+        super("CloseOpenChunks");
+    }
+    
+    public static synchronized void register(ChunkManager manager)
+    {
+        if(hook == null)
+        {
+            hook = new CloseOpenChunks();
+            Runtime.getRuntime().addShutdownHook(hook);
+        }
+        
+        expungeStaleReferences();
+        managers.add(new WeakReference<ChunkManager>(manager, collected));
+    }
+    
+    public static synchronized void pin(ChunkManager manager)
+    {
+        pinned.add(manager);
+    }
+    
+    public static synchronized void unpin(ChunkManager manager)
+    {
+        pinned.remove(manager);
+    }
+    
+    private static void expungeStaleReferences()
+    {
+        Reference<? extends ChunkManager> ref;
+        
+        while((ref = collected.poll()) != null)
+            managers.remove(ref);
+    }
     
-    public CloseOpenChunks(ChunkManager manager)
+    private static synchronized List<ChunkManager> getManagers()
     {
-        this.ref = new WeakReference<ChunkManager>(manager);
+        List<ChunkManager> list = new ArrayList<ChunkManager>();
+        
+        for(Reference<ChunkManager> ref : managers)
+        {
+            ChunkManager manager = ref.get();
+            if(manager != null)
+                list.add(manager);
+        }
+        
+        return list;
     }
 
     public void run()
     {
-        ChunkManager manager = ref.get();        
-        if(manager == null)
-            return;
-        
-        System.gc();        
-        manager.closeAll();
+        for(ChunkManager manager : getManagers())
+            manager.closeAll();
     }    
-}
\ No newline at end of file
+}
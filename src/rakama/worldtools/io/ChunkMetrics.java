@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.io;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Hit and miss counters for each tier a ChunkManager looks in, from the
+ * window to the cache, weakly referenced chunks and finally the disk, 
+ * along with time spent reading, relighting and writing chunks. Counters 
+ * are updated from the calling, flusher and prefetcher threads.
+ * 
+ * Flush latencies are kept in a histogram where bucket i counts flushes 
+ * that took between 2^i and 2^(i+1) microseconds.
+ */
+public class ChunkMetrics implements ChunkMetricsMBean
+{
+    protected final static int histogram_buckets = 32;
+
+    private final AtomicLong windowHits, windowMisses, cacheHits, weakPromotions;
+    private final AtomicLong diskReads, diskMisses, prefetches, evictions, dirtyEvictions;
+    private final AtomicLong relights, relightNanos, readNanos, writes, writeNanos, flushes;
+    private final AtomicLongArray flushLatency;
+    private volatile int cacheSize, cleanupQueueDepth;
+    private ObjectName objectName;
+
+    public ChunkMetrics()
+    {
+        windowHits = new AtomicLong();
+        windowMisses = new AtomicLong();
+        cacheHits = new AtomicLong();
+        weakPromotions = new AtomicLong();
+        diskReads = new AtomicLong();
+        diskMisses = new AtomicLong();
+        prefetches = new AtomicLong();
+        evictions = new AtomicLong();
+        dirtyEvictions = new AtomicLong();
+        relights = new AtomicLong();
+        relightNanos = new AtomicLong();
+        readNanos = new AtomicLong();
+        writes = new AtomicLong();
+        writeNanos = new AtomicLong();
+        flushes = new AtomicLong();
+        flushLatency = new AtomicLongArray(histogram_buckets);
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, under
+     * rakama.worldtools:type=ChunkManager,name=[name].
+     */
+    public synchronized void registerMBean(String name) throws JMException
+    {
+        unregisterMBean();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("rakama.worldtools:type=ChunkManager,name=" 
+                + ObjectName.quote(name));
+        server.registerMBean(this, objectName);
+        this.objectName = objectName;
+    }
+
+    public synchronized void unregisterMBean() throws JMException
+    {
+        if(objectName == null)
+            return;
+
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        objectName = null;
+    }
+
+    protected void windowHit()
+    {
+        windowHits.incrementAndGet();
+    }
+
+    protected void windowMiss()
+    {
+        windowMisses.incrementAndGet();
+    }
+
+    protected void cacheHit()
+    {
+        cacheHits.incrementAndGet();
+    }
+
+    protected void weakPromotion()
+    {
+        weakPromotions.incrementAndGet();
+    }
+
+    protected void diskRead(long nanos)
+    {
+        diskReads.incrementAndGet();
+        readNanos.addAndGet(nanos);
+    }
+
+    protected void diskMiss(long nanos)
+    {
+        diskMisses.incrementAndGet();
+        readNanos.addAndGet(nanos);
+    }
+
+    protected void prefetch(long nanos)
+    {
+        prefetches.incrementAndGet();
+        readNanos.addAndGet(nanos);
+    }
+
+    protected void eviction(boolean dirty)
+    {
+        evictions.incrementAndGet();
+
+        if(dirty)
+            dirtyEvictions.incrementAndGet();
+    }
+
+    protected void relight(long nanos)
+    {
+        relights.incrementAndGet();
+        relightNanos.addAndGet(nanos);
+    }
+
+    protected void write(int count, long nanos)
+    {
+        writes.addAndGet(count);
+        writeNanos.addAndGet(nanos);
+    }
+
+    protected void flush(long nanos)
+    {
+        flushes.incrementAndGet();
+        long micros = nanos / 1000;
+        int bucket = (micros <= 0) ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+        flushLatency.incrementAndGet(Math.min(bucket, histogram_buckets - 1));
+    }
+
+    protected void setCacheSize(int size)
+    {
+        cacheSize = size;
+    }
+
+    protected void setCleanupQueueDepth(int depth)
+    {
+        cleanupQueueDepth = depth;
+    }
+
+    /** Chunks found in the window. **/
+    public long getWindowHits()
+    {
+        return windowHits.get();
+    }
+
+    /** Lookups that went past the window. **/
+    public long getWindowMisses()
+    {
+        return windowMisses.get();
+    }
+
+    /** Chunks found in the cache. **/
+    public long getCacheHits()
+    {
+        return cacheHits.get();
+    }
+
+    /** Evicted chunks that were still reachable and moved back into the cache. **/
+    public long getWeakPromotions()
+    {
+        return weakPromotions.get();
+    }
+
+    /** Chunks read from disk on demand. **/
+    public long getDiskReads()
+    {
+        return diskReads.get();
+    }
+
+    /** Lookups that didn't find the chunk on disk either. **/
+    public long getDiskMisses()
+    {
+        return diskMisses.get();
+    }
+
+    /** Chunks read from disk by the prefetcher. **/
+    public long getPrefetches()
+    {
+        return prefetches.get();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    /** Evicted chunks that had to be queued for flushing. **/
+    public long getDirtyEvictions()
+    {
+        return dirtyEvictions.get();
+    }
+
+    public int getCacheSize()
+    {
+        return cacheSize;
+    }
+
+    public int getCleanupQueueDepth()
+    {
+        return cleanupQueueDepth;
+    }
+
+    public long getRelights()
+    {
+        return relights.get();
+    }
+
+    public long getRelightMillis()
+    {
+        return relightNanos.get() / 1000000;
+    }
+
+    /** Time spent reading, inflating and decoding chunks, including prefetches. **/
+    public long getReadMillis()
+    {
+        return readNanos.get() / 1000000;
+    }
+
+    public long getWrites()
+    {
+        return writes.get();
+    }
+
+    /** Time spent encoding, compressing and writing chunks. **/
+    public long getWriteMillis()
+    {
+        return writeNanos.get() / 1000000;
+    }
+
+    public long getFlushes()
+    {
+        return flushes.get();
+    }
+
+    public long[] getFlushLatencyHistogram()
+    {
+        long[] histogram = new long[histogram_buckets];
+
+        for(int i = 0; i < histogram_buckets; i++)
+            histogram[i] = flushLatency.get(i);
+
+        return histogram;
+    }
+
+    /**
+     * Returns an upper bound for the given percentile of flush latencies, 
+     * in microseconds, or 0 if nothing has been flushed.
+     * 
+     * @param percentile in the range [0, 100]
+     */
+    public long getFlushLatencyPercentile(double percentile)
+    {
+        long[] histogram = getFlushLatencyHistogram();
+        long total = 0;
+
+        for(long count : histogram)
+            total += count;
+
+        if(total == 0)
+            return 0;
+
+        long rank = (long)Math.ceil(total * Math.max(0, Math.min(100, percentile)) / 100);
+        long seen = 0;
+
+        for(int i = 0; i < histogram_buckets; i++)
+        {
+            seen += histogram[i];
+
+            if(seen >= rank && seen > 0)
+                return 1L << (i + 1);
+        }
+
+        return 1L << histogram_buckets;
+    }
+
+    public void reset()
+    {
+        AtomicLong[] counters = {windowHits, windowMisses, cacheHits, weakPromotions, 
+                diskReads, diskMisses, prefetches, evictions, dirtyEvictions, relights, 
+                relightNanos, readNanos, writes, writeNanos, flushes};
+
+        for(AtomicLong counter : counters)
+            counter.set(0);
+
+        for(int i = 0; i < histogram_buckets; i++)
+            flushLatency.set(i, 0);
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder str = new StringBuilder();
+        str.append("window " + getWindowHits() + "/" + getWindowMisses() + " (hit/miss), ");
+        str.append("cache " + getCacheHits() + ", weak " + getWeakPromotions() + ", ");
+        str.append("disk " + getDiskReads() + "/" + getDiskMisses() + " (hit/miss), ");
+        str.append("prefetch " + getPrefetches() + ", ");
+        str.append("evicted " + getEvictions() + " (" + getDirtyEvictions() + " dirty), ");
+        str.append("read " + getReadMillis() + "ms, ");
+        str.append("relight " + getRelights() + " in " + getRelightMillis() + "ms, ");
+        str.append("write " + getWrites() + " in " + getWriteMillis() + "ms, ");
+        str.append("flush p50/p99 " + getFlushLatencyPercentile(50) + "/" 
+                + getFlushLatencyPercentile(99) + "us");
+        return str.toString();
+    }
+}
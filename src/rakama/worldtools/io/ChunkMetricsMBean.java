@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.io;
+
+/**
+ * JMX view of the counters kept by a ChunkManager. Times are cumulative.
+ */
+public interface ChunkMetricsMBean
+{
+    public long getWindowHits();
+
+    public long getWindowMisses();
+
+    public long getCacheHits();
+
+    public long getWeakPromotions();
+
+    public long getDiskReads();
+
+    public long getDiskMisses();
+
+    public long getPrefetches();
+
+    public long getEvictions();
+
+    public long getDirtyEvictions();
+
+    public int getCacheSize();
+
+    public int getCleanupQueueDepth();
+
+    public long getRelights();
+
+    public long getRelightMillis();
+
+    public long getReadMillis();
+
+    public long getWrites();
+
+    public long getWriteMillis();
+
+    public long getFlushes();
+
+    public long[] getFlushLatencyHistogram();
+
+    public long getFlushLatencyPercentile(double percentile);
+
+    public void reset();
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.io;
+
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Background thread that watches the window moves of a ChunkManager and,
+ * once a window has moved the same way twice in a row, reads the chunks
+ * of the next windows along that direction into the cache. Each thread's
+ * window is tracked as a separate Sweep, and a prediction replaces any 
+ * requests left over from the previous one of the same sweep.
+ */
+final class ChunkPrefetcher extends Thread
+{
+    protected final static int min_streak = 2;
+
+    private final ChunkManager manager;
+    private final BlockingQueue<Request> queue;
+    private final int windowSize, lookahead;
+    private int generation;
+    private boolean busy;
+
+    public ChunkPrefetcher(ChunkManager manager, int windowSize, int lookahead)
+    {
+        super("ChunkPrefetcher");
+        setDaemon(true);
+        this.manager = manager;
+        this.windowSize = windowSize;
+        this.lookahead = lookahead;
+        this.queue = new LinkedBlockingQueue<Request>();
+    }
+
+    /** Called by the thread owning a window when it is re-centered on a chunk. **/
+    public void windowMoved(Sweep sweep, int x, int z)
+    {
+        int dx = x - sweep.lastX;
+        int dz = z - sweep.lastZ;
+        boolean first = !sweep.hasLast;
+
+        sweep.lastX = x;
+        sweep.lastZ = z;
+        sweep.hasLast = true;
+
+        if(first)
+            return;
+
+        // jumps further than a window aren't part of a sweep
+        if(Math.abs(dx) > windowSize || Math.abs(dz) > windowSize || (dx == 0 && dz == 0))
+        {
+            sweep.streak = 0;
+            clear(sweep);
+            return;
+        }
+
+        if(Integer.signum(dx) == Integer.signum(sweep.dirX) && Integer.signum(dz) == Integer.signum(sweep.dirZ))
+            sweep.streak++;
+        else
+            sweep.streak = 1;
+
+        sweep.dirX = dx;
+        sweep.dirZ = dz;
+
+        if(sweep.streak < min_streak)
+        {
+            clear(sweep);
+            return;
+        }
+
+        predict(sweep, x, z, dx, dz);
+    }
+
+    private void predict(Sweep sweep, int x, int z, int dx, int dz)
+    {
+        clear(sweep);
+        int offset = windowSize >> 1;
+
+        // nearest window first, so the next miss is most likely covered
+        for(int i = 1; i <= lookahead; i++)
+        {
+            int minX = x + dx * i - offset;
+            int minZ = z + dz * i - offset;
+
+            for(int wz = minZ; wz < minZ + windowSize; wz++)
+                for(int wx = minX; wx < minX + windowSize; wx++)
+                    if(!isPredicted(wx, wz, x, z, dx, dz, i - 1))
+                        queue.add(new Request(sweep, wx, wz));
+        }
+    }
+
+    /** Checks if a chunk lies in the current window or an earlier predicted one. **/
+    private boolean isPredicted(int x, int z, int x0, int z0, int dx, int dz, int windows)
+    {
+        int offset = windowSize >> 1;
+
+        for(int i = 0; i <= windows; i++)
+        {
+            int minX = x0 + dx * i - offset;
+            int minZ = z0 + dz * i - offset;
+
+            if(x >= minX && x < minX + windowSize && z >= minZ && z < minZ + windowSize)
+                return true;
+        }
+
+        return false;
+    }
+
+    /** Drops the pending requests of one sweep. **/
+    private void clear(Sweep sweep)
+    {
+        Iterator<Request> iter = queue.iterator();
+
+        while(iter.hasNext())
+            if(iter.next().sweep == sweep)
+                iter.remove();
+    }
+
+    /** Drops pending requests and waits for the current read to finish. **/
+    public synchronized void cancel()
+    {
+        queue.clear();
+        generation++;
+        boolean interrupted = false;
+
+        while(busy)
+        {
+            try
+            {
+                wait();
+            }
+            catch(InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    public void shutdown()
+    {
+        cancel();
+        interrupt();
+    }
+
+    private synchronized int getGeneration()
+    {
+        return generation;
+    }
+
+    /** Claims a request, unless cancel() was called since it was taken. **/
+    private synchronized boolean begin(int takenGeneration)
+    {
+        if(takenGeneration != generation)
+            return false;
+
+        busy = true;
+        return true;
+    }
+
+    private synchronized void end()
+    {
+        busy = false;
+        notifyAll();
+    }
+
+    @Override
+    public void run()
+    {
+        while(!isInterrupted())
+        {
+            Request request;
+            int takenGeneration = getGeneration();
+
+            try
+            {
+                request = queue.take();
+            }
+            catch(InterruptedException e)
+            {
+                break;
+            }
+
+            if(!begin(takenGeneration))
+                continue;
+
+            try
+            {
+                manager.prefetchChunk(request.x, request.z);
+            }
+            catch(RuntimeException e)
+            {
+                e.printStackTrace();
+            }
+            finally
+            {
+                end();
+            }
+        }
+    }
+
+    /** Window moves of one thread. **/
+    static final class Sweep
+    {
+        private int lastX, lastZ, dirX, dirZ, streak;
+        private boolean hasLast;
+    }
+
+    private static final class Request
+    {
+        final Sweep sweep;
+        final int x, z;
+
+        Request(Sweep sweep, int x, int z)
+        {
+            this.sweep = sweep;
+            this.x = x;
+            this.z = z;
+        }
+    }
+}
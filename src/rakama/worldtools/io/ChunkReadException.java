@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.io;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import rakama.worldtools.coord.Coordinate2D;
+
+/**
+ * Thrown by a bulk read after every readable chunk was delivered, listing 
+ * the chunks that couldn't be read along with the cause for each.
+ */
+public class ChunkReadException extends IOException
+{
+    private static final long serialVersionUID = 1L;
+    
+    private final Map<Coordinate2D, IOException> failures;
+
+    public ChunkReadException(Map<Coordinate2D, IOException> failures)
+    {
+        super(failures.size() + " chunks could not be read, first " + first(failures),
+                failures.isEmpty() ? null : failures.values().iterator().next());
+        this.failures = Collections.unmodifiableMap(failures);
+    }
+
+    public Set<Coordinate2D> getFailedChunks()
+    {
+        return failures.keySet();
+    }
+
+    public Map<Coordinate2D, IOException> getFailures()
+    {
+        return failures;
+    }
+
+    private static Coordinate2D first(Map<Coordinate2D, IOException> failures)
+    {
+        return failures.isEmpty() ? null : failures.keySet().iterator().next();
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.io;
+
+import java.io.File;
+
+import net.minecraft.world.level.chunk.storage.RegionFile;
+
+/**
+ * Region file that accepts chunk data that has already been deflated, so
+ * callers can compress into their own reusable buffers.
+ */
+class ChunkRegionFile extends RegionFile
+{
+    public ChunkRegionFile(File path)
+    {
+        super(path);
+    }
+
+    /**
+     * Stores zlib compressed chunk data, allocating sectors as needed.
+     * 
+     * @param x local chunk x coordinate [0, 31]
+     * @param z local chunk z coordinate [0, 31]
+     * @param data zlib stream, without the length or version fields
+     * @param length number of bytes of data to write
+     */
+    public void writeDeflated(int x, int z, byte[] data, int length)
+    {
+        write(x, z, data, length);
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Persisted record of a whole-world job, used to process only the chunks 
+ * written since the job's last completed run started. Chunk timestamps come 
+ * from the region headers and have a resolution of one second, so starting 
+ * a run waits for the current second to end. Chunks written while a run is 
+ * in progress are then processed by the next run.
+ * <p>
+ * A job keeps its own writes out of the next run by giving them a header 
+ * timestamp no later than {@link #getLastStarted()}.
+ */
+public class JobManifest
+{
+    private final File file;
+    private final Properties properties;
+    private int runStarted;
+
+    protected JobManifest(File file)
+    {
+        this.file = file;
+        this.properties = new Properties();
+    }
+
+    /**
+     * Loads a manifest, or creates an empty one if the file doesn't exist.
+     * 
+     * @param file location of the manifest
+     */
+    public static JobManifest load(File file) throws IOException
+    {
+        JobManifest manifest = new JobManifest(file);
+
+        if(!file.exists())
+            return manifest;
+
+        InputStream in = new FileInputStream(file);
+
+        try
+        {
+            manifest.properties.load(in);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Returns the time the job last completed, in seconds since the epoch, 
+     * or 0 if it never has.
+     */
+    public int getLastCompleted()
+    {
+        return getInt("completed");
+    }
+
+    /**
+     * Returns the start of the last completed run, in seconds since the 
+     * epoch, or 0 if no run has completed. Chunks with a later timestamp 
+     * were written since.
+     */
+    public int getLastStarted()
+    {
+        return getInt("started");
+    }
+
+    public int getLastProcessed()
+    {
+        return getInt("processed");
+    }
+
+    public boolean hasCompleted()
+    {
+        return getLastCompleted() > 0;
+    }
+
+    /** 
+     * Starts a run, once the clock has moved past the current second. The 
+     * start is only recorded if the run completes.
+     * 
+     * @return the start of the run, in seconds since the epoch
+     */
+    public int startRun()
+    {
+        runStarted = awaitNextSecond();
+        return runStarted;
+    }
+
+    /**
+     * Records a successful run and saves the manifest. Runs that processed 
+     * only some of their chunks must not complete, so the next run sees the
+     * same chunks again.
+     * 
+     * @param processed number of chunks the run processed
+     */
+    public void completeRun(int processed) throws IOException
+    {
+        if(runStarted == 0)
+            throw new IllegalStateException("Run not started");
+
+        setInt("started", runStarted);
+        setInt("completed", currentTime());
+        setInt("processed", processed);
+        save();
+        runStarted = 0;
+    }
+
+    public void save() throws IOException
+    {
+        File dir = file.getAbsoluteFile().getParentFile();
+
+        if(dir != null && !dir.exists() && !dir.mkdirs())
+            throw new IOException("Unable to create " + dir.getPath());
+
+        // replace the old manifest only once the new one is complete
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+
+        try
+        {
+            properties.store(out, "worldtools job manifest");
+        }
+        finally
+        {
+            out.close();
+        }
+
+        try
+        {
+            Files.move(temp.toPath(), file.toPath(), 
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(IOException e)
+        {
+            // the old manifest is still in place
+            temp.delete();
+            throw e;
+        }
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    private int getInt(String key)
+    {
+        String value = properties.getProperty(key);
+
+        if(value == null)
+            return 0;
+
+        try
+        {
+            return Integer.parseInt(value.trim());
+        }
+        catch(NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    private void setInt(String key, int value)
+    {
+        properties.setProperty(key, Integer.toString(value));
+    }
+
+    private static int currentTime()
+    {
+        // same resolution as region header timestamps
+        return (int)(System.currentTimeMillis() / 1000L);
+    }
+
+    /** 
+     * Returns the current time, after waiting for the second to end. Chunks 
+     * written before the call are then timestamped at or before the returned 
+     * time, and chunks written after the call strictly after it.
+     */
+    private static int awaitNextSecond()
+    {
+        int time = currentTime();
+        boolean interrupted = false;
+
+        while(currentTime() <= time)
+        {
+            try
+            {
+                Thread.sleep(1000 - System.currentTimeMillis() % 1000 + 1);
+            }
+            catch(InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+
+        if(interrupted)
+            Thread.currentThread().interrupt();
+
+        return time;
+    }
+}
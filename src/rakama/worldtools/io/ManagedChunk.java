@@ -16,11 +16,17 @@
 
 package rakama.worldtools.io;
 
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import rakama.worldtools.coord.Coordinate2D;
 import rakama.worldtools.data.Biome;
 import rakama.worldtools.data.Block;
 import rakama.worldtools.data.Chunk;
 import rakama.worldtools.data.Entity;
+import rakama.worldtools.data.Projection;
+import rakama.worldtools.data.Section;
 import rakama.worldtools.data.TileEntity;
 import rakama.worldtools.data.entity.EntityFactory;
 
@@ -31,20 +37,30 @@ import com.mojang.nbt.IntTag;
 import com.mojang.nbt.ListTag;
 import com.mojang.nbt.Tag;
 
+/**
+ * Chunk that tracks its own changes for the ChunkManager. Sections are
+ * ManagedSections, which report block changes per section, so relighting
+ * and neighbor notification only cover the sections that changed. Masks
+ * hold one bit per section index.
+ */
 public class ManagedChunk extends Chunk
 {
+    public static final int all_sections = (1 << num_sections) - 1;
+    
     private ChunkManager manager;
-    private ChunkID id;
-    private boolean needsWrite, needsRelight, needsNeighborNotify;
+    private long key;
+    private volatile boolean needsWrite;
+    private volatile boolean flushPending;
+    private final AtomicInteger relightSections, notifySections;
 
     public ManagedChunk(int x, int z, ChunkManager manager)
     {
         super(x, z);
         this.manager = manager;
         this.needsWrite = false;
-        this.needsRelight = false;
-        this.needsNeighborNotify = false;
-        this.id = new ChunkID(x, z);
+        this.relightSections = new AtomicInteger();
+        this.notifySections = new AtomicInteger();
+        this.key = Coordinate2D.pack(x, z);
     }
     
     public ManagedChunk(int x, int z, int[] heightmap, byte[] biomes, ChunkManager manager)
@@ -52,24 +68,24 @@ public class ManagedChunk extends Chunk
         super(x, z, heightmap, biomes);
         this.manager = manager;
         this.needsWrite = false;
-        this.needsRelight = false;
-        this.needsNeighborNotify = false;
-        this.id = new ChunkID(x, z);
+        this.relightSections = new AtomicInteger();
+        this.notifySections = new AtomicInteger();
+        this.key = Coordinate2D.pack(x, z);
     }
 
     public boolean isDirty()
     {
-        return needsNeighborNotify || needsRelight || needsWrite;
+        return needsNeighborNotify() || needsRelight() || needsWrite;
     }
     
     public boolean needsNeighborNotify()
     {
-        return needsNeighborNotify;
+        return notifySections.get() != 0;
     }
     
     public boolean needsRelight()
     {
-        return needsRelight;
+        return relightSections.get() != 0;
     }
 
     public boolean needsWrite()
@@ -77,14 +93,28 @@ public class ManagedChunk extends Chunk
         return needsWrite;
     }
 
-    public void validateNeighborNotify()
+    /** Returns the sections whose changes should be relit. **/
+    public int getRelightSections()
+    {
+        return relightSections.get();
+    }
+
+    /** Returns the sections whose changes neighbors should be notified of. **/
+    public int getNotifySections()
+    {
+        return notifySections.get();
+    }
+
+    /** Clears and returns the sections to notify neighbors of. **/
+    public int validateNeighborNotify()
     {
-        this.needsNeighborNotify = false;
+        return notifySections.getAndSet(0);
     }
 
-    public void validateLights()
+    /** Clears and returns the sections to relight. **/
+    public int validateLights()
     {
-        this.needsRelight = false;
+        return relightSections.getAndSet(0);
     }
     
     public void validateFile()
@@ -94,15 +124,43 @@ public class ManagedChunk extends Chunk
     
     public void invalidateBlocks()
     {
-        invalidateFile();        
-        this.needsRelight = true;
-        this.needsNeighborNotify = true;
+        invalidateBlocks(all_sections);
+    }
+
+    /** Marks block changes in sections, for relighting and neighbor notification. **/
+    public void invalidateBlocks(int sections)
+    {
+        invalidateFile();
+        addSections(relightSections, sections);
+        addSections(notifySections, sections);
     }
 
     public void invalidateLights()
+    {
+        invalidateLights(all_sections);
+    }
+
+    /** Marks sections for relighting, such as after a neighbor changed. **/
+    public void invalidateLights(int sections)
     {
         invalidateFile();
-        this.needsRelight = true;
+        addSections(relightSections, sections);
+    }
+
+    /** Marks sections whose lights changed beyond the blocks that were edited. **/
+    protected void invalidateNeighbors(int sections)
+    {
+        addSections(notifySections, sections);
+    }
+    
+    private static void addSections(AtomicInteger mask, int sections)
+    {
+        int prev;
+        
+        // avoid redundant writes on the setBlock path
+        while(((prev = mask.get()) & sections) != sections)
+            if(mask.compareAndSet(prev, prev | sections))
+                return;
     }
     
     public void invalidateFile()
@@ -110,7 +168,21 @@ public class ManagedChunk extends Chunk
         if(manager.isReadOnly())
             throw new IllegalStateException("Cannot modify chunk data (read only)");
         
-        this.needsWrite = true;
+        if(!needsWrite)
+        {
+            this.needsWrite = true;
+            manager.chunkDirtied(this);
+        }
+    }
+    
+    protected boolean isFlushPending()
+    {
+        return flushPending;
+    }
+    
+    protected void setFlushPending(boolean flushPending)
+    {
+        this.flushPending = flushPending;
     }
 
     @Override
@@ -122,6 +194,7 @@ public class ManagedChunk extends Chunk
     @Override
     public void setHeight(int x, int z, int val)
     {
+        checkLoaded(Projection.HEIGHTMAP);
         invalidateFile();
         super.setHeight(x, z, val);
     }
@@ -129,6 +202,7 @@ public class ManagedChunk extends Chunk
     @Override
     public void setBiome(int x, int z, int val)
     {
+        checkLoaded(Projection.BIOMES);
         invalidateFile();
         super.setBiome(x, z, val);
     }
@@ -136,6 +210,7 @@ public class ManagedChunk extends Chunk
     @Override
     public void setBiome(int x, int z, Biome biome)
     {
+        checkLoaded(Projection.BIOMES);
         invalidateFile();
         super.setBiome(x, z, biome);
     }
@@ -143,55 +218,60 @@ public class ManagedChunk extends Chunk
     @Override
     public void setBlock(int x, int y, int z, Block block)
     {
-        invalidateBlocks();
+        checkLoaded(Projection.BLOCKS);
         super.setBlock(x, y, z, block);
     }
 
     @Override
     public void setBlockID(int x, int y, int z, int val)
     {
-        invalidateBlocks();
+        checkLoaded(Projection.BLOCKS);
         super.setBlockID(x, y, z, val);
     }
 
     @Override
     public void setMetaData(int x, int y, int z, int val)
     {
-        invalidateBlocks();
+        checkLoaded(Projection.BLOCKS);
         super.setMetaData(x, y, z, val);
     }
 
     @Override
     public void setBlockLight(int x, int y, int z, int val)
     {
-        invalidateLights();
+        checkLoaded(Projection.LIGHT);
         super.setBlockLight(x, y, z, val);
+        invalidateLights(1 << (y >> 4));
     }
     
     @Override
     public void setSkyLight(int x, int y, int z, int val)
     {
-        invalidateLights();
+        checkLoaded(Projection.LIGHT);
         super.setSkyLight(x, y, z, val);
+        invalidateLights(1 << (y >> 4));
     }
     
     @Override
     public void clearBlockLights()
     {
-        invalidateLights();
+        checkLoaded(Projection.LIGHT);
         super.clearBlockLights();
+        invalidateLights();
     }
 
     @Override
     public void clearSkyLights()
     {
-        invalidateLights();
+        checkLoaded(Projection.LIGHT);
         super.clearSkyLights();
+        invalidateLights();
     }
 
     @Override
     public void addEntity(Entity e)
     {
+        checkLoaded(Projection.ENTITIES);
         invalidateFile();
         super.addEntity(e);
     }
@@ -199,6 +279,7 @@ public class ManagedChunk extends Chunk
     @Override
     public void addTileEntity(TileEntity e)
     {
+        checkLoaded(Projection.ENTITIES);
         invalidateFile();
         super.addTileEntity(e);
     }
@@ -206,6 +287,7 @@ public class ManagedChunk extends Chunk
     @Override
     public boolean removeEntity(Entity e)
     {
+        checkLoaded(Projection.ENTITIES);
         invalidateFile();
         return super.removeEntity(e);
     }
@@ -213,29 +295,50 @@ public class ManagedChunk extends Chunk
     @Override
     public boolean removeTileEntity(TileEntity e)
     {
+        checkLoaded(Projection.ENTITIES);
         invalidateFile();
         return super.removeTileEntity(e);
     }
     
+    @Override
+    protected Section newSection(int y)
+    {
+        return new ManagedSection(y, this);
+    }
+
+    /** Wraps loaded sections, so their changes are tracked. **/
+    private void manageSections()
+    {
+        for(int i = 0; i < num_sections; i++)
+        {
+            Section sec = sections.get(i);
+
+            if(sec != null && !(sec instanceof ManagedSection))
+                sections.set(i, new ManagedSection(sec, this));
+        }
+    }
+    
     protected void fixPosition(int x, int z)
     {
         if(this.x == x && this.z == z)
             return;
         
-        this.id = new ChunkID(x, z);
+        this.key = Coordinate2D.pack(x, z);
         super.setPosition(x, z);
     }
 
-    protected ChunkID getID()
+    protected long getKey()
     {
-        return id;
+        return key;
     }
     
-    @Override
-    protected void finalize() throws Throwable
+    public static ManagedChunk loadChunk(DataInput in, ChunkManager manager) throws IOException
     {
-        if(isDirty())
-            manager.requestCleanup(this);
+        ManagedChunk chunk = new ManagedChunk(0, 0, manager);
+        chunk.loadStream(in, manager.getEntityFactory(), manager.getProjection());
+        chunk.manageSections();
+        chunk.key = Coordinate2D.pack(chunk.x, chunk.z);
+        return chunk;
     }
     
     @SuppressWarnings("unchecked")
@@ -251,9 +354,8 @@ public class ManagedChunk extends Chunk
         
         ManagedChunk chunk;
         chunk = new ManagedChunk(xPos.data, zPos.data, heightmap.data, biome.data, manager);
-        // TODO: create ManagedSection to catch Section changes?
-        // TODO: alternatively, hide sections from interface
         chunk.loadSections(sections);
+        chunk.manageSections();
 
         EntityFactory factory = manager.getEntityFactory();
         
@@ -277,11 +379,3 @@ public class ManagedChunk extends Chunk
         return chunk;
     }
 }
-
-final class ChunkID extends Coordinate2D
-{    
-    public ChunkID(int x, int z)
-    {
-        super(x, z);
-    }
-}
\ No newline at end of file
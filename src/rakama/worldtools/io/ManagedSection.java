@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.io;
+
+import java.lang.ref.SoftReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import rakama.worldtools.data.Block;
+import rakama.worldtools.data.Section;
+
+/**
+ * Section of a ManagedChunk. Reports changes to the chunk, so only the
+ * sections that changed are relit, and keeps the tags written by the last
+ * encode, so unchanged sections are copied instead of encoded again.
+ *
+ * The encoded tags are softly referenced, and are dropped after every
+ * change. Changes made while the section is encoded keep the tags from
+ * being stored at all.
+ */
+public class ManagedSection extends Section
+{
+    private static final EncodedTags encoding = new EncodedTags(null);
+
+    private static final AtomicReferenceFieldUpdater<ManagedSection, EncodedTags> encodedUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(ManagedSection.class, EncodedTags.class, "encoded");
+
+    private final ManagedChunk chunk;
+    private volatile EncodedTags encoded;
+
+    public ManagedSection(int y, ManagedChunk chunk)
+    {
+        super(y);
+        this.chunk = chunk;
+    }
+
+    /** Wraps a loaded section, sharing its storage. **/
+    public ManagedSection(Section source, ManagedChunk chunk)
+    {
+        super(source);
+        this.chunk = chunk;
+    }
+
+    @Override
+    public void setBlock(int index, Block block)
+    {
+        chunk.invalidateBlocks(1 << y);
+        super.setBlock(index, block);
+        invalidateEncoding();
+    }
+
+    @Override
+    public void setBlockID(int index, int val)
+    {
+        chunk.invalidateBlocks(1 << y);
+        super.setBlockID(index, val);
+        invalidateEncoding();
+    }
+
+    @Override
+    public void setMetaData(int index, int val)
+    {
+        // metadata doesn't affect lighting
+        chunk.invalidateFile();
+        super.setMetaData(index, val);
+        invalidateEncoding();
+    }
+
+    @Override
+    protected void fillBlocks(int x0, int y0, int z0, int x1, int y1, int z1, int state)
+    {
+        chunk.invalidateBlocks(1 << y);
+        super.fillBlocks(x0, y0, z0, x1, y1, z1, state);
+        invalidateEncoding();
+    }
+
+    @Override
+    public boolean replace(int fromId, int toId)
+    {
+        if(fromId == toId || !containsBlockID(fromId))
+            return false;
+
+        chunk.invalidateBlocks(1 << y);
+        boolean found = super.replace(fromId, toId);
+        invalidateEncoding();
+        return found;
+    }
+
+    @Override
+    protected void copyBlocks(Section source, int x0, int y0, int z0, int x1, int y1, int z1)
+    {
+        chunk.invalidateBlocks(1 << y);
+        super.copyBlocks(source, x0, y0, z0, x1, y1, z1);
+        invalidateEncoding();
+    }
+
+    @Override
+    public void setBlockLight(int index, int val)
+    {
+        chunk.invalidateFile();
+        super.setBlockLight(index, val);
+        invalidateEncoding();
+    }
+
+    @Override
+    public void setSkyLight(int index, int val)
+    {
+        chunk.invalidateFile();
+        super.setSkyLight(index, val);
+        invalidateEncoding();
+    }
+
+    @Override
+    public void fillBlockLights(int val)
+    {
+        chunk.invalidateFile();
+        super.fillBlockLights(val);
+        invalidateEncoding();
+    }
+
+    @Override
+    public void fillSkyLights(int val)
+    {
+        chunk.invalidateFile();
+        super.fillSkyLights(val);
+        invalidateEncoding();
+    }
+
+    /** 
+     * Drops the encoded tags, must be called after the section changed. 
+     * Always stores, as skipping the store when no tags are seen could miss
+     * an encode that just started. The ordered store is cheaper than a 
+     * volatile write, and still makes the change visible to an encode that
+     * reads it in startEncoding().
+     */
+    protected void invalidateEncoding()
+    {
+        encodedUpdater.lazySet(this, null);
+    }
+
+    @Override
+    protected byte[] getEncodedTags()
+    {
+        EncodedTags ref = encoded;
+
+        if(ref == null)
+            return null;
+
+        return ref.get();
+    }
+
+    @Override
+    protected boolean startEncoding()
+    {
+        // reading the field makes changes invalidated before this visible to the encode
+        encodedUpdater.getAndSet(this, encoding);
+        return true;
+    }
+
+    @Override
+    protected void keepEncodedTags(byte[] tags)
+    {
+        // fails if the section changed since startEncoding()
+        encodedUpdater.compareAndSet(this, encoding, new EncodedTags(tags));
+    }
+
+    /** Non-generic reference type, so the field updater is type-safe. **/
+    private static final class EncodedTags extends SoftReference<byte[]>
+    {
+        EncodedTags(byte[] tags)
+        {
+            super(tags);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.io;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Read-only, memory-mapped view of a region file. The mapping is a snapshot 
+ * and must be discarded once the region file has been written to. No file 
+ * handle is held, and the mapping is released when the instance is collected.
+ */
+class MappedRegionFile
+{
+    protected final static int sector_bytes = 4096;
+    protected final static int sector_ints = sector_bytes / 4;
+    protected final static int header_bytes = sector_bytes * 2;
+    protected final static int version_gzip = 1;
+    protected final static int version_deflate = 2;
+
+    private final File file;
+    private final int[] offsets;
+    private final int[] timestamps;
+    private ByteBuffer buffer;
+
+    public MappedRegionFile(File file) throws IOException
+    {
+        this.file = file;
+        this.offsets = new int[sector_ints];
+        this.timestamps = new int[sector_ints];
+        map();
+    }
+
+    private void map() throws IOException
+    {
+        // new or truncated region files contain no chunks
+        if(!file.exists() || file.length() < header_bytes)
+            return;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try
+        {
+            // the mapping stays valid after the channel is closed
+            FileChannel channel = raf.getChannel();
+            buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        IntBuffer header = buffer.asIntBuffer();
+        header.get(offsets);
+        header.get(timestamps);
+    }
+
+    /**
+     * Returns an uncompressed stream for a chunk, inflating zlib data into 
+     * the inflater's buffers. The stream is valid until the inflater is reused.
+     */
+    public DataInputStream getChunkDataInputStream(int x, int z, ChunkInflater inflater) throws IOException
+    {
+        if(outOfBounds(x, z))
+            return null;
+
+        ByteBuffer data = getChunkData(x, z);
+
+        if(data == null)
+            return null;
+
+        data.getInt();
+        byte version = data.get();
+
+        // copy gzip data so the stream doesn't read the mapping lazily
+        if(version == version_gzip)
+            return new DataInputStream(new BufferedInputStream(new GZIPInputStream(copy(data))));
+        else if(version == version_deflate)
+            return inflater.inflate(data);
+        else
+            return null;
+    }
+
+    private static InputStream copy(ByteBuffer data)
+    {
+        byte[] array = new byte[data.remaining()];
+        data.get(array);
+        return new ByteArrayInputStream(array);
+    }
+    
+    /** Returns the chunk record, starting with its length field. **/
+    protected ByteBuffer getChunkData(int x, int z)
+    {
+        int offset = getOffset(x, z);
+
+        if(offset == 0 || buffer == null)
+            return null;
+
+        int sectorNumber = offset >> 8;
+        int numSectors = offset & 0xFF;
+        long start = (long)sectorNumber * sector_bytes;
+        long end = start + (long)numSectors * sector_bytes;
+
+        if(sectorNumber < 2 || end > buffer.capacity())
+            return null;
+
+        // duplicate so concurrent readers don't share a position
+        ByteBuffer view = buffer.duplicate();
+        view.position((int)start);
+        int length = view.getInt();
+
+        if(length <= 0 || start + 4 + length > end)
+            return null;
+
+        view.position((int)start);
+        view.limit((int)start + 4 + length);
+        return view;
+    }
+
+    /** 
+     * Returns the sectors allocated to a chunk as stored, or null if the 
+     * chunk is absent or its sectors lie outside the file.
+     */
+    protected ByteBuffer getChunkSectors(int x, int z)
+    {
+        int offset = getOffset(x, z);
+
+        if(offset == 0 || buffer == null)
+            return null;
+
+        long start = (long)(offset >> 8) * sector_bytes;
+        long end = start + (long)(offset & 0xFF) * sector_bytes;
+
+        if(start < header_bytes || end > buffer.capacity())
+            return null;
+
+        ByteBuffer view = buffer.duplicate();
+        view.position((int)start);
+        view.limit((int)end);
+        return view;
+    }
+
+    /** 
+     * Drops the mapping. The file stays mapped until the buffer is collected,
+     * so callers must not keep views returned by this instance either.
+     */
+    protected void release()
+    {
+        buffer = null;
+    }
+
+    protected int getOffset(int x, int z)
+    {
+        return offsets[x + (z << 5)];
+    }
+
+    protected int getTimestamp(int x, int z)
+    {
+        return timestamps[x + (z << 5)];
+    }
+
+    public boolean hasChunk(int x, int z)
+    {
+        return !outOfBounds(x, z) && getOffset(x, z) != 0;
+    }
+
+    private boolean outOfBounds(int x, int z)
+    {
+        return x < 0 || x >= 32 || z < 0 || z >= 32;
+    }
+
+    /** Number of bytes mapped, zero for new or empty region files. **/
+    public long getSize()
+    {
+        return (buffer == null) ? 0 : buffer.capacity();
+    }
+
+    public File getFile()
+    {
+        return file;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Compressed chunks waiting to be written to one region file. The batch is
+ * written in a single pass, in sector order, followed by one header update 
+ * and one sync. Sectors released by the batch are only reused by later writes.
+ */
+final class RegionBatch
+{
+    private final static int sector_bytes = MappedRegionFile.sector_bytes;
+    private final static int sector_ints = MappedRegionFile.sector_ints;
+    private final static int header_bytes = MappedRegionFile.header_bytes;
+    private final static int version_deflate = MappedRegionFile.version_deflate;
+    private final static int first_sector = header_bytes / sector_bytes;
+
+    /** length and version fields that precede chunk data **/
+    protected final static int chunk_header_bytes = 5;
+    protected final static int max_chunk_sectors = 255;
+
+    private final byte[][] data;
+    private final int[] lengths;
+    private final int timestamp;
+    private int size;
+
+    public RegionBatch()
+    {
+        this(0);
+    }
+
+    /** 
+     * Creates a batch whose chunks are given a fixed header timestamp, in 
+     * seconds since the epoch. A timestamp of 0 uses the time of writing.
+     */
+    public RegionBatch(int timestamp)
+    {
+        this.data = new byte[sector_ints][];
+        this.lengths = new int[sector_ints];
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Copies zlib compressed chunk data into the batch, replacing any data
+     * already queued for the same chunk.
+     */
+    public void add(int x, int z, byte[] chunkData, int length) throws IOException
+    {
+        if(getSectorCount(length) > max_chunk_sectors)
+            throw new IOException("Chunk too large (" + x + ", " + z + ")");
+
+        int index = x + (z << 5);
+
+        if(data[index] == null)
+            size++;
+
+        data[index] = Arrays.copyOf(chunkData, length);
+        lengths[index] = length;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /** Same sector count as RegionFile uses for a chunk. **/
+    public static int getSectorCount(int length)
+    {
+        return (length + chunk_header_bytes) / sector_bytes + 1;
+    }
+
+    /**
+     * Writes the batch to a region file and mirrors the new header entries 
+     * into the index. Nothing else may have the region file open meanwhile.
+     */
+    public void write(File file, RegionIndex index) throws IOException
+    {
+        int time = (timestamp > 0) ? timestamp : (int)(System.currentTimeMillis() / 1000L);
+        int[] offsets = new int[sector_ints];
+        int[] timestamps = new int[sector_ints];
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+
+            if(length >= header_bytes)
+                readHeader(channel, offsets, timestamps);
+
+            int fileSectors = (int)Math.max(first_sector, (length + sector_bytes - 1) / sector_bytes);
+            int[] newOffsets = allocate(offsets, fileSectors);
+
+            for(Integer i : sortBySector(newOffsets))
+                writeChunk(channel, i, newOffsets[i]);
+
+            for(int i = 0; i < sector_ints; i++)
+            {
+                if(data[i] == null)
+                    continue;
+
+                offsets[i] = newOffsets[i];
+                timestamps[i] = time;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(header_bytes);
+            header.asIntBuffer().put(offsets).put(timestamps);
+
+            long position = 0;
+            while(header.hasRemaining())
+                position += channel.write(header, position);
+
+            channel.force(true);
+            
+            for(int i = 0; i < sector_ints; i++)
+                if(data[i] != null)
+                    index.update(i & 0x1F, i >> 5, newOffsets[i] & 0xFF, time);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    private static void readHeader(FileChannel channel, int[] offsets, int[] timestamps) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(header_bytes);
+
+        while(header.hasRemaining())
+            if(channel.read(header, header.position()) < 0)
+                throw new IOException("Truncated region header");
+
+        header.flip();
+        IntBuffer ints = header.asIntBuffer();
+        ints.get(offsets);
+        ints.get(timestamps);
+    }
+
+    /** Returns the new sector offset of every chunk in the batch. **/
+    private int[] allocate(int[] offsets, int fileSectors)
+    {
+        BitSet used = new BitSet(fileSectors);
+        used.set(0, first_sector);
+
+        // sectors referenced by the current header stay untouched
+        for(int i = 0; i < sector_ints; i++)
+        {
+            int sectorNumber = offsets[i] >> 8;
+            int numSectors = offsets[i] & 0xFF;
+
+            if(offsets[i] != 0 && sectorNumber + numSectors <= fileSectors)
+                used.set(sectorNumber, sectorNumber + numSectors);
+        }
+
+        int[] newOffsets = new int[sector_ints];
+
+        for(Integer i : sortBySector(offsets))
+        {
+            int numSectors = getSectorCount(lengths[i]);
+            int oldSector = offsets[i] >> 8;
+            int oldCount = offsets[i] & 0xFF;
+            int sectorNumber;
+
+            // rewrite in place if the chunk still fits
+            if(offsets[i] != 0 && numSectors <= oldCount && oldSector + oldCount <= fileSectors)
+            {
+                sectorNumber = oldSector;
+            }
+            else
+            {
+                sectorNumber = findFreeSectors(used, numSectors, fileSectors);
+                used.set(sectorNumber, sectorNumber + numSectors);
+                fileSectors = Math.max(fileSectors, sectorNumber + numSectors);
+            }
+
+            newOffsets[i] = (sectorNumber << 8) | numSectors;
+        }
+
+        return newOffsets;
+    }
+
+    private static int findFreeSectors(BitSet used, int numSectors, int fileSectors)
+    {
+        int start = used.nextClearBit(first_sector);
+
+        while(start < fileSectors)
+        {
+            int end = Math.min(used.nextSetBit(start), fileSectors);
+
+            if(end < 0)
+                end = fileSectors;
+
+            if(end - start >= numSectors)
+                return start;
+
+            start = used.nextClearBit(end);
+        }
+
+        // append to the end of the file
+        return fileSectors;
+    }
+
+    /** Indices of the batched chunks, ordered by sector, new chunks last. **/
+    private List<Integer> sortBySector(final int[] offsets)
+    {
+        List<Integer> indices = new ArrayList<Integer>(size);
+
+        for(int i = 0; i < sector_ints; i++)
+            if(data[i] != null)
+                indices.add(i);
+
+        Collections.sort(indices, new Comparator<Integer>(){
+            public int compare(Integer a, Integer b){
+                long sa = offsets[a] == 0 ? Long.MAX_VALUE : offsets[a] >>> 8;
+                long sb = offsets[b] == 0 ? Long.MAX_VALUE : offsets[b] >>> 8;
+                return sa < sb ? -1 : (sa > sb ? 1 : a.compareTo(b));}});
+
+        return indices;
+    }
+
+    private void writeChunk(FileChannel channel, int index, int offset) throws IOException
+    {
+        int sectorNumber = offset >> 8;
+        int numSectors = offset & 0xFF;
+
+        // pad to whole sectors so the file length stays sector aligned
+        ByteBuffer buffer = ByteBuffer.allocate(numSectors * sector_bytes);
+        buffer.putInt(lengths[index] + 1);
+        buffer.put((byte)version_deflate);
+        buffer.put(data[index], 0, lengths[index]);
+        buffer.clear();
+
+        long position = (long)sectorNumber * sector_bytes;
+        while(buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+}
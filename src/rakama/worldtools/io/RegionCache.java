@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.io;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Tracks which regions hold an open RegionFile handle and which hold a
+ * memory mapping, and picks regions to release once either budget is
+ * exceeded. Victims are chosen among the least recently used regions by
+ * access frequency, so a sweep across many regions doesn't flush the ones
+ * that are used over and over. Frequencies are halved periodically, and
+ * survive eviction so a region that keeps coming back is kept longer.
+ *
+ * Callers release the returned victims outside of the cache monitor.
+ */
+final class RegionCache
+{
+    protected final static int default_max_handles = 64;
+    protected final static long default_max_mapped_bytes = 256L << 20;
+    protected final static int eviction_sample = 8;
+    protected final static int aging_period = 1024;
+    protected final static int max_frequency = 1 << 16;
+
+    private final Pool handles, mappings;
+    private int epoch, accesses;
+
+    public RegionCache()
+    {
+        this(default_max_handles, default_max_mapped_bytes);
+    }
+
+    public RegionCache(int maxHandles, long maxMappedBytes)
+    {
+        handles = new Pool();
+        mappings = new Pool();
+        setBudget(maxHandles, maxMappedBytes);
+    }
+
+    /**
+     * @param maxHandles maximum number of open region files
+     * @param maxMappedBytes maximum number of region file bytes mapped at once
+     * @return regions whose handles and mappings should be released
+     */
+    public synchronized List<RegionInfo> setBudget(int maxHandles, long maxMappedBytes)
+    {
+        if(maxHandles < 1 || maxMappedBytes < 1)
+            throw new IllegalArgumentException("Region cache budget must be positive");
+
+        handles.limit = maxHandles;
+        mappings.limit = maxMappedBytes;
+
+        List<RegionInfo> victims = new ArrayList<RegionInfo>();
+        handles.evict(null, victims);
+        mappings.evict(null, victims);
+        return victims;
+    }
+
+    public synchronized int getMaxHandles()
+    {
+        return (int)handles.limit;
+    }
+
+    public synchronized long getMaxMappedBytes()
+    {
+        return mappings.limit;
+    }
+
+    /** Counts one access to a region, towards its access frequency. **/
+    public synchronized void recordAccess(RegionInfo info)
+    {
+        if(++accesses >= aging_period)
+        {
+            accesses = 0;
+            epoch++;
+        }
+
+        info.recordAccess(epoch);
+    }
+
+    /**
+     * Marks a region's RegionFile handle as recently used, without counting
+     * an access, see {@link #recordAccess(RegionInfo)}.
+     *
+     * @return regions whose handles should be closed
+     */
+    public synchronized List<RegionInfo> touchHandle(RegionInfo info)
+    {
+        return handles.touch(info, 1);
+    }
+
+    /**
+     * Marks a region's mapping as recently used, without counting an access,
+     * see {@link #recordAccess(RegionInfo)}.
+     *
+     * @return regions whose mappings should be dropped
+     */
+    public synchronized List<RegionInfo> touchMapping(RegionInfo info, long bytes)
+    {
+        return mappings.touch(info, bytes);
+    }
+
+    /** Forgets a region's mapping, after it was dropped by a write. **/
+    public synchronized void removeMapping(RegionInfo info)
+    {
+        mappings.remove(info);
+    }
+
+    /** Forgets a region's handle and mapping, after it was unloaded. **/
+    public synchronized void remove(RegionInfo info)
+    {
+        handles.remove(info);
+        mappings.remove(info);
+    }
+
+    public synchronized List<RegionInfo> clear()
+    {
+        List<RegionInfo> list = new ArrayList<RegionInfo>(handles.entries.values());
+        list.addAll(mappings.entries.values());
+        handles.clear();
+        mappings.clear();
+        return list;
+    }
+
+    public synchronized List<RegionInfo> getRegions()
+    {
+        List<RegionInfo> list = new ArrayList<RegionInfo>(handles.entries.values());
+
+        for(RegionInfo info : mappings.entries.values())
+            if(!handles.entries.containsKey(info.getID()))
+                list.add(info);
+
+        return list;
+    }
+
+    public synchronized int getHandleCount()
+    {
+        return handles.entries.size();
+    }
+
+    public synchronized long getMappedBytes()
+    {
+        return mappings.used;
+    }
+
+    private int frequency(RegionInfo info)
+    {
+        return info.getFrequency(epoch);
+    }
+
+    /** Regions holding one kind of resource, in access order. **/
+    private final class Pool
+    {
+        final LinkedHashMap<RegionID, RegionInfo> entries;
+        final HashMap<RegionID, Long> weights;
+        long used, limit;
+
+        Pool()
+        {
+            entries = new LinkedHashMap<RegionID, RegionInfo>(16, 0.75f, true);
+            weights = new HashMap<RegionID, Long>();
+        }
+
+        List<RegionInfo> touch(RegionInfo info, long weight)
+        {
+            entries.put(info.getID(), info);
+            Long prev = weights.put(info.getID(), weight);
+
+            if(prev != null)
+                used -= prev;
+
+            used += weight;
+
+            if(used <= limit)
+                return Collections.emptyList();
+
+            List<RegionInfo> victims = new ArrayList<RegionInfo>();
+            evict(info, victims);
+            return victims;
+        }
+
+        void evict(RegionInfo current, List<RegionInfo> victims)
+        {
+            // never evict the region being used, even if it exceeds the budget alone
+            while(used > limit && entries.size() > (current == null ? 0 : 1))
+            {
+                RegionInfo victim = selectVictim(current);
+                remove(victim);
+                victims.add(victim);
+            }
+        }
+
+        RegionInfo selectVictim(RegionInfo current)
+        {
+            Iterator<RegionInfo> iter = entries.values().iterator();
+            RegionInfo victim = null;
+            int victimFrequency = Integer.MAX_VALUE;
+            int sampled = 0;
+
+            // least frequently used of the least recently used
+            while(iter.hasNext() && sampled < eviction_sample)
+            {
+                RegionInfo info = iter.next();
+
+                if(info == current)
+                    continue;
+
+                int freq = frequency(info);
+
+                if(freq < victimFrequency)
+                {
+                    victim = info;
+                    victimFrequency = freq;
+                }
+
+                sampled++;
+            }
+
+            return victim;
+        }
+
+        void remove(RegionInfo info)
+        {
+            entries.remove(info.getID());
+            Long weight = weights.remove(info.getID());
+
+            if(weight != null)
+                used -= weight;
+        }
+
+        void clear()
+        {
+            entries.clear();
+            weights.clear();
+            used = 0;
+        }
+    }
+}
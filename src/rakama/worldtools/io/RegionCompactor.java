@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+final class RegionCompactor
+{
+    private final static int sector_bytes = MappedRegionFile.sector_bytes;
+    private final static int sector_ints = MappedRegionFile.sector_ints;
+    private final static int header_bytes = MappedRegionFile.header_bytes;
+    
+    private RegionCompactor()
+    {
+    }
+    
+    public static RegionStatistics getStatistics(File file) throws IOException
+    {
+        return getStatistics(new MappedRegionFile(file), file.length());
+    }
+    
+    private static RegionStatistics getStatistics(MappedRegionFile region, long fileLength)
+    {
+        int numChunks = 0;
+        int usedSectors = 0;
+        int numFragments = 0;
+        int numCorrupt = 0;
+        int nextSector = header_bytes / sector_bytes;
+        
+        for(int z = 0; z < 32; z++)
+        {
+            for(int x = 0; x < 32; x++)
+            {
+                int offset = region.getOffset(x, z);
+                
+                if(offset == 0)
+                    continue;
+                
+                int sectorNumber = offset >> 8;
+                int numSectors = offset & 0xFF;
+                
+                if(sectorNumber != nextSector)
+                    numFragments++;
+                
+                if(region.getChunkData(x, z) == null)
+                    numCorrupt++;
+                
+                nextSector = sectorNumber + numSectors;
+                usedSectors += numSectors;
+                numChunks++;
+            }
+        }
+        
+        int fileSectors = (int)((fileLength + sector_bytes - 1) / sector_bytes);
+        return new RegionStatistics(numChunks, usedSectors, fileSectors, numFragments, numCorrupt);
+    }
+    
+    /**
+     * Rewrites the live chunks of a region file contiguously in coordinate 
+     * order, dropping orphaned sectors. The compacted file is written next to 
+     * the original and then atomically moved over it. Chunk records are 
+     * copied as-is, and chunks whose record can't be read keep their sectors 
+     * unchanged. If a chunk points outside the file, or the compacted file
+     * can't be moved into place, the original is left untouched.
+     * 
+     * @param file region file to compact
+     * @return statistics for the compacted file
+     * @throws IOException
+     */
+    public static RegionStatistics compact(File file) throws IOException
+    {
+        if(!file.exists())
+            return getStatistics(file);
+        
+        File temp = new File(file.getPath() + ".tmp");
+        RegionStatistics stats = writeCompacted(file, temp);
+        
+        if(stats != null)
+            return stats;
+        
+        // the mapping of the original is released, so it can be replaced
+        replace(temp, file);
+        return getStatistics(file);
+    }
+    
+    /** Writes the compacted file, returns the statistics if it's already compact. **/
+    private static RegionStatistics writeCompacted(File file, File temp) throws IOException
+    {
+        MappedRegionFile region = new MappedRegionFile(file);
+        
+        try
+        {
+            RegionStatistics stats = getStatistics(region, file.length());
+            
+            if(stats.isCompact())
+                return stats;
+            
+            boolean written = false;
+            
+            try
+            {
+                write(region, temp);
+                written = true;
+            }
+            finally
+            {
+                if(!written)
+                    temp.delete();
+            }
+            
+            return null;
+        }
+        finally
+        {
+            region.release();
+        }
+    }
+    
+    private static void write(MappedRegionFile region, File temp) throws IOException
+    {
+        int[] offsets = new int[sector_ints];
+        int[] timestamps = new int[sector_ints];
+        byte[] padding = new byte[sector_bytes];
+        
+        FileOutputStream fos = new FileOutputStream(temp);
+        
+        try
+        {
+            FileChannel channel = fos.getChannel();
+            channel.position(header_bytes);
+            int nextSector = header_bytes / sector_bytes;
+            
+            for(int z = 0; z < 32; z++)
+            {
+                for(int x = 0; x < 32; x++)
+                {
+                    int offset = region.getOffset(x, z);
+
+                    if(offset == 0)
+                        continue;
+
+                    ByteBuffer data = region.getChunkData(x, z);
+                    int numSectors = 0;
+
+                    // allocate the way RegionFile does, so later writes fit in place
+                    if(data != null)
+                        numSectors = RegionBatch.getSectorCount(data.remaining() - RegionBatch.chunk_header_bytes);
+
+                    // unreadable records are kept as stored, they may still be recoverable
+                    if(data == null || numSectors > RegionBatch.max_chunk_sectors)
+                    {
+                        data = region.getChunkSectors(x, z);
+                        numSectors = offset & 0xFF;
+                    }
+
+                    if(data == null)
+                        throw new IOException("Chunk (" + x + ", " + z + ") lies outside "
+                                + region.getFile().getCanonicalPath());
+
+                    int length = data.remaining();
+                    
+                    while(data.hasRemaining())
+                        channel.write(data);
+                    
+                    ByteBuffer pad = ByteBuffer.wrap(padding, 0, numSectors * sector_bytes - length);
+                    while(pad.hasRemaining())
+                        channel.write(pad);
+                    
+                    int index = x + (z << 5);
+                    offsets[index] = (nextSector << 8) | numSectors;
+                    timestamps[index] = region.getTimestamp(x, z);
+                    nextSector += numSectors;
+                }
+            }
+            
+            ByteBuffer header = ByteBuffer.allocate(header_bytes);
+            header.asIntBuffer().put(offsets).put(timestamps);
+            
+            long position = 0;
+            while(header.hasRemaining())
+                position += channel.write(header, position);
+            
+            channel.force(true);
+        }
+        finally
+        {
+            fos.close();
+        }
+    }
+    
+    private static void replace(File source, File target) throws IOException
+    {
+        try
+        {
+            Files.move(source.toPath(), target.toPath(), 
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(IOException e)
+        {
+            // the original is still in place
+            source.delete();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Presence bitmap, sector counts and timestamps of the chunks in a region, 
+ * read from the region header only. Chunk payloads are never touched.
+ */
+final class RegionIndex
+{
+    private final static int sector_ints = MappedRegionFile.sector_ints;
+    private final static int header_bytes = MappedRegionFile.header_bytes;
+
+    private final long[] present;
+    private final byte[] sectors;
+    private final int[] timestamps;
+    private int latest;
+
+    private RegionIndex()
+    {
+        this.present = new long[sector_ints / 64];
+        this.sectors = new byte[sector_ints];
+        this.timestamps = new int[sector_ints];
+    }
+
+    public static RegionIndex load(File file) throws IOException
+    {
+        RegionIndex index = new RegionIndex();
+
+        // new or truncated region files contain no chunks
+        if(!file.exists() || file.length() < header_bytes)
+            return index;
+
+        byte[] header = new byte[header_bytes];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try
+        {
+            raf.readFully(header);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        IntBuffer ints = ByteBuffer.wrap(header).asIntBuffer();
+
+        for(int i = 0; i < sector_ints; i++)
+        {
+            int offset = ints.get(i);
+
+            if(offset == 0)
+                continue;
+
+            index.present[i >> 6] |= 1L << i;
+            index.sectors[i] = (byte)offset;
+            index.timestamps[i] = ints.get(sector_ints + i);
+            index.latest = Math.max(index.latest, index.timestamps[i]);
+        }
+
+        return index;
+    }
+
+    public synchronized boolean hasChunk(int x, int z)
+    {
+        int i = x + (z << 5);
+        return (present[i >> 6] & (1L << i)) != 0;
+    }
+
+    public synchronized int getTimestamp(int x, int z)
+    {
+        return timestamps[x + (z << 5)];
+    }
+
+    /** Most recent chunk timestamp in the region, or 0 if it's empty. **/
+    public synchronized int getLatestTimestamp()
+    {
+        return latest;
+    }
+
+    public synchronized int getSectorCount(int x, int z)
+    {
+        return sectors[x + (z << 5)] & 0xFF;
+    }
+
+    public synchronized int getChunkCount()
+    {
+        int count = 0;
+
+        for(long bits : present)
+            count += Long.bitCount(bits);
+
+        return count;
+    }
+
+    /** Mirrors a chunk write into the index. **/
+    public synchronized void update(int x, int z, int numSectors, int timestamp)
+    {
+        int i = x + (z << 5);
+        present[i >> 6] |= 1L << i;
+        sectors[i] = (byte)numSectors;
+        timestamps[i] = timestamp;
+        latest = Math.max(latest, timestamp);
+    }
+}
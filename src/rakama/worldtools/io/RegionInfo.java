@@ -17,24 +17,33 @@
 package rakama.worldtools.io;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import rakama.worldtools.coord.BoundingBox;
 import rakama.worldtools.coord.Coordinate2D;
 
-import net.minecraft.world.level.chunk.storage.RegionFile;
-
 
 public class RegionInfo
 {
     private final File file;
     private final RegionID id;
     private final BoundingBox box;
-    private RegionFile cached;
+    private final ReadWriteLock lock;
+    private ChunkRegionFile cached;
+    private MappedRegionFile mapped;
+    private RegionIndex index;
+    private int references;
+    private boolean closePending;
+    private int opens, closes, maps;
+    private int frequency, frequencyEpoch;
     
     protected RegionInfo(File file, int x, int z)
     {
         this.file = file;
         this.id = new RegionID(x, z);
+        this.lock = new ReentrantReadWriteLock();
 
         int minx = x << 9;
         int minz = z << 9;
@@ -66,20 +75,161 @@ public class RegionInfo
         return box;
     }
 
-    protected void setCached(RegionFile cached)
+    /** 
+     * Guards the contents of the region file. Chunk data is read under the
+     * read lock, and the file is only modified under the write lock.
+     */
+    protected ReadWriteLock getLock()
     {
-        this.cached = cached;
+        return lock;
     }
     
-    protected RegionFile getCached()
+    /** Opens the region file if needed, every call must be paired with release(). **/
+    protected synchronized ChunkRegionFile acquire()
     {
+        if(cached == null)
+        {
+            cached = new ChunkRegionFile(file);
+            opens++;
+        }
+        
+        closePending = false;
+        references++;
         return cached;
     }
     
-    public boolean isCached()
+    protected synchronized void release()
+    {
+        references--;
+        
+        if(references == 0 && closePending)
+            close();
+    }
+    
+    /** Drops the mapping, and closes the file once it's no longer in use. **/
+    protected synchronized void unload()
+    {
+        mapped = null;
+        closeHandle();
+    }
+    
+    /** Closes the file once it's no longer in use, keeping the mapping. **/
+    protected synchronized void closeHandle()
+    {
+        if(references > 0)
+            closePending = true;
+        else
+            close();
+    }
+    
+    private void close()
+    {
+        closePending = false;
+        
+        if(cached == null)
+            return;
+        
+        try
+        {
+            cached.close();
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+        }
+        
+        cached = null;
+        closes++;
+    }
+    
+    /** Loads the header index on first use. **/
+    protected synchronized RegionIndex getIndex() throws IOException
+    {
+        if(index == null)
+            index = RegionIndex.load(file);
+        
+        return index;
+    }
+    
+    protected synchronized void invalidateIndex()
+    {
+        index = null;
+    }
+    
+    public int getChunkCount() throws IOException
+    {
+        return getIndex().getChunkCount();
+    }
+    
+    /** Time the region was last written to, in seconds since the epoch. **/
+    public int getLatestTimestamp() throws IOException
+    {
+        return getIndex().getLatestTimestamp();
+    }
+    
+    public RegionStatistics getStatistics() throws IOException
+    {
+        return RegionCompactor.getStatistics(file);
+    }
+    
+    public synchronized boolean isCached()
     {
         return cached != null;
     }
+
+    /** Maps the region file if needed. **/
+    protected synchronized MappedRegionFile map() throws IOException
+    {
+        if(mapped == null)
+        {
+            mapped = new MappedRegionFile(file);
+            maps++;
+        }
+        
+        return mapped;
+    }
+    
+    protected synchronized void invalidateMapping()
+    {
+        mapped = null;
+    }
+    
+    public synchronized boolean isMapped()
+    {
+        return mapped != null;
+    }
+    
+    /** Number of times the region file has been opened for writing. **/
+    public synchronized int getOpenCount()
+    {
+        return opens;
+    }
+
+    /** Number of times the region file has been closed. **/
+    public synchronized int getCloseCount()
+    {
+        return closes;
+    }
+
+    /** Number of times the region file has been memory mapped. **/
+    public synchronized int getMapCount()
+    {
+        return maps;
+    }
+    
+    /** Called by RegionCache under its own monitor. **/
+    void recordAccess(int epoch)
+    {
+        frequency = Math.min(getFrequency(epoch) + 1, RegionCache.max_frequency);
+        frequencyEpoch = epoch;
+    }
+
+    /** Access frequency, halved for every aging period since the last access. **/
+    int getFrequency(int epoch)
+    {
+        int age = epoch - frequencyEpoch;
+        return (age >= 31) ? 0 : frequency >> age;
+    }
 }
 
 final class RegionID extends Coordinate2D
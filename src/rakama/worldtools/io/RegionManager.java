@@ -16,165 +16,376 @@
 
 package rakama.worldtools.io;
 
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.TreeMap;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Lock;
 
-import net.minecraft.world.level.chunk.storage.RegionFile;
+import rakama.worldtools.coord.Coordinate2D;
+import rakama.worldtools.util.LongHashMap;
 
+/**
+ * Thread safe registry of region files. Each region has its own read/write 
+ * lock, so different regions are read and written in parallel. Open handles
+ * and mappings are limited by a RegionCache budget, and releasing a handle 
+ * never closes a RegionFile that is in use.
+ * 
+ * Lookups go through a copy-on-write LongHashMap keyed on packed region 
+ * coordinates, so they neither lock nor allocate. Regions are rarely added 
+ * once a world is opened.
+ */
 class RegionManager 
 {
-    protected final static int region_cache_size = 12;
     protected final boolean debug = false;
 
-    private Map<RegionID, RegionInfo> regions;
-    private Map<RegionID, RegionInfo> cache;
+    private final ConcurrentMap<RegionID, RegionInfo> regions;
+    private volatile LongHashMap<RegionInfo> index;
+    private final RegionCache cache;
 
     protected RegionManager()
     {
-        this(region_cache_size);
+        this(RegionCache.default_max_handles, RegionCache.default_max_mapped_bytes);
     }
 
-    protected RegionManager(int cacheSize)
+    protected RegionManager(int maxHandles, long maxMappedBytes)
     {
-        regions = new TreeMap<RegionID, RegionInfo>();
-        cache = new RegionCache(cacheSize);
+        regions = new ConcurrentSkipListMap<RegionID, RegionInfo>();
+        index = new LongHashMap<RegionInfo>();
+        cache = new RegionCache(maxHandles, maxMappedBytes);
     }
 
     protected void addFile(File file, int x, int z)
     {
-        regions.put(new RegionID(x, z), new RegionInfo(file, x, z));
+        addRegions(Collections.singletonList(new RegionInfo(file, x, z)));
+    }
+    
+    /** Registers regions in bulk, copying the lookup table once. **/
+    protected synchronized void addRegions(Collection<RegionInfo> added)
+    {
+        LongHashMap<RegionInfo> copy = new LongHashMap<RegionInfo>(index);
+        
+        for(RegionInfo info : added)
+        {
+            Coordinate2D coord = info.getRegionCoordinate();
+            long key = Coordinate2D.pack(coord.x, coord.z);
+            
+            if(copy.containsKey(key))
+                continue;
+            
+            copy.put(key, info);
+            regions.put(info.getID(), info);
+        }
+        
+        // publish the new table, readers keep using the one they loaded
+        index = copy;
     }
     
     public RegionInfo getRegionInfo(int x, int z)
     {
-        return regions.get(new RegionID(x, z));
+        return index.get(Coordinate2D.pack(x, z));
     }
     
-    public RegionFile getRegionFile(int x, int z)
+    public MappedRegionFile getMappedRegionFile(int x, int z) throws IOException
     {
-        RegionInfo region = regions.get(new RegionID(x, z));
+        RegionInfo region = getRegionInfo(x, z);
 
         if(region == null)
             return null;
         
-        // check for cached region
-        if(!region.isCached())
-            forceLoad(region);
-        else
-            forceRefresh(region);        
+        MappedRegionFile mapped;
+        Lock lock = region.getLock().readLock();
+        lock.lock();
         
-        return region.getCached();
+        try
+        {
+            mapped = map(region);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        
+        cache.recordAccess(region);
+        touchMapping(region, mapped);
+        return mapped;
     }
     
-    public Collection<RegionInfo> getRegions()
+    /**
+     * Returns an uncompressed stream for a chunk, or null if it doesn't exist.
+     * The chunk is inflated under the region's read lock.
+     * 
+     * @param x chunk x coordinate
+     * @param z chunk z coordinate
+     */
+    public DataInputStream readChunk(int x, int z, ChunkInflater inflater) throws IOException
     {
-        return regions.values();
+        RegionInfo region = getRegionInfo(x >> 5, z >> 5);
+        
+        // avoid mapping regions for missing chunks
+        if(region == null || !region.getIndex().hasChunk(x & 0x1F, z & 0x1F))
+            return null;
+        
+        MappedRegionFile mapped;
+        DataInputStream dis;
+        Lock lock = region.getLock().readLock();
+        lock.lock();
+        
+        try
+        {
+            mapped = map(region);
+            dis = mapped.getChunkDataInputStream(x & 0x1F, z & 0x1F, inflater);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        
+        cache.recordAccess(region);
+        touchMapping(region, mapped);
+        return dis;
     }
-
-    protected Collection<RegionInfo> getCachedRegions()
+    
+    /**
+     * Writes zlib compressed chunk data under the region's write lock.
+     * 
+     * @param x chunk x coordinate
+     * @param z chunk z coordinate
+     */
+    public void writeChunk(RegionInfo region, int x, int z, byte[] data, int length) throws IOException
     {
-        return cache.values();
+        int numSectors = RegionBatch.getSectorCount(length);
+        
+        // RegionFile silently drops chunks that are too large
+        if(numSectors > RegionBatch.max_chunk_sectors)
+            throw new IOException("Chunk too large (" + x + ", " + z + ")");
+        
+        Lock lock = region.getLock().writeLock();
+        lock.lock();
+        
+        try
+        {
+            RegionIndex index = region.getIndex();
+            
+            if(debug && !region.isCached())
+                log("LOAD_REGION " + region.getRegionCoordinate().x + " " + region.getRegionCoordinate().z);
+            
+            ChunkRegionFile file = region.acquire();
+
+            try
+            {
+                file.writeDeflated(x & 0x1F, z & 0x1F, data, length);
+            }
+            finally
+            {
+                region.release();
+            }
+            
+            index.update(x & 0x1F, z & 0x1F, numSectors, (int)(System.currentTimeMillis() / 1000L));
+            
+            // mapped view no longer matches the region header
+            region.invalidateMapping();
+            cache.removeMapping(region);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        
+        cache.recordAccess(region);
+        touchHandle(region);
     }
     
-    private void forceLoad(RegionInfo info)
+    /**
+     * Checks the region header index for a chunk, without opening the region
+     * or reading chunk data.
+     * 
+     * @param x chunk x coordinate
+     * @param z chunk z coordinate
+     */
+    public boolean hasChunk(int x, int z) throws IOException
     {
-        if(!info.isCached())
-            load(info);
-            
-        cache.put(info.getID(), info);
+        RegionInfo region = getRegionInfo(x >> 5, z >> 5);
+        
+        if(region == null)
+            return false;
+        
+        return region.getIndex().hasChunk(x & 0x1F, z & 0x1F);
     }
     
-    private void forceRefresh(RegionInfo info)
+    /**
+     * Returns the time a chunk was last written, in seconds since the epoch, 
+     * or 0 if the chunk doesn't exist.
+     */
+    public int chunkTimestamp(int x, int z) throws IOException
     {
-        cache.remove(info.getID());         
-        cache.put(info.getID(), info);
+        RegionInfo region = getRegionInfo(x >> 5, z >> 5);
+        
+        if(region == null)
+            return 0;
+        
+        return region.getIndex().getTimestamp(x & 0x1F, z & 0x1F);
     }
     
-    @SuppressWarnings("unused")
-    private void load(RegionInfo info)
+    public int chunkSectors(int x, int z) throws IOException
     {
-        if(debug && info.getFile().exists())
-            log("LOAD_REGION " + info.getRegionCoordinate().x + " " + info.getRegionCoordinate().z);
-        else if(debug && !info.getFile().exists())
-            log("NEW_REGION " + info.getRegionCoordinate().x + " " + info.getRegionCoordinate().z);
+        RegionInfo region = getRegionInfo(x >> 5, z >> 5);
+        
+        if(region == null)
+            return 0;
         
-        info.setCached(new RegionFile(info.getFile()));
+        return region.getIndex().getSectorCount(x & 0x1F, z & 0x1F);
     }
     
-    private void unload(RegionInfo info)
+    public RegionStatistics compact(RegionInfo info) throws IOException
     {
-        if(!info.isCached())
-            return;
-
         if(debug)
-            log("UNLOAD_REGION " + info.getRegionCoordinate().x + " " + info.getRegionCoordinate().z);
+            log("COMPACT_REGION " + info.getRegionCoordinate().x + " " + info.getRegionCoordinate().z);
+        
+        Lock lock = info.getLock().writeLock();
+        lock.lock();
         
         try
         {
-            info.getCached().close();
-            info.setCached(null);
+            // release handles, RegionFile keeps its own sector table
+            unload(info);
+            info.invalidateIndex();
+            return RegionCompactor.compact(info.getFile());
         }
-        catch(IOException e)
+        finally
         {
-            e.printStackTrace();
-        }        
+            lock.unlock();
+        }
     }
-
-    private void unloadCache()
+    
+    public void writeBatch(RegionInfo info, RegionBatch batch) throws IOException
     {
         if(debug)
-            log("UNLOAD_REGION *");
+            log("WRITE_BATCH " + info.getRegionCoordinate().x + " " + info.getRegionCoordinate().z);
         
-        synchronized(cache)
+        Lock lock = info.getLock().writeLock();
+        lock.lock();
+        
+        try
         {
-            for(RegionInfo info : cache.values())
-                unload(info);
+            // writers hold the write lock, so the RegionFile isn't in use
+            RegionIndex index = info.getIndex();
+            unload(info);
+            batch.write(info.getFile(), index);
+        }
+        finally
+        {
+            lock.unlock();
         }
-        
-        cache.clear();
     }
-
-    public void closeAll()
+    
+    public Collection<RegionInfo> getRegions()
     {
-        unloadCache();
+        return regions.values();
     }
 
-    protected final void log(String str)
+    protected Collection<RegionInfo> getCachedRegions()
     {
-        System.out.println(str);
+        return cache.getRegions();
     }
-
-    @Override
-    protected void finalize()
+    
+    /**
+     * Limits the number of region files held open and the number of region 
+     * file bytes memory mapped at once. Regions are released in order of 
+     * access frequency among the least recently used.
+     * 
+     * @param maxHandles maximum number of open region files
+     * @param maxMappedBytes maximum number of bytes mapped
+     */
+    public void setCacheBudget(int maxHandles, long maxMappedBytes)
     {
-        unloadCache();
+        for(RegionInfo region : cache.setBudget(maxHandles, maxMappedBytes))
+            unload(region);
     }
     
-    @SuppressWarnings("serial")
-    protected class RegionCache extends LinkedHashMap<RegionID, RegionInfo>
+    public int getMaxHandles()
     {
-        int capacity;
-
-        public RegionCache(int capacity)
+        return cache.getMaxHandles();
+    }
+    
+    public long getMaxMappedBytes()
+    {
+        return cache.getMaxMappedBytes();
+    }
+    
+    public int getOpenHandles()
+    {
+        return cache.getHandleCount();
+    }
+    
+    public long getMappedBytes()
+    {
+        return cache.getMappedBytes();
+    }
+    
+    private MappedRegionFile map(RegionInfo info) throws IOException
+    {
+        if(debug && !info.isMapped())
+            log("MAP_REGION " + info.getRegionCoordinate().x + " " + info.getRegionCoordinate().z);
+        
+        return info.map();
+    }
+    
+    /** Marks a region's handle as used, closing handles that fall out of the budget. **/
+    private void touchHandle(RegionInfo info)
+    {
+        // close outside the cache monitor, handles in use are closed on release
+        for(RegionInfo region : cache.touchHandle(info))
         {
-            this.capacity = capacity;
+            if(debug)
+                log("CLOSE_REGION " + region.getRegionCoordinate().x + " " + region.getRegionCoordinate().z);
+            
+            region.closeHandle();
         }
-
-        @Override
-        protected boolean removeEldestEntry(Entry<RegionID, RegionInfo> eldest)
+    }
+    
+    /** Marks a region's mapping as used, dropping mappings that fall out of the budget. **/
+    private void touchMapping(RegionInfo info, MappedRegionFile mapped)
+    {
+        for(RegionInfo region : cache.touchMapping(info, mapped.getSize()))
         {
-            if(size() > capacity)
-            {
-                unload(eldest.getValue());
-                remove(eldest.getKey());
-            }
+            if(debug)
+                log("UNMAP_REGION " + region.getRegionCoordinate().x + " " + region.getRegionCoordinate().z);
             
-            return false;
+            region.invalidateMapping();
         }
     }
-}
\ No newline at end of file
+    
+    private void unload(RegionInfo info)
+    {
+        if(debug)
+            log("UNLOAD_REGION " + info.getRegionCoordinate().x + " " + info.getRegionCoordinate().z);
+        
+        cache.remove(info);
+        info.unload();
+    }
+
+    private void unloadCache()
+    {
+        if(debug)
+            log("UNLOAD_REGION *");
+        
+        cache.clear();
+        
+        for(RegionInfo info : regions.values())
+            info.unload();
+    }
+
+    public void closeAll()
+    {
+        unloadCache();
+    }
+
+    protected final void log(String str)
+    {
+        System.out.println(str);
+    }
+}
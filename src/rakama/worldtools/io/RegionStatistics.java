@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.io;
+
+public class RegionStatistics
+{
+    private final int numChunks, usedSectors, fileSectors, numFragments, numCorrupt;
+
+    protected RegionStatistics(int numChunks, int usedSectors, int fileSectors, int numFragments, int numCorrupt)
+    {
+        this.numChunks = numChunks;
+        this.usedSectors = usedSectors;
+        this.fileSectors = fileSectors;
+        this.numFragments = numFragments;
+        this.numCorrupt = numCorrupt;
+    }
+
+    public int getNumChunks()
+    {
+        return numChunks;
+    }
+
+    /** chunks in the header whose record can't be read, included in getNumChunks() **/
+    public int getNumCorrupt()
+    {
+        return numCorrupt;
+    }
+
+    /** sectors allocated to live chunks **/
+    public int getUsedSectors()
+    {
+        return usedSectors;
+    }
+
+    /** sectors in the file, including the two header sectors **/
+    public int getFileSectors()
+    {
+        return fileSectors;
+    }
+
+    /** orphaned sectors that no chunk points to **/
+    public int getFreeSectors()
+    {
+        return Math.max(0, fileSectors - MappedRegionFile.header_bytes / MappedRegionFile.sector_bytes - usedSectors);
+    }
+
+    /** chunks that don't directly follow the previous chunk in coordinate order **/
+    public int getNumFragments()
+    {
+        return numFragments;
+    }
+
+    /** fraction of data sectors that are orphaned, range [0, 1] **/
+    public double getFragmentation()
+    {
+        int dataSectors = usedSectors + getFreeSectors();
+
+        if(dataSectors == 0)
+            return 0;
+
+        return getFreeSectors() / (double)dataSectors;
+    }
+
+    public boolean isCompact()
+    {
+        return numFragments == 0 && getFreeSectors() == 0;
+    }
+
+    public String toString()
+    {
+        return numChunks + " chunks, " + usedSectors + "/" + fileSectors + " sectors used, " 
+                + numFragments + " fragments, " + numCorrupt + " corrupt";
+    }
+}
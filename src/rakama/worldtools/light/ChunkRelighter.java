@@ -28,6 +28,8 @@ public class ChunkRelighter
     protected CircularBuffer queue;
     protected LightCache cache;
     protected TempChunk[] tempChunk;
+    protected int[] heights;
+    protected int changedSections;
 
     protected final int span, width, length, height;
 
@@ -46,6 +48,7 @@ public class ChunkRelighter
         length = span * Chunk.length;
         height = Chunk.height;
 
+        heights = new int[Chunk.area];
         queue = new CircularBuffer(width * length * height);
         cache = new LightCache(span, span);
         tempChunk = new TempChunk[span * span];
@@ -62,17 +65,43 @@ public class ChunkRelighter
     }
 
     public void lightChunks(Chunk[] localChunks)
+    {
+        lightChunks(localChunks, (1 << Chunk.num_sections) - 1);
+    }
+
+    /**
+     * Relights only the given sections (one bit per section index) of the
+     * chunks at the center, along with the sections their changes can reach:
+     * one section above and below, and the sections down to where the 
+     * heightmap changed. Returns the sections that were relit.
+     */
+    public int lightChunks(Chunk[] localChunks, int sections)
     {
         if(localChunks.length != span * span)
             throw new IllegalArgumentException("expected array of size " + span * span);
 
+        changedSections = sections & ((1 << Chunk.num_sections) - 1);
         fillLightCache(localChunks);
+        
+        int relit = expand(changedSections);
+        
+        if(relit == 0)
+        {
+            cache.clear();
+            clearTemp();
+            return 0;
+        }
+        
+        int minY = Integer.numberOfTrailingZeros(relit) << 4;
+        int maxY = ((32 - Integer.numberOfLeadingZeros(relit)) << 4) - 1;
+        cache.setRange(minY, maxY);
 
         // compute block lights
         queue.clear();
         cache.setMode(Mode.BLOCKLIGHT);
         cache.clearBlockLights();
         cache.enqueueBlockLights(queue);
+        cache.enqueueBoundary(queue);
         propagateLights();
 
         // compute sky lights
@@ -80,10 +109,26 @@ public class ChunkRelighter
         cache.setMode(Mode.SKYLIGHT);
         cache.clearSkyLights();
         cache.enqueueSkyLights(queue);
+        cache.enqueueBoundary(queue);
         propagateLights();
         
+        // skylight above the terrain is written per block, but ends up uniform
+        cache.compactLights();
         cache.clear();
         clearTemp();
+        
+        return relit;
+    }
+
+    /** Adds the sections above and below, and the sections between them. **/
+    public static int expand(int sections)
+    {
+        if(sections == 0)
+            return 0;
+        
+        int min = Math.max(0, Integer.numberOfTrailingZeros(sections) - 1);
+        int max = Math.min(Chunk.num_sections - 1, 31 - Integer.numberOfLeadingZeros(sections) + 1);
+        return ((1 << (max + 1)) - 1) & ~((1 << min) - 1);
     }
 
     protected void fillLightCache(Chunk[] localChunks)
@@ -102,14 +147,58 @@ public class ChunkRelighter
         }
         
         if(isImmutable(x, z))
+        {
             chunk = getTempChunk(x, z, chunk);
-
-        chunk.trimSections();        
-        chunk.recomputeHeightmap();                  
+            chunk.trimSections();        
+            chunk.recomputeHeightmap();                  
+        }
+        else
+        {
+            updateChunk(chunk);
+        }
             
         cache.setChunk(x, z, chunk);   
     }
     
+    /** Trims and updates the heightmap of a chunk that is relit, noting which sections that affects. **/
+    private void updateChunk(Chunk chunk)
+    {
+        int existing = 0;
+        
+        for(int i = 0; i < Chunk.num_sections; i++)
+            if(chunk.getSection(i) != null)
+                existing |= 1 << i;
+
+        for(int z = 0; z < Chunk.length; z++)
+            for(int x = 0; x < Chunk.width; x++)
+                heights[x + (z << 4)] = chunk.getHeight(x, z);
+
+        chunk.trimSections();        
+        chunk.recomputeHeightmap();
+        
+        // sections added to fill gaps have no lights yet
+        for(int i = 0; i < Chunk.num_sections; i++)
+            if(chunk.getSection(i) != null && (existing & (1 << i)) == 0)
+                changedSections |= 1 << i;
+
+        // skylight changes between the old and the new height of a column
+        for(int z = 0; z < Chunk.length; z++)
+        {
+            for(int x = 0; x < Chunk.width; x++)
+            {
+                int prev = heights[x + (z << 4)];
+                int next = chunk.getHeight(x, z);
+
+                if(prev == next)
+                    continue;
+                
+                int low = Math.max(0, Math.min(prev, next)) >> 4;
+                int high = Math.min(Chunk.height - 1, Math.max(prev, next)) >> 4;
+                changedSections |= ((1 << (high + 1)) - 1) & ~((1 << low) - 1);
+            }
+        }
+    }
+    
     protected void propagateLights()
     {
         int[] pos = new int[3];
@@ -35,6 +35,7 @@ class LightCache
 
     protected final int yoff, zoff, xmask, ymask, zmask;
     protected Mode mode;
+    protected int minY, maxY;
 
     protected enum Mode {BLOCKLIGHT, SKYLIGHT};
 
@@ -66,6 +67,8 @@ class LightCache
         chunks = new Chunk[width16round * length16round];
         
         mode = Mode.SKYLIGHT;
+        minY = 0;
+        maxY = height - 1;
     }
 
     public void setChunk(int x16, int z16, Chunk chunk)
@@ -170,11 +173,51 @@ class LightCache
         this.mode = mode;
     }
 
+    /**
+     * Limits relighting to a section aligned range of y values. Lights of
+     * other sections are kept, and light entering the range from them is
+     * enqueued by enqueueBoundary().
+     */
+    public void setRange(int minY, int maxY)
+    {
+        this.minY = minY;
+        this.maxY = maxY;
+    }
+
+    private boolean inRange(Chunk chunk, int sy)
+    {
+        // temporary chunks are relit entirely, and seeded by the boundary
+        if(chunk instanceof TempChunk)
+            return true;
+        
+        return sy >= (minY >> 4) && sy <= (maxY >> 4);
+    }
+
     public void clearSkyLights()
+    {
+        clearLights();
+    }
+
+    private void clearLights()
     {
         for(Chunk chunk : chunks)
-            if(chunk != null)
-                chunk.clearSkyLights();
+        {
+            if(chunk == null)
+                continue;
+            
+            for(int sy = 0; sy < Chunk.num_sections; sy++)
+            {
+                Section sec = chunk.getSection(sy);
+                
+                if(sec == null || !inRange(chunk, sy))
+                    continue;
+                
+                if(mode == Mode.BLOCKLIGHT)
+                    sec.fillBlockLights(0);
+                else
+                    sec.fillSkyLights(0);
+            }
+        }
     }
     
     public void enqueueSkyLights(CircularBuffer queue)
@@ -205,8 +248,8 @@ class LightCache
 
     private void enqueueColumn(CircularBuffer queue, int x, int z, int y0, int y1)
     {
-        lightColumn(x, y0, z);
-        for(int y = y0; y <= y1; y++)
+        lightColumn(x, Math.max(y0, minY), z);
+        for(int y = Math.max(y0, minY); y <= Math.min(y1, maxY); y++)
             enqueueBlock(queue, x, y, z, 15);
     }
 
@@ -216,9 +259,9 @@ class LightCache
         if(chunks[cindex] == null)
             return;
 
-        int maxY = (countBottomSections(chunks[cindex]) << 4);
+        int top = Math.min(countBottomSections(chunks[cindex]) << 4, maxY + 1);
 
-        for(int y0 = y; y0 < maxY; y0++)
+        for(int y0 = y; y0 < top; y0++)
             setLight(x, y0, z, (byte) 15);
     }
 
@@ -233,9 +276,7 @@ class LightCache
 
     public void clearBlockLights()
     {
-        for(Chunk chunk : chunks)
-            if(chunk != null)
-                chunk.clearBlockLights();
+        clearLights();
     }
     
     public void enqueueBlockLights(CircularBuffer queue)
@@ -244,9 +285,17 @@ class LightCache
         {
             Section sec = sections[sindex];
 
-            if(sec == null)
+            int sy = (sindex >> yoff) & ymask;
+            
+            if(sec == null || sy < (minY >> 4) || sy > (maxY >> 4))
                 continue;
 
+            // uniform sections without light sources have nothing to enqueue
+            Block uniform = sec.getUniformBlock();
+            
+            if(uniform != null && uniform.getLuminance() == 0)
+                continue;
+            
             for(int eindex = 0; eindex < Section.volume; eindex++)
             {
                 int light = Block.getLuminance(sec.getBlockID(eindex));
@@ -260,6 +309,60 @@ class LightCache
         }
     }
 
+    /**
+     * Enqueues the stored lights just outside the range, so light entering 
+     * the range is propagated into it.
+     */
+    public void enqueueBoundary(CircularBuffer queue)
+    {
+        if(minY > 0)
+            enqueueLayer(queue, minY - 1);
+        
+        if(maxY < height - 1)
+            enqueueLayer(queue, maxY + 1);
+    }
+
+    private void enqueueLayer(CircularBuffer queue, int y)
+    {
+        for(int cz = 0; cz < length16; cz++)
+        {
+            for(int cx = 0; cx < width16; cx++)
+            {
+                Chunk chunk = chunks[toChunkIndex(cx, cz)];
+                
+                if(chunk == null)
+                    continue;
+
+                Section sec = sections[toSectionIndex(cx, y >> 4, cz)];
+                
+                // temporary sections are scratch space, the stored lights are in the source
+                Section stored = (chunk instanceof TempChunk) ? 
+                        ((TempChunk)chunk).getSourceSection(y >> 4) : sec;
+                        
+                if(sec == null || stored == null)
+                    continue;
+                
+                for(int z = 0; z < 16; z++)
+                {
+                    for(int x = 0; x < 16; x++)
+                    {
+                        int eindex = toElementIndex(x, y & 0xF, z);
+                        int light = (mode == Mode.BLOCKLIGHT) ? 
+                                stored.getBlockLight(eindex) : stored.getSkyLight(eindex);
+                        
+                        if(light < 2)
+                            continue;
+                        
+                        if(sec != stored)
+                            setLight((cx << 4) + x, y, (cz << 4) + z, (byte)light);
+                            
+                        enqueueBlock(queue, (cx << 4) + x, y, (cz << 4) + z, light);
+                    }
+                }
+            }
+        }
+    }
+
     private void enqueueBlock(CircularBuffer queue, int sindex, int eindex, int light)
     {
         int sx = sindex & xmask;
@@ -282,6 +385,14 @@ class LightCache
         queue.push(ChunkRelighter.pack(x, y, z, (byte)light));
     }
     
+    /** Drops the light arrays of sections that were lit to a single level. **/
+    public void compactLights()
+    {
+        for(Section sec : sections)
+            if(sec != null)
+                sec.compactLights();
+    }
+    
     public void clear()
     {
         Arrays.fill(chunks, null);
@@ -16,24 +16,23 @@
 
 package rakama.worldtools.light;
 
-import java.util.Arrays;
-
 import rakama.worldtools.data.Block;
 import rakama.worldtools.data.Chunk;
 import rakama.worldtools.data.Section;
-import rakama.worldtools.util.NibbleArray;
+import rakama.worldtools.util.LightArray;
 
 final class TempChunk extends Chunk
 {    
-    NibbleArray[] tempLights;
+    LightArray[] tempLights;
+    Chunk source;
     
     public TempChunk()
     {
         super(-1, -1);
         
-        tempLights = new NibbleArray[num_sections];
+        tempLights = new LightArray[num_sections];
         for(int i=0; i<num_sections; i++)
-            tempLights[i] = new NibbleArray(Section.volume);
+            tempLights[i] = new LightArray(Section.volume, 0);
     }
     
     public void assignData(Chunk chunk)
@@ -43,9 +42,10 @@ final class TempChunk extends Chunk
         
         x = chunk.getX();
         z = chunk.getZ();
+        source = chunk;
         
         for(int i=0; i<num_sections; i++)
-            sections[i] = cloneSection(i, chunk.getSection(i));
+            sections.set(i, cloneSection(i, chunk.getSection(i)));
     }
 
     private Section cloneSection(int y, Section sec)
@@ -53,15 +53,26 @@ final class TempChunk extends Chunk
         if(sec == null)
             return null;
         
-        return new Section(y, sec.getBlockIDs(), sec.getMetaData(), 
-                tempLights[y], tempLights[y]);
+        return new Section(sec, tempLights[y], tempLights[y]);
+    }
+    
+    /** Returns the section of the chunk this one was assigned from. **/
+    public Section getSourceSection(int y)
+    {
+        if(source == null || sections.get(y) == null)
+            return null;
+        
+        return source.getSection(y);
     }
     
     public void clear()
     {
         x = -1;
         z = -1;
-        Arrays.fill(sections, null);
+        source = null;
+        
+        for(int i=0; i<num_sections; i++)
+            sections.set(i, null);
     }
     
     @Override
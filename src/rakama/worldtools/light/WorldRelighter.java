@@ -17,11 +17,21 @@
 package rakama.worldtools.light;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
 
 import rakama.worldtools.coord.Coordinate2D;
 import rakama.worldtools.data.Chunk;
+import rakama.worldtools.data.Projection;
 import rakama.worldtools.io.ChunkAccess;
+import rakama.worldtools.io.ChunkHandler;
+import rakama.worldtools.io.ChunkReadException;
+import rakama.worldtools.io.JobManifest;
 import rakama.worldtools.io.RegionInfo;
 import rakama.worldtools.util.EnumProfiler;
 
@@ -34,9 +44,22 @@ public class WorldRelighter
     /** range [0, 4] - higher is faster, but consumes more memory **/
     protected static int relight_batch_scale = 3;
     
+    /** biomes and entities are copied through without being decoded **/
+    protected static final Set<Projection> relight_projection = 
+            EnumSet.of(Projection.BLOCKS, Projection.LIGHT, Projection.HEIGHTMAP);
+    
     protected EnumProfiler<Mode> profiler;
     protected ChunkAccess access;
     protected boolean verbose;
+    
+    /** only batches with chunks written after this time are relit, 0 relights all **/
+    protected int modifiedAfter;
+    
+    /** header timestamp given to relit chunks, 0 uses the time of writing **/
+    protected int writeTimestamp;
+    
+    protected Set<Coordinate2D> modifiedRegions;
+    protected int written, skipped, failed;
 
     protected enum Mode {DEFAULT, READ, WRITE, RELIGHT};
 
@@ -53,9 +76,41 @@ public class WorldRelighter
         relighter.relightWorld();
     }
     
+    /**
+     * Relights the chunks written since the manifest's last completed run 
+     * started, along with their neighbors, or the whole world on the first 
+     * run. The manifest is saved once the run completes. If any chunk can't 
+     * be read or written, the run isn't recorded and the chunks are tried 
+     * again on the next run.
+     * 
+     * @throws IOException if some chunks could not be relit
+     */
+    public static void relightWorld(ChunkAccess access, boolean verbose, JobManifest manifest) 
+            throws IOException
+    {
+        WorldRelighter relighter = new WorldRelighter(access, verbose);
+        relighter.modifiedAfter = manifest.getLastStarted();
+        int started = manifest.startRun();
+        
+        // relit chunks are stamped no later than the next run's lower bound, 
+        // so neither this run nor the next one relights them again
+        relighter.writeTimestamp = (relighter.modifiedAfter > 0) ? relighter.modifiedAfter : started;
+        relighter.relightWorld();
+        
+        if(relighter.failed > 0)
+            throw new IOException("Unable to relight " + relighter.failed 
+                    + " chunks, they will be retried on the next run");
+        
+        manifest.completeRun(relighter.written);
+    }
+    
     protected void relightWorld()
     {
         profiler.reset();
+        written = skipped = failed = 0;
+        
+        if(modifiedAfter > 0)
+            modifiedRegions = relight_findModifiedRegions();
         
         int step = 1 << Math.min(4, relight_batch_scale);
         int span = step + 2;
@@ -69,6 +124,9 @@ public class WorldRelighter
             RegionInfo current = regionIterator.next();
             Coordinate2D coord = current.getRegionCoordinate();
             
+            if(modifiedRegions != null && !relight_isNearModifiedRegion(coord))
+                continue;
+            
             log("Re-Lighting " + current.getFile().getAbsolutePath());
 
             int x0 = coord.x << 5;
@@ -82,12 +140,24 @@ public class WorldRelighter
 
         access.closeAll();
         
+        if(modifiedAfter > 0)
+            log("Skipped " + skipped + " unmodified batches");
+        
+        if(failed > 0)
+            log("Unable to relight " + failed + " chunks");
+        
         log("Finished!");
         printRunningTime();
     }
 
     protected void relight_batch(ChunkRelighter relighter, int x0, int z0, int span)
     {
+        if(modifiedAfter > 0 && !relight_isModified(x0, z0, span))
+        {
+            skipped++;
+            return;
+        }
+        
         profiler.setMode(Mode.READ);
         Chunk[] localChunks = relight_readChunks(x0, z0, span);
 
@@ -100,19 +170,50 @@ public class WorldRelighter
         profiler.setMode(Mode.DEFAULT);
     }
     
-    protected Chunk[] relight_readChunks(int x0, int z0, int span)
+    protected Chunk[] relight_readChunks(final int x0, final int z0, final int span)
     {
-        Chunk[] localChunks = new Chunk[span * span];
+        final Chunk[] localChunks = new Chunk[span * span];
+        List<Coordinate2D> coords = new ArrayList<Coordinate2D>(span * span);
 
         for(int x = 0; x < span; x++)
             for(int z = 0; z < span; z++)
-                localChunks[x + z * span] = readChunk(x + x0, z + z0);
+                coords.add(new Coordinate2D(x + x0, z + z0));
+
+        try
+        {
+            access.readChunks(coords, new ChunkHandler(){
+                public void handleChunk(Chunk chunk){
+                    localChunks[chunk.getX() - x0 + (chunk.getZ() - z0) * span] = chunk;}}, 
+                    relight_projection);
+        }
+        catch(ChunkReadException e)
+        {
+            // unreadable chunks are treated as boundaries and won't be written
+            for(Entry<Coordinate2D, IOException> failure : e.getFailures().entrySet())
+            {
+                System.err.println("Unable to read chunk " + failure.getKey());
+                failure.getValue().printStackTrace();
+                failed++;
+            }
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+
+            // the batch stopped early, read whatever wasn't delivered one by one
+            for(int x = 0; x < span; x++)
+                for(int z = 0; z < span; z++)
+                    if(localChunks[x + z * span] == null)
+                        localChunks[x + z * span] = readChunk(x + x0, z + z0);
+        }
 
         return localChunks;
     }
 
     protected void relight_writeChunks(int x0, int z0, int span, Chunk[] localChunks)
     {
+        List<Chunk> chunks = new ArrayList<Chunk>(span * span);
+        
         for(int z = 1; z < span - 1; z++)
         {
             for(int x = 1; x < span - 1; x++)
@@ -125,9 +226,71 @@ public class WorldRelighter
                 if(relight_skip_boundaries && relight_isBoundary(x, z, span, localChunks))
                     continue;
 
-                writeChunk(chunk, x + x0, z + z0);
+                chunks.add(chunk);
             }
         }
+        
+        if(writeChunks(chunks))
+            written += chunks.size();
+        else
+            failed += chunks.size();
+    }
+    
+    /** Light spreads into neighboring chunks, so the batch border counts too. **/
+    protected boolean relight_isModified(int x0, int z0, int span)
+    {
+        try
+        {
+            for(int z = z0; z < z0 + span; z++)
+            {
+                for(int x = x0; x < x0 + span; x++)
+                {
+                    int time = access.getChunkTimestamp(x, z);
+                    
+                    if(time > modifiedAfter)
+                        return true;
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            // relight anyway, if the header can't be read
+            e.printStackTrace();
+            return true;
+        }
+        
+        return false;
+    }
+    
+    protected Set<Coordinate2D> relight_findModifiedRegions()
+    {
+        Set<Coordinate2D> regions = new HashSet<Coordinate2D>();
+        
+        for(RegionInfo region : access.getRegions())
+        {
+            try
+            {
+                if(region.getLatestTimestamp() > modifiedAfter)
+                    regions.add(region.getRegionCoordinate());
+            }
+            catch(IOException e)
+            {
+                e.printStackTrace();
+                regions.add(region.getRegionCoordinate());
+            }
+        }
+        
+        return regions;
+    }
+    
+    protected boolean relight_isNearModifiedRegion(Coordinate2D coord)
+    {
+        for(int z = coord.z - 1; z <= coord.z + 1; z++)
+            for(int x = coord.x - 1; x <= coord.x + 1; x++)
+                if(modifiedRegions.contains(new Coordinate2D(x, z)))
+                    return true;
+        
+        return false;
     }
 
     protected boolean relight_isBoundary(int x, int z, int span, Chunk[] chunks)
@@ -142,11 +305,12 @@ public class WorldRelighter
     {
         try
         {
-            return access.readChunk(x, z);
+            return access.readChunk(x, z, relight_projection);
         }
         catch(IOException e)
         {
             e.printStackTrace();
+            failed++;
             return null;
         }
     }
@@ -165,6 +329,21 @@ public class WorldRelighter
         }
     }
 
+    protected boolean writeChunks(List<Chunk> chunks)
+    {
+        try
+        {
+            // one pass per region, in sector order
+            access.writeChunks(chunks, writeTimestamp);
+            return true;
+        }
+        catch(IOException e)
+        {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
     protected void printRunningTime()
     {
         StringBuilder str = new StringBuilder();
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.util;
+
+/**
+ * Count-min sketch of 4-bit counters, estimating how often each key was
+ * seen recently. Every counter is halved once the number of recorded
+ * accesses reaches ten times the capacity, so old popularity fades.
+ */
+final class FrequencySketch
+{
+    private final static long reset_mask = 0x7777777777777777L;
+    private final static int[] seeds = {0x97CB3127, 0xB8BE77C9, 0xF3A6F9C5, 0xD4A1B2E3};
+    private final static int depth = seeds.length;
+
+    private final long[] table;
+    private final int tableMask, sampleSize;
+    private int additions;
+
+    public FrequencySketch(int capacity)
+    {
+        int size = ceilingPowerOfTwo(Math.max(16, capacity));
+        this.table = new long[size];
+        this.tableMask = size - 1;
+        this.sampleSize = 10 * Math.max(16, capacity);
+    }
+
+    /** Returns the estimated number of recent accesses, at most 15. **/
+    public int frequency(Object key)
+    {
+        return frequencyOf(spread(key.hashCode()));
+    }
+
+    public int frequency(long key)
+    {
+        return frequencyOf(LongHashMap.hash(key));
+    }
+
+    private int frequencyOf(int hash)
+    {
+        int frequency = 15;
+
+        for(int i = 0; i < depth; i++)
+        {
+            int h = rehash(hash, i);
+            int offset = (h >>> 28) << 2;
+            int count = (int)((table[h & tableMask] >>> offset) & 0xF);
+            frequency = Math.min(frequency, count);
+        }
+
+        return frequency;
+    }
+
+    public void increment(Object key)
+    {
+        incrementOf(spread(key.hashCode()));
+    }
+
+    public void increment(long key)
+    {
+        incrementOf(LongHashMap.hash(key));
+    }
+
+    private void incrementOf(int hash)
+    {
+        boolean added = false;
+
+        for(int i = 0; i < depth; i++)
+        {
+            int h = rehash(hash, i);
+            int index = h & tableMask;
+            int offset = (h >>> 28) << 2;
+
+            // saturate at 15
+            if(((table[index] >>> offset) & 0xF) != 0xF)
+            {
+                table[index] += 1L << offset;
+                added = true;
+            }
+        }
+
+        if(added && ++additions >= sampleSize)
+            reset();
+    }
+
+    private void reset()
+    {
+        for(int i = 0; i < table.length; i++)
+            table[i] = (table[i] >>> 1) & reset_mask;
+
+        additions >>>= 1;
+    }
+
+    public void clear()
+    {
+        for(int i = 0; i < table.length; i++)
+            table[i] = 0;
+
+        additions = 0;
+    }
+
+    private static int rehash(int hash, int i)
+    {
+        int h = hash * seeds[i];
+        return h ^ (h >>> 17);
+    }
+
+    private static int spread(int hash)
+    {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int ceilingPowerOfTwo(int x)
+    {
+        return Integer.highestOneBit(x - 1) << 1;
+    }
+}
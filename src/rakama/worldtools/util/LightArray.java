@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.util;
+
+import java.util.Arrays;
+
+/**
+ * Nibble array for light levels that is allocated lazily. While every
+ * element holds the same level, such as full skylight above the terrain or
+ * zero blocklight underground, only that level is stored. The backing
+ * array is created on the first write of a different level, and can be
+ * dropped again with compact().
+ */
+public class LightArray
+{
+    private final int size;
+    private byte[] array;
+    private int level;
+
+    /** Creates an array filled with a single level. **/
+    public LightArray(int size, int level)
+    {
+        this.size = size;
+        this.level = level & 0xF;
+    }
+
+    /**
+     * Creates an array from packed nibbles. The data is kept as the backing
+     * array, unless it holds a single level.
+     */
+    public LightArray(byte[] data)
+    {
+        this.size = data.length * 2;
+        this.level = data.length == 0 ? 0 : data[0] & 0xF;
+
+        if(!isFilled(data, level))
+            this.array = data;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public int get(int index)
+    {
+        if(index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index out of bounds " + index);
+
+        byte[] data = array;
+
+        if(data == null)
+            return level;
+
+        if((index & 1) > 0)
+            return (data[index >> 1] & 0xF0) >> 4;
+        else
+            return data[index >> 1] & 0x0F;
+    }
+
+    public void set(int index, int halfbyte)
+    {
+        if(index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index out of bounds " + index);
+
+        halfbyte &= 0xF;
+        byte[] data = array;
+
+        if(data == null)
+        {
+            if(halfbyte == level)
+                return;
+
+            data = inflate();
+        }
+
+        int offset = index >> 1;
+
+        if((index & 1) > 0)
+            data[offset] = (byte)((data[offset] & 0x0F) | (halfbyte << 4));
+        else
+            data[offset] = (byte)((data[offset] & 0xF0) | halfbyte);
+    }
+
+    public void fill(int halfbyte)
+    {
+        level = halfbyte & 0xF;
+        array = null;
+    }
+
+    /** Checks if every element is known to hold the same level. **/
+    public boolean isUniform()
+    {
+        return array == null;
+    }
+
+    /** Drops the backing array if every element holds the same level. **/
+    public boolean compact()
+    {
+        byte[] data = array;
+
+        if(data == null)
+            return true;
+
+        int first = data[0] & 0xF;
+
+        if(!isFilled(data, first))
+            return false;
+
+        level = first;
+        array = null;
+        return true;
+    }
+
+    /** Copies the packed nibbles into an array of at least size / 2 bytes. **/
+    public void copyTo(byte[] dest)
+    {
+        byte[] data = array;
+
+        if(data == null)
+            Arrays.fill(dest, 0, size >> 1, pair(level));
+        else
+            System.arraycopy(data, 0, dest, 0, data.length);
+    }
+
+    /** Returns a copy of the packed nibbles. **/
+    public byte[] toByteArray()
+    {
+        byte[] dest = new byte[size >> 1];
+        copyTo(dest);
+        return dest;
+    }
+
+    /** Returns the approximate number of bytes used by the backing array. **/
+    public int getMemoryUsage()
+    {
+        byte[] data = array;
+        return data == null ? 0 : data.length;
+    }
+
+    private byte[] inflate()
+    {
+        byte[] data = new byte[size >> 1];
+        Arrays.fill(data, pair(level));
+        array = data;
+        return data;
+    }
+
+    private static boolean isFilled(byte[] data, int halfbyte)
+    {
+        byte pair = pair(halfbyte);
+
+        for(int i = 0; i < data.length; i++)
+            if(data[i] != pair)
+                return false;
+
+        return true;
+    }
+
+    private static byte pair(int halfbyte)
+    {
+        return (byte)(halfbyte | (halfbyte << 4));
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Open addressing hash map from primitive long keys to non-null values.
+ * Keys are probed linearly, and removals shift the following entries back
+ * instead of leaving tombstones, so lookups never allocate and never call
+ * equals. Not thread safe.
+ */
+public class LongHashMap<V>
+{
+    static final int DEFAULT_CAPACITY = 16;
+    static final float LOAD_FACTOR = 0.5f;
+
+    long[] keys;
+    Object[] values;
+    int size, mask, threshold;
+
+    public LongHashMap()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public LongHashMap(int expectedSize)
+    {
+        allocate(tableSize(expectedSize));
+    }
+
+    /** Copies another map. **/
+    public LongHashMap(LongHashMap<? extends V> map)
+    {
+        keys = map.keys.clone();
+        values = map.values.clone();
+        size = map.size;
+        mask = map.mask;
+        threshold = map.threshold;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key)
+    {
+        int i = index(key);
+        Object value;
+
+        while((value = values[i]) != null)
+        {
+            if(keys[i] == key)
+                return (V)value;
+
+            i = (i + 1) & mask;
+        }
+
+        return null;
+    }
+
+    public boolean containsKey(long key)
+    {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value)
+    {
+        if(value == null)
+            throw new NullPointerException();
+
+        int i = index(key);
+        Object prev;
+
+        while((prev = values[i]) != null)
+        {
+            if(keys[i] == key)
+            {
+                values[i] = value;
+                return (V)prev;
+            }
+
+            i = (i + 1) & mask;
+        }
+
+        keys[i] = key;
+        values[i] = value;
+
+        if(++size > threshold)
+            rehash(values.length << 1);
+
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key)
+    {
+        int i = index(key);
+        Object value;
+
+        while((value = values[i]) != null)
+        {
+            if(keys[i] == key)
+            {
+                shiftBack(i);
+                size--;
+                return (V)value;
+            }
+
+            i = (i + 1) & mask;
+        }
+
+        return null;
+    }
+
+    /** Refills the slot at a removed key with the entries probed after it. **/
+    private void shiftBack(int hole)
+    {
+        int i = hole;
+
+        while(true)
+        {
+            i = (i + 1) & mask;
+
+            if(values[i] == null)
+                break;
+
+            int home = index(keys[i]);
+
+            // move entries whose probe sequence passes through the hole
+            if(((i - home) & mask) >= ((i - hole) & mask))
+            {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+
+        values[hole] = null;
+    }
+
+    public void clear()
+    {
+        for(int i = 0; i < values.length; i++)
+            values[i] = null;
+
+        size = 0;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /** Returns a snapshot of the values, in no particular order. **/
+    @SuppressWarnings("unchecked")
+    public List<V> values()
+    {
+        List<V> list = new ArrayList<V>(size);
+
+        for(int i = 0; i < values.length; i++)
+            if(values[i] != null)
+                list.add((V)values[i]);
+
+        return list;
+    }
+
+    /** Returns a snapshot of the keys, in no particular order. **/
+    public long[] keys()
+    {
+        long[] array = new long[size];
+        int count = 0;
+
+        for(int i = 0; i < values.length; i++)
+            if(values[i] != null)
+                array[count++] = keys[i];
+
+        return array;
+    }
+
+    private void rehash(int capacity)
+    {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+
+        for(int i = 0; i < oldValues.length; i++)
+        {
+            if(oldValues[i] == null)
+                continue;
+
+            int j = index(oldKeys[i]);
+
+            while(values[j] != null)
+                j = (j + 1) & mask;
+
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+
+    private void allocate(int capacity)
+    {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        threshold = (int)(capacity * LOAD_FACTOR);
+    }
+
+    private int index(long key)
+    {
+        return hash(key) & mask;
+    }
+
+    /** Mixes both halves of a key, so packed coordinates spread over the table. **/
+    static int hash(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    private static int tableSize(int expectedSize)
+    {
+        int capacity = DEFAULT_CAPACITY;
+
+        while(capacity * LOAD_FACTOR < expectedSize)
+            capacity <<= 1;
+
+        return capacity;
+    }
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * PriorityCache keyed on primitive longs, such as packed coordinates. Uses
+ * the same W-TinyLFU policy, but looks entries up in a LongHashMap, so
+ * lookups don't allocate key objects or call equals.
+ */
+public class LongPriorityCache<V>
+{
+    static final byte WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+    final int maxCapacity, maxWindow, maxProtected;
+
+    final LongHashMap<Entry<V>> cache;
+    final Entry<V> window, probation, protect;
+    final FrequencySketch sketch;
+    int windowSize, probationSize, protectedSize;
+
+    LongHashMap<KeyedReference<V>> weak;
+    ReferenceQueue<V> collected;
+
+    public LongPriorityCache(int maxCapacity)
+    {
+        this(maxCapacity, PriorityCache.DEFAULT_WEAK_REFERENCES);
+    }
+
+    public LongPriorityCache(int maxCapacity, boolean weakReferences)
+    {
+        if(maxCapacity < 1)
+            throw new IllegalArgumentException("maxCapacity must be positive");
+
+        this.maxCapacity = maxCapacity;
+        this.maxWindow = Math.max(1, (int)(maxCapacity * PriorityCache.WINDOW_RATIO));
+        this.maxProtected = (int)((maxCapacity - maxWindow) * PriorityCache.PROTECTED_RATIO);
+
+        cache = new LongHashMap<Entry<V>>(maxCapacity + 1);
+        window = Entry.createHead();
+        probation = Entry.createHead();
+        protect = Entry.createHead();
+        sketch = new FrequencySketch(maxCapacity);
+
+        if(weakReferences)
+        {
+            weak = new LongHashMap<KeyedReference<V>>();
+            collected = new ReferenceQueue<V>();
+        }
+    }
+
+    public V get(long key, int priority)
+    {
+        Entry<V> entry = cache.get(key);
+
+        if(entry == null)
+        {
+            sketch.increment(key);
+            entry = getWeakAndPromote(key, priority);
+        }
+        else
+            onHit(entry, priority);
+
+        if(entry == null)
+            return null;
+        else
+            return entry.value;
+    }
+
+    private Entry<V> getWeakAndPromote(long key, int priority)
+    {
+        if(weak == null)
+            return null;
+
+        expungeStaleReferences();
+        WeakReference<V> ref = weak.remove(key);
+
+        if(ref == null)
+            return null;
+
+        V value = ref.get();
+
+        if(value == null)
+            return null;
+
+        return insert(key, value, priority);
+    }
+
+    /** Checks for a key without refreshing or promoting it. **/
+    public boolean containsKey(long key)
+    {
+        if(cache.containsKey(key))
+            return true;
+
+        if(weak == null)
+            return false;
+
+        WeakReference<V> ref = weak.get(key);
+        return ref != null && ref.get() != null;
+    }
+
+    /** Checks for a key in the cache itself, ignoring weak references. **/
+    public boolean isCached(long key)
+    {
+        return cache.containsKey(key);
+    }
+
+    /** Counts as a use of the key, if it's cached. **/
+    public void refresh(long key, int priority)
+    {
+        Entry<V> entry = cache.get(key);
+
+        if(entry != null)
+            onHit(entry, priority);
+    }
+
+    public V put(long key, V value, int priority)
+    {
+        if(value == null)
+            throw new NullPointerException();
+
+        Entry<V> prev = cache.get(key);
+
+        if(prev == null)
+        {
+            sketch.increment(key);
+            prev = getWeakAndPromote(key, priority);
+        }
+        else
+            onHit(prev, priority);
+
+        if(prev == null)
+        {
+            insert(key, value, priority);
+            return null;
+        }
+        else
+        {
+            V old = prev.value;
+            prev.value = value;
+            return old;
+        }
+    }
+
+    public V remove(long key)
+    {
+        Entry<V> prev = cache.remove(key);
+
+        if(weak != null)
+            weak.remove(key);
+
+        if(prev != null)
+        {
+            V value = prev.value;
+            unlink(prev);
+            prev.value = null;
+            return value;
+        }
+        else
+        {
+            return null;
+        }
+    }
+
+    public void clear()
+    {
+        List<Entry<V>> entries = cache.values();
+
+        cache.clear();
+        Entry.clear(window);
+        Entry.clear(probation);
+        Entry.clear(protect);
+        windowSize = probationSize = protectedSize = 0;
+
+        for(Entry<V> entry : entries)
+        {
+            V value = entry.value;
+            entry.value = null;
+            expired(entry.key, value);
+            keepWeakReference(entry.key, value);
+        }
+
+        expungeStaleReferences();
+    }
+
+    public int size()
+    {
+        return cache.size();
+    }
+
+    public boolean isEmpty()
+    {
+        return cache.isEmpty();
+    }
+
+    public int getMaxCapacity()
+    {
+        return maxCapacity;
+    }
+
+    /** Returns a snapshot of the cached values. **/
+    public List<V> getValues()
+    {
+        List<V> list = new ArrayList<V>(cache.size());
+
+        for(Entry<V> entry : cache.values())
+            list.add(entry.value);
+
+        return list;
+    }
+
+    /** Returns a snapshot of the weak references to evicted values. **/
+    public Collection<WeakReference<V>> getWeakReferences()
+    {
+        if(weak == null)
+            return null;
+
+        return new ArrayList<WeakReference<V>>(weak.values());
+    }
+
+    private Entry<V> insert(long key, V value, int priority)
+    {
+        Entry<V> entry = new Entry<V>(key, value, priority);
+        cache.put(key, entry);
+        link(entry, window, WINDOW);
+
+        if(windowSize > maxWindow)
+            evictFromWindow();
+
+        return entry;
+    }
+
+    private void onHit(Entry<V> entry, int priority)
+    {
+        sketch.increment(entry.key);
+        entry.priority = priority;
+
+        switch(entry.segment)
+        {
+            case WINDOW:
+                entry.moveToTail(window);
+                break;
+            case PROBATION:
+                unlink(entry);
+                link(entry, protect, PROTECTED);
+
+                // the least recently used protected entry goes back on probation
+                if(protectedSize > maxProtected)
+                {
+                    Entry<V> demoted = protect.next;
+                    unlink(demoted);
+                    link(demoted, probation, PROBATION);
+                }
+                break;
+            case PROTECTED:
+                entry.moveToTail(protect);
+                break;
+        }
+    }
+
+    /** Moves the window's oldest entry to the main cache, if it beats that cache's victim. **/
+    private void evictFromWindow()
+    {
+        Entry<V> candidate = window.next;
+        unlink(candidate);
+        link(candidate, probation, PROBATION);
+
+        if(size() <= maxCapacity)
+            return;
+
+        Entry<V> victim = probation.next;
+
+        // probation holds at least the candidate, take from protected otherwise
+        if(victim == candidate && probationSize == 1 && protectedSize > 0)
+            victim = protect.next;
+
+        if(victim == candidate)
+        {
+            evict(candidate);
+            return;
+        }
+
+        if(admit(candidate, victim))
+            evict(victim);
+        else
+            evict(candidate);
+    }
+
+    private boolean admit(Entry<V> candidate, Entry<V> victim)
+    {
+        int candidateFrequency = sketch.frequency(candidate.key);
+        int victimFrequency = sketch.frequency(victim.key);
+
+        if(candidateFrequency != victimFrequency)
+            return candidateFrequency > victimFrequency;
+
+        return candidate.priority > victim.priority;
+    }
+
+    private void evict(Entry<V> entry)
+    {
+        long key = entry.key;
+        V value = entry.value;
+
+        cache.remove(key);
+        unlink(entry);
+        entry.value = null;
+        expired(key, value);
+        keepWeakReference(key, value);
+    }
+
+    private void link(Entry<V> entry, Entry<V> head, byte segment)
+    {
+        entry.segment = segment;
+        entry.linkBefore(head);
+        resize(segment, 1);
+    }
+
+    private void unlink(Entry<V> entry)
+    {
+        entry.unlink();
+        resize(entry.segment, -1);
+    }
+
+    private void resize(byte segment, int delta)
+    {
+        if(segment == WINDOW)
+            windowSize += delta;
+        else if(segment == PROBATION)
+            probationSize += delta;
+        else
+            protectedSize += delta;
+    }
+
+    private void keepWeakReference(long key, V value)
+    {
+        if(weak == null)
+            return;
+
+        expungeStaleReferences();
+        weak.put(key, new KeyedReference<V>(key, value, collected));
+    }
+
+    /** Removes weak references that were enqueued after being cleared. **/
+    @SuppressWarnings("unchecked")
+    private void expungeStaleReferences()
+    {
+        if(collected == null)
+            return;
+
+        Reference<? extends V> ref;
+
+        while((ref = collected.poll()) != null)
+        {
+            long key = ((KeyedReference<V>)ref).key;
+
+            // the key may have been cached again since
+            if(weak.get(key) == ref)
+                weak.remove(key);
+        }
+    }
+
+    protected void expired(long key, V value)
+    {
+        // implemented by subclass
+    }
+
+    static final class KeyedReference<V> extends WeakReference<V>
+    {
+        final long key;
+
+        KeyedReference(long key, V value, ReferenceQueue<V> queue)
+        {
+            super(value, queue);
+            this.key = key;
+        }
+    }
+
+    /** Cache entry, linked into the list of the segment it belongs to. **/
+    static final class Entry<V>
+    {
+        final long key;
+        V value;
+        int priority;
+        byte segment;
+        Entry<V> prev, next;
+
+        Entry(long key, V value, int priority)
+        {
+            this.key = key;
+            this.value = value;
+            this.priority = priority;
+        }
+
+        static <V> Entry<V> createHead()
+        {
+            Entry<V> head = new Entry<V>(0, null, 0);
+            head.prev = head;
+            head.next = head;
+            return head;
+        }
+
+        static <V> void clear(Entry<V> head)
+        {
+            head.prev = head;
+            head.next = head;
+        }
+
+        void linkBefore(Entry<V> head)
+        {
+            prev = head.prev;
+            next = head;
+            head.prev.next = this;
+            head.prev = this;
+        }
+
+        void unlink()
+        {
+            prev.next = next;
+            next.prev = prev;
+            prev = next = null;
+        }
+
+        void moveToTail(Entry<V> head)
+        {
+            prev.next = next;
+            next.prev = prev;
+            linkBefore(head);
+        }
+    }
+}
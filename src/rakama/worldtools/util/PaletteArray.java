@@ -0,0 +1,497 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.util;
+
+import java.util.Arrays;
+
+/**
+ * Fixed size array of 16 bit values, stored as bit-packed indices into a
+ * palette of the distinct values. Indices take 1, 2, 4 or 8 bits, so
+ * arrays with few distinct values take a fraction of the memory of a
+ * plain array. Arrays with more than 256 distinct values store values
+ * directly, in 16 bits each. An array holding a single value is uniform,
+ * and stores no indices until a different value is set.
+ *
+ * Writes must come from one thread at a time, a write that races with
+ * another may be lost. Widening or compacting the palette publishes the
+ * new storage as a whole, so readers on other threads see either the old 
+ * or the new storage, never a partly built one. A concurrent reader may 
+ * still see a value from before or after a write in progress.
+ */
+public class PaletteArray
+{
+    protected final static int max_palette_bits = 8;
+    protected final static int direct_bits = 16;
+    protected final static int lookup_threshold = 16;
+
+    private final int size;
+    private volatile Storage storage;
+
+    /** Creates an array filled with a single value. **/
+    public PaletteArray(int size, int value)
+    {
+        this(size, value, 1);
+    }
+
+    /** 
+     * Creates an array filled with a single value, with room for the given
+     * number of distinct values, so setting them doesn't widen the palette.
+     */
+    public PaletteArray(int size, int value, int distinct)
+    {
+        checkValue(value);
+        this.size = size;
+        this.storage = new Storage(bitsFor(distinct), size);
+        storage.add(value);
+    }
+
+    /** Creates an array holding a copy of the given values. **/
+    public PaletteArray(int[] values)
+    {
+        this(values.length, values.length == 0 ? 0 : values[0], countDistinct(values));
+
+        for(int i = 0; i < size; i++)
+            set(i, values[i]);
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public int get(int index)
+    {
+        return storage.get(index);
+    }
+
+    public void set(int index, int value)
+    {
+        Storage s = storage;
+        int paletteIndex = s.indexOf(value);
+
+        if(paletteIndex < 0)
+        {
+            checkValue(value);
+            paletteIndex = s.add(value);
+
+            if(paletteIndex < 0)
+            {
+                s = resize(1);
+                paletteIndex = s.add(value);
+            }
+        }
+
+        s.put(index, paletteIndex);
+    }
+
+    public void fill(int value)
+    {
+        checkValue(value);
+        Storage s = new Storage(0, size);
+        s.add(value);
+        storage = s;
+    }
+
+    /** 
+     * Sets count elements to the same value, starting at an index and 
+     * stepping by stride. The value is added to the palette only once. 
+     */
+    public void fill(int start, int count, int stride, int value)
+    {
+        if(count <= 0)
+            return;
+
+        if(start < 0 || stride < 1 || start + (long)(count - 1) * stride >= size)
+            throw new IndexOutOfBoundsException("range out of bounds " + start + " + " + count + " * " + stride);
+
+        if(start == 0 && stride == 1 && count == size)
+        {
+            fill(value);
+            return;
+        }
+
+        Storage s = storage;
+        int paletteIndex = s.indexOf(value);
+
+        // nothing changes if a uniform array already holds the value
+        if(paletteIndex == 0 && s.bits == 0)
+            return;
+        
+        if(paletteIndex < 0)
+        {
+            checkValue(value);
+            paletteIndex = s.add(value);
+
+            if(paletteIndex < 0)
+            {
+                s = resize(1);
+                paletteIndex = s.add(value);
+            }
+        }
+
+        for(int i = 0, index = start; i < count; i++, index += stride)
+            s.put(index, paletteIndex);
+    }
+
+    /**
+     * Replaces every element holding one value with another. Arrays with a
+     * palette only change the palette entry. Returns false if the value
+     * wasn't found, but may return true for a value that was overwritten 
+     * since it was added to the palette.
+     */
+    public boolean replace(int from, int to)
+    {
+        checkValue(to);
+        Storage s = storage;
+
+        if(from == to)
+            return false;
+        
+        if(s.palette == null)
+        {
+            boolean found = false;
+
+            for(int i = 0; i < size; i++)
+            {
+                if(s.getIndex(i) == from)
+                {
+                    s.put(i, to);
+                    found = true;
+                }
+            }
+
+            return found;
+        }
+
+        boolean found = false;
+
+        // the palette may end up with duplicate entries, until it's compacted
+        for(int i = 0; i < s.count; i++)
+        {
+            if(s.palette[i] == from)
+            {
+                s.palette[i] = (char)to;
+                found = true;
+            }
+        }
+
+        if(found && s.lookup != null)
+            s.rebuildLookup();
+
+        return found;
+    }
+
+    /** Checks if a value may be present, see {@link #replace(int, int)}. **/
+    public boolean contains(int value)
+    {
+        Storage s = storage;
+
+        if(s.palette != null)
+            return s.indexOf(value) >= 0;
+
+        for(int i = 0; i < size; i++)
+            if(s.getIndex(i) == value)
+                return true;
+
+        return false;
+    }
+
+    /** Replaces all values with a copy of the values of another array. **/
+    public void copyFrom(PaletteArray source)
+    {
+        if(source.size != size)
+            throw new IllegalArgumentException("Expected array of size " + size);
+
+        storage = new Storage(source.storage);
+    }
+
+    /** Checks if every element is known to hold the same value. **/
+    public boolean isUniform()
+    {
+        return storage.bits == 0;
+    }
+
+    /** Copies all values into an array. **/
+    public void copyTo(int[] dest)
+    {
+        Storage s = storage;
+
+        for(int i = 0; i < size; i++)
+            dest[i] = s.get(i);
+    }
+
+    /** Returns the number of palette entries, including entries no longer in use. **/
+    public int getPaletteSize()
+    {
+        Storage s = storage;
+        return s.palette == null ? -1 : s.count;
+    }
+
+    public int getBitsPerEntry()
+    {
+        return storage.bits;
+    }
+
+    /** Returns the approximate number of bytes used by the storage arrays. **/
+    public int getMemoryUsage()
+    {
+        Storage s = storage;
+        int bytes = s.data.length * 8;
+
+        if(s.palette != null)
+            bytes += s.palette.length * 2;
+
+        if(s.lookup != null)
+            bytes += s.lookup.length * 2;
+
+        return bytes;
+    }
+
+    /**
+     * Rebuilds the storage with only the palette entries in use, plus room
+     * for the given number of new values.
+     */
+    private Storage resize(int extra)
+    {
+        Storage old = storage;
+        int distinct = countUsed(old);
+        Storage s = new Storage(bitsFor(distinct + extra), size);
+
+        for(int i = 0; i < size; i++)
+        {
+            int value = old.get(i);
+            int paletteIndex = s.indexOf(value);
+
+            if(paletteIndex < 0)
+                paletteIndex = s.add(value);
+
+            s.put(i, paletteIndex);
+        }
+
+        storage = s;
+        return s;
+    }
+
+    private int countUsed(Storage s)
+    {
+        if(s.palette == null)
+            return size;
+
+        boolean[] used = new boolean[s.count];
+        int count = 0;
+
+        for(int i = 0; i < size && count < used.length; i++)
+        {
+            int paletteIndex = s.getIndex(i);
+
+            if(!used[paletteIndex])
+            {
+                used[paletteIndex] = true;
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private static int countDistinct(int[] values)
+    {
+        long[] seen = new long[(1 << direct_bits) >> 6];
+        int count = 0;
+
+        for(int value : values)
+        {
+            checkValue(value);
+            long bit = 1L << (value & 63);
+
+            if((seen[value >> 6] & bit) == 0)
+            {
+                seen[value >> 6] |= bit;
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /** Smallest supported index width that fits the given number of values. **/
+    private static int bitsFor(int distinct)
+    {
+        if(distinct <= 1)
+            return 0;
+        
+        for(int bits = 1; bits <= max_palette_bits; bits <<= 1)
+            if(distinct <= 1 << bits)
+                return bits;
+
+        return direct_bits;
+    }
+
+    private static void checkValue(int value)
+    {
+        if(value != (value & 0xFFFF))
+            throw new IllegalArgumentException("value out of range " + value);
+    }
+
+    /** Palette and packed indices for one index width. **/
+    private static final class Storage
+    {
+        final int bits, bitShift, indexShift, indexMask, valueMask;
+        final long[] data;
+        final char[] palette, lookup;
+        int count;
+
+        Storage(Storage source)
+        {
+            this.bits = source.bits;
+            this.bitShift = source.bitShift;
+            this.indexShift = source.indexShift;
+            this.indexMask = source.indexMask;
+            this.valueMask = source.valueMask;
+            this.data = source.data.clone();
+            this.palette = (source.palette == null) ? null : source.palette.clone();
+            this.lookup = (source.lookup == null) ? null : source.lookup.clone();
+            this.count = source.count;
+        }
+
+        Storage(int bits, int size)
+        {
+            this.bits = bits;
+            
+            if(bits == 0)
+            {
+                // every index reads as zero from a single word
+                this.bitShift = 0;
+                this.indexShift = 31;
+                this.indexMask = 0;
+                this.valueMask = 0;
+                this.data = new long[1];
+            }
+            else
+            {
+                this.bitShift = Integer.numberOfTrailingZeros(bits);
+                this.indexShift = 6 - bitShift;
+                this.indexMask = (64 >> bitShift) - 1;
+                this.valueMask = (1 << bits) - 1;
+                this.data = new long[(size + indexMask) >> indexShift];
+            }
+
+            if(bits == direct_bits)
+            {
+                palette = null;
+                lookup = null;
+            }
+            else
+            {
+                palette = new char[1 << bits];
+                lookup = (palette.length > lookup_threshold) ? new char[palette.length << 1] : null;
+            }
+        }
+
+        int get(int index)
+        {
+            int paletteIndex = getIndex(index);
+            return palette == null ? paletteIndex : palette[paletteIndex];
+        }
+
+        int getIndex(int index)
+        {
+            long word = data[index >> indexShift];
+            return (int)(word >>> ((index & indexMask) << bitShift)) & valueMask;
+        }
+
+        void put(int index, int paletteIndex)
+        {
+            int offset = (index & indexMask) << bitShift;
+            int word = index >> indexShift;
+            data[word] = (data[word] & ~((long)valueMask << offset)) | ((long)paletteIndex << offset);
+        }
+
+        int indexOf(int value)
+        {
+            // out of range values fall through to the check in set()
+            if(palette == null)
+                return (value == (value & 0xFFFF)) ? value : -1;
+
+            if(lookup == null)
+            {
+                for(int i = 0; i < count; i++)
+                    if(palette[i] == value)
+                        return i;
+
+                return -1;
+            }
+
+            // slots hold palette index + 1, zero marks an empty slot
+            int mask = lookup.length - 1;
+            int entry;
+
+            for(int slot = hash(value) & mask; (entry = lookup[slot]) != 0; slot = (slot + 1) & mask)
+                if(palette[entry - 1] == value)
+                    return entry - 1;
+
+            return -1;
+        }
+
+        /** Appends a value to the palette, returns -1 if the palette is full. **/
+        int add(int value)
+        {
+            if(palette == null)
+                return value;
+
+            if(count == palette.length)
+                return -1;
+
+            palette[count] = (char)value;
+
+            if(lookup != null)
+            {
+                int mask = lookup.length - 1;
+                int slot = hash(value) & mask;
+
+                while(lookup[slot] != 0)
+                    slot = (slot + 1) & mask;
+
+                lookup[slot] = (char)(count + 1);
+            }
+
+            return count++;
+        }
+
+        void rebuildLookup()
+        {
+            Arrays.fill(lookup, (char)0);
+            int mask = lookup.length - 1;
+
+            for(int i = 0; i < count; i++)
+            {
+                int slot = hash(palette[i]) & mask;
+
+                while(lookup[slot] != 0)
+                    slot = (slot + 1) & mask;
+
+                lookup[slot] = (char)(i + 1);
+            }
+        }
+
+        private static int hash(int value)
+        {
+            int h = value * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
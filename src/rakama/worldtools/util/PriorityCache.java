@@ -16,143 +16,203 @@
 
 package rakama.worldtools.util;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.Queue;
 
+/**
+ * Fixed capacity cache with a W-TinyLFU eviction policy. New entries enter
+ * a small LRU window, and an entry leaving the window only displaces the
+ * least recently used entry of the main cache if it has been used more
+ * often recently. Entries used again in the main cache are moved to its
+ * protected segment. A scan of entries that are each used once therefore
+ * cycles through the window without flushing the entries in repeated use.
+ *
+ * Frequencies are counted for every access, including entries that aren't
+ * cached. Priorities break ties between equally frequent entries. Lookups,
+ * insertions and evictions take constant time.
+ *
+ * Evicted entries can optionally be kept as weak references, and are
+ * moved back into the cache if they are requested while still reachable.
+ */
 public class PriorityCache<K, V>
 {
-    static final double DEFAULT_FILL_RATIO = 0.9;
     static final boolean DEFAULT_WEAK_REFERENCES = false;
-    static final int DEFAULT_CLEANUP_THRESHOLD = 1000;
-
-    int maxCapacity, cleanupThreshold, removedSinceCleanup;
-    double fillRatio;
-    long decay;
-    
-    Queue<Entry<K, V>> queue;
-    Map<K, Entry<K, V>> cache;
+    static final double WINDOW_RATIO = 0.01;
+    static final double PROTECTED_RATIO = 0.8;
+
+    static final byte WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+
+    final int maxCapacity, maxWindow, maxProtected;
+
+    final Map<K, Entry<K, V>> cache;
+    final Entry<K, V> window, probation, protect;
+    final FrequencySketch sketch;
+    int windowSize, probationSize, protectedSize;
+
     Map<K, WeakReference<V>> weak;
-    
+    ReferenceQueue<V> collected;
+
     public PriorityCache(int maxCapacity)
     {
-        this(maxCapacity, DEFAULT_FILL_RATIO, DEFAULT_WEAK_REFERENCES, DEFAULT_CLEANUP_THRESHOLD);
+        this(maxCapacity, DEFAULT_WEAK_REFERENCES);
     }
 
+    public PriorityCache(int maxCapacity, boolean weakReferences)
+    {
+        if(maxCapacity < 1)
+            throw new IllegalArgumentException("maxCapacity must be positive");
+
+        this.maxCapacity = maxCapacity;
+        this.maxWindow = Math.max(1, (int)(maxCapacity * WINDOW_RATIO));
+        this.maxProtected = (int)((maxCapacity - maxWindow) * PROTECTED_RATIO);
+
+        cache = new HashMap<K, Entry<K, V>>();
+        window = Entry.createHead();
+        probation = Entry.createHead();
+        protect = Entry.createHead();
+        sketch = new FrequencySketch(maxCapacity);
+
+        if(weakReferences)
+        {
+            weak = new LinkedHashMap<K, WeakReference<V>>();
+            collected = new ReferenceQueue<V>();
+        }
+    }
+
+    /** @deprecated capacity is exact, so the fill ratio is ignored **/
+    @Deprecated
     public PriorityCache(int maxCapacity, double fillRatio)
     {
-        this(maxCapacity, fillRatio, DEFAULT_WEAK_REFERENCES, DEFAULT_CLEANUP_THRESHOLD);
+        this(maxCapacity, DEFAULT_WEAK_REFERENCES);
     }
 
+    /** @deprecated capacity is exact, so the fill ratio is ignored **/
+    @Deprecated
     public PriorityCache(int maxCapacity, double fillRatio, boolean weakReferences)
     {
-        this(maxCapacity, fillRatio, weakReferences, DEFAULT_CLEANUP_THRESHOLD);
+        this(maxCapacity, weakReferences);
     }
-        
+
+    /** @deprecated capacity is exact, and weak references are expunged as they're cleared **/
+    @Deprecated
     public PriorityCache(int maxCapacity, double fillRatio, boolean weakReferences, int cleanupThreshold)
     {
-        this.maxCapacity = maxCapacity;
-        this.fillRatio = fillRatio;
-        this.cleanupThreshold = cleanupThreshold;
-        
-        queue = new PriorityQueue<Entry<K, V>>();
-        cache = new LinkedHashMap<K, Entry<K, V>>();
-        
-        if(weakReferences)
-            weak = new LinkedHashMap<K, WeakReference<V>>();
+        this(maxCapacity, weakReferences);
     }
-    
+
     public V get(K key, int priority)
     {
-        Entry<K, V> prev = cache.get(key);
+        Entry<K, V> entry = cache.get(key);
 
-        if(prev == null)
-            prev = getWeakAndPromote(key, priority);
+        if(entry == null)
+        {
+            sketch.increment(key);
+            entry = getWeakAndPromote(key, priority);
+        }
         else
-            prev.refresh(prev.getValue(), priority + decay);
-        
-        if(prev == null)
+            onHit(entry, priority);
+
+        if(entry == null)
             return null;
         else
-            return prev.getValue();
+            return entry.getValue();
     }
-    
+
     protected Entry<K, V> getWeakAndPromote(K key, int priority)
     {
         if(weak == null)
             return null;
-        
+
+        expungeStaleReferences();
         WeakReference<V> ref = weak.remove(key);
-        
+
         if(ref == null)
             return null;
 
         V value = ref.get();
-            
+
         if(value == null)
             return null;
-        
-        Entry<K, V> entry = new Entry<K, V>(key, value, priority + decay);
-        cache.put(key, entry);
-        queue.add(entry);
-        balanceCache();
-        
-        return entry;
+
+        return insert(key, value, priority);
+    }
+
+    /** Checks for a key without refreshing or promoting it. **/
+    public boolean containsKey(K key)
+    {
+        if(cache.containsKey(key))
+            return true;
+
+        if(weak == null)
+            return false;
+
+        WeakReference<V> ref = weak.get(key);
+        return ref != null && ref.get() != null;
+    }
+
+    /** Checks for a key in the cache itself, ignoring weak references. **/
+    public boolean isCached(K key)
+    {
+        return cache.containsKey(key);
     }
-        
+
+    /** Counts as a use of the key, if it's cached. **/
     public void refresh(K key, int priority)
     {
-        Entry<K, V> prev = cache.get(key);
+        Entry<K, V> entry = cache.get(key);
 
-        if(prev != null)
-            prev.refresh(prev.getValue(), priority + decay);
+        if(entry != null)
+            onHit(entry, priority);
     }
-    
+
     public V put(K key, V value, int priority)
     {
         if(key == null || value == null)
             throw new NullPointerException();
-        
-        Entry<K, V> prev = cache.get(key); 
+
+        Entry<K, V> prev = cache.get(key);
 
         if(prev == null)
+        {
+            sketch.increment(key);
             prev = getWeakAndPromote(key, priority);
+        }
         else
-            prev.refresh(value, priority + decay);
-            
+            onHit(prev, priority);
+
         if(prev == null)
         {
-            Entry<K, V> entry = new Entry<K, V>(key, value, priority + decay);
-            cache.put(key, entry);
-            queue.add(entry);
-            balanceCache();
+            insert(key, value, priority);
             return null;
         }
         else
         {
-            return prev.getValue();
+            V old = prev.getValue();
+            prev.value = value;
+            return old;
         }
     }
-    
+
     public V remove(K key)
     {
         Entry<K, V> prev = cache.remove(key);
-        weak.remove(key);
-        
+
+        if(weak != null)
+            weak.remove(key);
+
         if(prev != null)
         {
             V value = prev.getValue();
+            unlink(prev);
             prev.dispose();
-            
-            removedSinceCleanup++;
-            if(removedSinceCleanup > cleanupThreshold)
-                clearStaleReferences();
-            
             return value;
         }
         else
@@ -160,39 +220,50 @@ public class PriorityCache<K, V>
             return null;
         }
     }
-    
+
+    /** @deprecated entries age through access frequencies, so this does nothing **/
+    @Deprecated
     public void decay(int priority)
     {
-        decay += priority;
     }
-    
+
     public void clear()
-    {   
+    {
+        List<Entry<K, V>> entries = new ArrayList<Entry<K, V>>(cache.values());
+
         cache.clear();
-        
-        while(!queue.isEmpty())
+        Entry.clear(window);
+        Entry.clear(probation);
+        Entry.clear(protect);
+        windowSize = probationSize = protectedSize = 0;
+
+        for(Entry<K, V> entry : entries)
         {
-            Entry<K, V> entry = queue.remove();
-            if(entry.isDisposed())
-                continue;
-            
-            expired(entry.getKey(), entry.getValue());  
-            weak.put(entry.getKey(), new WeakReference<V>(entry.getValue()));
+            K key = entry.getKey();
+            V value = entry.getValue();
+            entry.dispose();
+            expired(key, value);
+            keepWeakReference(key, value);
         }
-        
-        clearStaleReferences();
+
+        expungeStaleReferences();
     }
-    
+
     public int size()
     {
         return cache.size();
     }
-    
+
     public boolean isEmpty()
     {
-        return cache.size() <= 0;
+        return cache.isEmpty();
     }
-    
+
+    public int getMaxCapacity()
+    {
+        return maxCapacity;
+    }
+
     public Collection<Entry<K, V>> getKeyValuePairs()
     {
         return Collections.unmodifiableCollection(cache.values());
@@ -202,45 +273,150 @@ public class PriorityCache<K, V>
     {
         if(weak == null)
             return null;
-        
+
         return Collections.unmodifiableCollection(weak.values());
     }
-    
-    private void balanceCache()
+
+    private Entry<K, V> insert(K key, V value, int priority)
     {
-        double safeSize = maxCapacity * fillRatio;
-        double threshold = 0;
-        if(cache.size() < safeSize)
-            return;
-            
-        if(fillRatio < 1)
+        Entry<K, V> entry = new Entry<K, V>(key, value, priority);
+        cache.put(key, entry);
+        link(entry, window, WINDOW);
+
+        if(windowSize > maxWindow)
+            evictFromWindow();
+
+        return entry;
+    }
+
+    private void onHit(Entry<K, V> entry, int priority)
+    {
+        sketch.increment(entry.getKey());
+        entry.priority = priority;
+
+        switch(entry.segment)
         {
-            threshold = (cache.size() - safeSize) / (maxCapacity - safeSize);
-            if(Math.random() > threshold)
-                return;
+            case WINDOW:
+                entry.moveToTail(window);
+                break;
+            case PROBATION:
+                unlink(entry);
+                link(entry, protect, PROTECTED);
+
+                // the least recently used protected entry goes back on probation
+                if(protectedSize > maxProtected)
+                {
+                    Entry<K, V> demoted = protect.next;
+                    unlink(demoted);
+                    link(demoted, probation, PROBATION);
+                }
+                break;
+            case PROTECTED:
+                entry.moveToTail(protect);
+                break;
         }
-        
-        int removed = 0;        
-        while(removed < 2 && !queue.isEmpty())
+    }
+
+    /** Moves the window's oldest entry to the main cache, if it beats that cache's victim. **/
+    private void evictFromWindow()
+    {
+        Entry<K, V> candidate = window.next;
+        unlink(candidate);
+        link(candidate, probation, PROBATION);
+
+        if(size() <= maxCapacity)
+            return;
+
+        Entry<K, V> victim = probation.next;
+
+        // probation holds at least the candidate, take from protected otherwise
+        if(victim == candidate && probationSize == 1 && protectedSize > 0)
+            victim = protect.next;
+
+        if(victim == candidate)
         {
-            Entry<K, V> entry = queue.remove();
-            if(entry.isDisposed())
-                continue;
-            cache.remove(entry.getKey());
-            expired(entry.getKey(), entry.getValue());
-            weak.put(entry.getKey(), new WeakReference<V>(entry.getValue()));            
-            removed++;
+            evict(candidate);
+            return;
         }
+
+        if(admit(candidate, victim))
+            evict(victim);
+        else
+            evict(candidate);
+    }
+
+    private boolean admit(Entry<K, V> candidate, Entry<K, V> victim)
+    {
+        int candidateFrequency = sketch.frequency(candidate.getKey());
+        int victimFrequency = sketch.frequency(victim.getKey());
+
+        if(candidateFrequency != victimFrequency)
+            return candidateFrequency > victimFrequency;
+
+        return candidate.priority > victim.priority;
+    }
+
+    private void evict(Entry<K, V> entry)
+    {
+        K key = entry.getKey();
+        V value = entry.getValue();
+
+        cache.remove(key);
+        unlink(entry);
+        entry.dispose();
+        expired(key, value);
+        keepWeakReference(key, value);
     }
-          
-    private void clearStaleReferences()
+
+    private void link(Entry<K, V> entry, Entry<K, V> head, byte segment)
+    {
+        entry.segment = segment;
+        entry.linkBefore(head);
+        resize(segment, 1);
+    }
+
+    private void unlink(Entry<K, V> entry)
     {
-        Iterator<WeakReference<V>> iter = weak.values().iterator();
-        while(iter.hasNext())
-            if(iter.next().get() == null)
-                iter.remove();  
-        
-        removedSinceCleanup = 0;
+        entry.unlink();
+        resize(entry.segment, -1);
+    }
+
+    private void resize(byte segment, int delta)
+    {
+        if(segment == WINDOW)
+            windowSize += delta;
+        else if(segment == PROBATION)
+            probationSize += delta;
+        else
+            protectedSize += delta;
+    }
+
+    private void keepWeakReference(K key, V value)
+    {
+        if(weak == null)
+            return;
+
+        expungeStaleReferences();
+        weak.put(key, new KeyedReference<K, V>(key, value, collected));
+    }
+
+    /** Removes weak references that were enqueued after being cleared. **/
+    @SuppressWarnings("unchecked")
+    private void expungeStaleReferences()
+    {
+        if(collected == null)
+            return;
+
+        Reference<? extends V> ref;
+
+        while((ref = collected.poll()) != null)
+        {
+            K key = ((KeyedReference<K, V>)ref).key;
+
+            // the key may have been cached again since
+            if(weak.get(key) == ref)
+                weak.remove(key);
+        }
     }
 
     protected void expired(K key, V value)
@@ -248,50 +424,91 @@ public class PriorityCache<K, V>
         // implemented by subclass
     }
 
+    static final class KeyedReference<K, V> extends WeakReference<V>
+    {
+        final K key;
+
+        KeyedReference(K key, V value, ReferenceQueue<V> queue)
+        {
+            super(value, queue);
+            this.key = key;
+        }
+    }
+
+    /** Cache entry, linked into the list of the segment it belongs to. **/
     public static class Entry<K, V> implements Comparable<Entry<K, V>>
     {
         private K key;
         private V value;
-        private long priority;
-        
+        private int priority;
+        private byte segment;
+        private Entry<K, V> prev, next;
+
         public Entry(K key, V value, long priority)
         {
             this.key = key;
             this.value = value;
-            this.priority = priority;
+            this.priority = (int)priority;
         }
-        
+
+        static <K, V> Entry<K, V> createHead()
+        {
+            Entry<K, V> head = new Entry<K, V>(null, null, 0);
+            head.prev = head;
+            head.next = head;
+            return head;
+        }
+
+        static <K, V> void clear(Entry<K, V> head)
+        {
+            head.prev = head;
+            head.next = head;
+        }
+
         public K getKey()
         {
             return key;
         }
-        
+
         public V getValue()
         {
             return value;
         }
-        
-        private void refresh(V value, long priority)
+
+        private void linkBefore(Entry<K, V> head)
         {
-            if(isDisposed())
-                throw new IllegalStateException();
-            
-            this.value = value;
-            this.priority = priority;
+            prev = head.prev;
+            next = head;
+            head.prev.next = this;
+            head.prev = this;
         }
-               
+
+        private void unlink()
+        {
+            prev.next = next;
+            next.prev = prev;
+            prev = next = null;
+        }
+
+        private void moveToTail(Entry<K, V> head)
+        {
+            prev.next = next;
+            next.prev = prev;
+            linkBefore(head);
+        }
+
         private void dispose()
         {
             key = null;
             value = null;
-            priority = Long.MIN_VALUE;
+            priority = Integer.MIN_VALUE;
         }
-        
+
         public boolean isDisposed()
         {
             return key == null;
         }
-    
+
         public int compareTo(Entry<K, V> e)
         {
             if(e.priority < priority)
@@ -302,4 +519,4 @@ public class PriorityCache<K, V>
                 return 0;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,561 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import rakama.worldtools.data.entity.EntityFactory;
+
+public class ChunkCodecTest
+{
+    private final static int[] sections = {0, 2, 15};
+    private final static Set<Projection> blocks_only = EnumSet.of(Projection.BLOCKS);
+    private final static Set<Projection> light_only = EnumSet.of(Projection.LIGHT);
+
+    @Test
+    public void decodesEveryPart() throws IOException
+    {
+        Chunk chunk = decode(chunkNbt(false));
+
+        assertEquals(3, chunk.getX());
+        assertEquals(-7, chunk.getZ());
+        assertDecoded(chunk);
+    }
+
+    @Test
+    public void skipsUnknownTags() throws IOException
+    {
+        assertDecoded(decode(chunkNbt(true)));
+    }
+
+    @Test
+    public void decodesOnlyProjectedBlocks() throws IOException
+    {
+        Chunk chunk = decode(chunkNbt(true), blocks_only);
+
+        assertTrue(chunk.isLoaded(Projection.BLOCKS));
+        assertFalse(chunk.isLoaded(Projection.LIGHT));
+        assertFalse(chunk.isLoaded(Projection.BIOMES));
+        assertBlocks(chunk);
+
+        try
+        {
+            chunk.getSkyLight(0, 0, 0);
+            fail("expected IllegalStateException");
+        }
+        catch(IllegalStateException e)
+        {
+        }
+    }
+
+    @Test
+    public void decodesOnlyProjectedLight() throws IOException
+    {
+        Chunk chunk = decode(chunkNbt(true), light_only);
+        assertLight(chunk);
+
+        try
+        {
+            chunk.getBlockID(0, 0, 0);
+            fail("expected IllegalStateException");
+        }
+        catch(IllegalStateException e)
+        {
+        }
+    }
+
+    @Test
+    public void roundTripsEveryPart() throws IOException
+    {
+        Chunk chunk = createChunk();
+        byte[] data = encode(chunk);
+        Chunk decoded = decode(data, Projection.ALL);
+
+        assertEquals(3, decoded.getX());
+        assertEquals(-7, decoded.getZ());
+        assertSameBlocks(chunk, decoded);
+        assertSameLight(chunk, decoded);
+        assertSameColumns(chunk, decoded);
+        assertTrue(decoded.getEntities().isEmpty());
+        assertArrayEquals(data, encode(decoded));
+    }
+
+    @Test
+    public void keepsPartsOutsideProjection() throws IOException
+    {
+        Chunk chunk = createChunk();
+        Chunk partial = decode(encode(chunk), blocks_only);
+
+        assertTrue(partial.isLoaded(Projection.BLOCKS));
+        assertFalse(partial.isLoaded(Projection.LIGHT));
+        assertFalse(partial.isLoaded(Projection.BIOMES));
+        assertSameBlocks(chunk, partial);
+
+        try
+        {
+            partial.getSkyLight(0, 0, 0);
+            fail("expected IllegalStateException");
+        }
+        catch(IllegalStateException e)
+        {
+        }
+
+        partial.setBlockID(8, 70, 8, 45);
+        chunk.setBlockID(8, 70, 8, 45);
+
+        // light, heightmap and biomes are written back as they were read
+        Chunk decoded = decode(encode(partial), Projection.ALL);
+        assertSameBlocks(chunk, decoded);
+        assertSameLight(chunk, decoded);
+        assertSameColumns(chunk, decoded);
+    }
+
+    @Test
+    public void keepsBlocksOutsideLightProjection() throws IOException
+    {
+        Chunk chunk = createChunk();
+        Chunk partial = decode(encode(chunk), light_only);
+        assertSameLight(chunk, partial);
+
+        partial.setBlockLight(1, 20, 1, 9);
+        chunk.setBlockLight(1, 20, 1, 9);
+
+        Chunk decoded = decode(encode(partial), Projection.ALL);
+        assertSameBlocks(chunk, decoded);
+        assertSameLight(chunk, decoded);
+    }
+
+    @Test
+    public void keepsUnknownTags() throws IOException
+    {
+        byte[] data = encode(createChunk());
+
+        // one tag at the end of the root compound, one at the end of Level
+        byte[] rootTag = namedInt("DataVersion", 1343);
+        byte[] levelTag = namedInt("InhabitedTime", 77);
+        byte[] spliced = insert(insert(data, data.length - 1, rootTag), data.length - 2, levelTag);
+
+        assertKeepsTags(spliced, Projection.ALL, rootTag, levelTag);
+        assertKeepsTags(spliced, blocks_only, rootTag, levelTag);
+        assertKeepsTags(spliced, light_only, rootTag, levelTag);
+    }
+
+    @Test
+    public void rejectsMalformedStreams() throws IOException
+    {
+        byte[] noRoot = chunkNbt(false);
+        noRoot[0] = 1;
+
+        // root compound holding only an end tag
+        byte[] noLevel = {10, 0, 0, 0};
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        beginCompound(out, "");
+        beginCompound(out, "Level");
+        beginList(out, "Sections", 10, 1);
+        writeByte(out, "Y", 16);
+        out.writeByte(0);
+        out.writeByte(0);
+        out.writeByte(0);
+        byte[] badSection = bytes.toByteArray();
+
+        for(byte[] bad : new byte[][]{noRoot, noLevel, badSection})
+        {
+            try
+            {
+                decode(bad);
+                fail("expected IOException");
+            }
+            catch(IOException e)
+            {
+            }
+        }
+    }
+
+    @Test
+    public void rejectsInvalidArrayLengths() throws IOException
+    {
+        // 0x20000000 ints overflow a byte count
+        for(int length : new int[]{-1, 0x20000000})
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            beginCompound(out, "");
+            beginCompound(out, "Level");
+            out.writeByte(11);
+            out.writeUTF("Huge");
+            out.writeInt(length);
+
+            try
+            {
+                decode(bytes.toByteArray());
+                fail("expected IOException");
+            }
+            catch(IOException e)
+            {
+                assertTrue(e.getMessage().contains("Huge"));
+            }
+        }
+    }
+
+    private static void assertDecoded(Chunk chunk)
+    {
+        for(int z = 0; z < 16; z++)
+        {
+            for(int x = 0; x < 16; x++)
+            {
+                assertEquals(height(x, z), chunk.getHeight(x, z));
+                assertEquals(biome(x, z), chunk.getBiome(x, z));
+            }
+        }
+
+        assertBlocks(chunk);
+        assertLight(chunk);
+    }
+
+    private static void assertBlocks(Chunk chunk)
+    {
+        for(int sec : sections)
+        {
+            for(int i = 0; i < Section.volume; i++)
+            {
+                int x = i & 0xF, y = (sec << 4) | (i >> 8), z = (i >> 4) & 0xF;
+                assertEquals(blockID(sec, i), chunk.getBlockID(x, y, z));
+                assertEquals(metaData(sec, i), chunk.getMetaData(x, y, z));
+            }
+        }
+
+        // missing sections are air
+        assertEquals(0, chunk.getBlockID(5, 20, 5));
+    }
+
+    private static void assertLight(Chunk chunk)
+    {
+        for(int sec : sections)
+        {
+            for(int i = 0; i < Section.volume; i++)
+            {
+                int x = i & 0xF, y = (sec << 4) | (i >> 8), z = (i >> 4) & 0xF;
+                assertEquals(skyLight(sec, i), chunk.getSkyLight(x, y, z));
+                assertEquals(blockLight(sec, i), chunk.getBlockLight(x, y, z));
+            }
+        }
+    }
+
+    private static Chunk createChunk()
+    {
+        int[] heightmap = new int[Chunk.area];
+        byte[] biomes = new byte[Chunk.area];
+
+        for(int i = 0; i < Chunk.area; i++)
+        {
+            heightmap[i] = i % 200;
+            biomes[i] = (byte)(i % 23);
+        }
+
+        Chunk chunk = new Chunk(3, -7, heightmap, biomes);
+
+        // sparse sections, ids above 127 and every metadata value
+        for(int x = 0; x < 16; x++)
+        {
+            for(int z = 0; z < 16; z++)
+            {
+                chunk.setBlockID(x, 0, z, 7);
+                chunk.setBlockID(x, 40 + x, z, 200 + z);
+                chunk.setMetaData(x, 40 + x, z, z);
+                chunk.setBlockID(x, 255, z, 1 + (x ^ z));
+                chunk.setSkyLight(x, 40 + z, z, x);
+                chunk.setBlockLight(x, 41, z, 15 - z);
+            }
+        }
+
+        return chunk;
+    }
+
+    private static void assertKeepsTags(byte[] data, Set<Projection> projection, byte[]... tags) throws IOException
+    {
+        byte[] encoded = encode(decode(data, projection));
+
+        for(byte[] tag : tags)
+            assertTrue(indexOf(encoded, tag) >= 0);
+
+        assertSameBlocks(createChunk(), decode(encoded, Projection.ALL));
+    }
+
+    private static void assertSameBlocks(Chunk expected, Chunk actual)
+    {
+        for(int y = 0; y < Chunk.height; y++)
+        {
+            for(int z = 0; z < 16; z++)
+            {
+                for(int x = 0; x < 16; x++)
+                {
+                    assertEquals(expected.getBlockID(x, y, z), actual.getBlockID(x, y, z));
+                    assertEquals(expected.getMetaData(x, y, z), actual.getMetaData(x, y, z));
+                }
+            }
+        }
+    }
+
+    private static void assertSameLight(Chunk expected, Chunk actual)
+    {
+        for(int y = 0; y < Chunk.height; y++)
+        {
+            for(int z = 0; z < 16; z++)
+            {
+                for(int x = 0; x < 16; x++)
+                {
+                    assertEquals(expected.getSkyLight(x, y, z), actual.getSkyLight(x, y, z));
+                    assertEquals(expected.getBlockLight(x, y, z), actual.getBlockLight(x, y, z));
+                }
+            }
+        }
+    }
+
+    private static void assertSameColumns(Chunk expected, Chunk actual)
+    {
+        for(int z = 0; z < 16; z++)
+        {
+            for(int x = 0; x < 16; x++)
+            {
+                assertEquals(expected.getHeight(x, z), actual.getHeight(x, z));
+                assertEquals(expected.getBiome(x, z), actual.getBiome(x, z));
+            }
+        }
+    }
+
+    private static byte[] encode(Chunk chunk) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        chunk.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static Chunk decode(byte[] data) throws IOException
+    {
+        return Chunk.loadChunk(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    private static Chunk decode(byte[] data, Set<Projection> projection) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        return Chunk.loadChunk(in, EntityFactory.getDefaultFactory(), projection);
+    }
+
+    private static byte[] namedInt(String name, int value) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(3);
+        out.writeUTF(name);
+        out.writeInt(value);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] insert(byte[] data, int offset, byte[] inserted)
+    {
+        byte[] result = new byte[data.length + inserted.length];
+        System.arraycopy(data, 0, result, 0, offset);
+        System.arraycopy(inserted, 0, result, offset, inserted.length);
+        System.arraycopy(data, offset, result, offset + inserted.length, data.length - offset);
+        return result;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern)
+    {
+        search: for(int i = 0; i + pattern.length <= data.length; i++)
+        {
+            for(int j = 0; j < pattern.length; j++)
+                if(data[i + j] != pattern[j])
+                    continue search;
+
+            return i;
+        }
+
+        return -1;
+    }
+    /** Anvil chunk NBT in the layout Minecraft writes, optionally with tags worldtools doesn't know. **/
+    static byte[] chunkNbt(boolean unknown) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        beginCompound(out, "");
+
+        if(unknown)
+        {
+            out.writeByte(3);
+            out.writeUTF("DataVersion");
+            out.writeInt(1343);
+        }
+
+        beginCompound(out, "Level");
+        writeInt(out, "xPos", 3);
+        writeInt(out, "zPos", -7);
+        out.writeByte(4);
+        out.writeUTF("LastUpdate");
+        out.writeLong(1234);
+
+        if(unknown)
+        {
+            // long array, list of strings and nested compound
+            out.writeByte(12);
+            out.writeUTF("Structures");
+            out.writeInt(2);
+            out.writeLong(-1);
+            out.writeLong(42);
+            beginList(out, "Notes", 8, 2);
+            out.writeUTF("a");
+            out.writeUTF("bc");
+            beginCompound(out, "Extra");
+            writeInt(out, "Value", 5);
+            out.writeByte(0);
+        }
+
+        int[] heightmap = new int[Chunk.area];
+        byte[] biomes = new byte[Chunk.area];
+
+        for(int i = 0; i < Chunk.area; i++)
+        {
+            heightmap[i] = height(i & 0xF, i >> 4);
+            biomes[i] = (byte)biome(i & 0xF, i >> 4);
+        }
+
+        out.writeByte(11);
+        out.writeUTF("HeightMap");
+        out.writeInt(heightmap.length);
+        for(int h : heightmap)
+            out.writeInt(h);
+
+        writeByteArray(out, "Biomes", biomes);
+        beginList(out, "Sections", 10, sections.length);
+
+        for(int sec : sections)
+        {
+            byte[] blockid = new byte[Section.volume];
+            byte[] metadata = new byte[Section.volume / 2];
+            byte[] skylight = new byte[Section.volume / 2];
+            byte[] blocklight = new byte[Section.volume / 2];
+
+            for(int i = 0; i < Section.volume; i++)
+            {
+                int shift = (i & 1) << 2;
+                blockid[i] = (byte)blockID(sec, i);
+                metadata[i >> 1] |= metaData(sec, i) << shift;
+                skylight[i >> 1] |= skyLight(sec, i) << shift;
+                blocklight[i >> 1] |= blockLight(sec, i) << shift;
+            }
+
+            writeByte(out, "Y", sec);
+            writeByteArray(out, "Blocks", blockid);
+            writeByteArray(out, "Data", metadata);
+            writeByteArray(out, "SkyLight", skylight);
+            writeByteArray(out, "BlockLight", blocklight);
+
+            if(unknown)
+                writeByteArray(out, "Add", new byte[Section.volume / 2]);
+
+            out.writeByte(0);
+        }
+
+        out.writeByte(0);
+        out.writeByte(0);
+        return bytes.toByteArray();
+    }
+
+    static int height(int x, int z)
+    {
+        return (x * 16 + z) % 200;
+    }
+
+    static int biome(int x, int z)
+    {
+        return (x + z * 16) % 23;
+    }
+
+    /** ids above 127, every metadata and light value **/
+    static int blockID(int sec, int i)
+    {
+        return (i * 7 + sec) & 0xFF;
+    }
+
+    static int metaData(int sec, int i)
+    {
+        return (i + sec) & 0xF;
+    }
+
+    static int skyLight(int sec, int i)
+    {
+        return (i >> 4) & 0xF;
+    }
+
+    static int blockLight(int sec, int i)
+    {
+        return (i ^ sec) & 0xF;
+    }
+
+    private static void beginCompound(DataOutputStream out, String name) throws IOException
+    {
+        out.writeByte(10);
+        out.writeUTF(name);
+    }
+
+    private static void beginList(DataOutputStream out, String name, int type, int size) throws IOException
+    {
+        out.writeByte(9);
+        out.writeUTF(name);
+        out.writeByte(type);
+        out.writeInt(size);
+    }
+
+    private static void writeByte(DataOutputStream out, String name, int value) throws IOException
+    {
+        out.writeByte(1);
+        out.writeUTF(name);
+        out.writeByte(value);
+    }
+
+    private static void writeInt(DataOutputStream out, String name, int value) throws IOException
+    {
+        out.writeByte(3);
+        out.writeUTF(name);
+        out.writeInt(value);
+    }
+
+    private static void writeByteArray(DataOutputStream out, String name, byte[] value) throws IOException
+    {
+        out.writeByte(7);
+        out.writeUTF(name);
+        out.writeInt(value.length);
+        out.write(value);
+    }
+}
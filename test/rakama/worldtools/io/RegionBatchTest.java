@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RegionBatchTest
+{
+    private final static int sector_bytes = MappedRegionFile.sector_bytes;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        file = File.createTempFile("r.0.0", ".mca");
+    }
+
+    @After
+    public void tearDown()
+    {
+        file.delete();
+    }
+
+    @Test
+    public void countsSectorsLikeRegionFile()
+    {
+        assertEquals(1, RegionBatch.getSectorCount(0));
+        assertEquals(1, RegionBatch.getSectorCount(sector_bytes - 6));
+        assertEquals(2, RegionBatch.getSectorCount(sector_bytes - 5));
+        assertEquals(3, RegionBatch.getSectorCount(2 * sector_bytes));
+    }
+
+    @Test
+    public void rejectsOversizedChunk()
+    {
+        RegionBatch batch = new RegionBatch();
+
+        try
+        {
+            batch.add(0, 0, new byte[0], 256 * sector_bytes);
+            fail("expected IOException");
+        }
+        catch(IOException e)
+        {
+            assertTrue(batch.isEmpty());
+        }
+    }
+
+    @Test
+    public void allocatesSectorsInNewRegion() throws IOException
+    {
+        RegionIndex index = RegionIndex.load(file);
+        RegionBatch batch = new RegionBatch();
+        batch.add(1, 0, payload(5000, (byte)2), 5000);
+        batch.add(0, 0, payload(100, (byte)1), 100);
+        batch.add(0, 0, payload(200, (byte)3), 200);
+        assertEquals(2, batch.size());
+
+        batch.write(file, index);
+
+        // chunks without sectors are appended in index order after the header
+        MappedRegionFile region = new MappedRegionFile(file);
+        assertEquals((2 << 8) | 1, region.getOffset(0, 0));
+        assertEquals((3 << 8) | 2, region.getOffset(1, 0));
+        assertEquals(5 * sector_bytes, file.length());
+        assertArrayEquals(record(200, (byte)3), toArray(region.getChunkData(0, 0)));
+        assertArrayEquals(record(5000, (byte)2), toArray(region.getChunkData(1, 0)));
+        assertTrue(region.getTimestamp(0, 0) > 0);
+
+        assertTrue(index.hasChunk(0, 0));
+        assertEquals(1, index.getSectorCount(0, 0));
+        assertEquals(2, index.getSectorCount(1, 0));
+        assertFalse(index.hasChunk(2, 0));
+    }
+
+    @Test
+    public void stampsChunksWithGivenTime() throws IOException
+    {
+        RegionIndex index = RegionIndex.load(file);
+        RegionBatch batch = new RegionBatch(1234);
+        batch.add(0, 0, payload(100, (byte)1), 100);
+        batch.write(file, index);
+
+        assertEquals(1234, new MappedRegionFile(file).getTimestamp(0, 0));
+        assertEquals(1234, index.getLatestTimestamp());
+    }
+
+    @Test
+    public void rewritesChunkInPlace() throws IOException
+    {
+        RegionIndex index = RegionIndex.load(file);
+        RegionBatch batch = new RegionBatch();
+        batch.add(0, 0, payload(5000, (byte)1), 5000);
+        batch.add(1, 0, payload(100, (byte)2), 100);
+        batch.write(file, index);
+
+        batch = new RegionBatch();
+        batch.add(0, 0, payload(300, (byte)3), 300);
+        batch.write(file, index);
+
+        // the shrunk chunk keeps its first sector, the file doesn't grow
+        MappedRegionFile region = new MappedRegionFile(file);
+        assertEquals((2 << 8) | 1, region.getOffset(0, 0));
+        assertEquals((4 << 8) | 1, region.getOffset(1, 0));
+        assertEquals(5 * sector_bytes, file.length());
+        assertArrayEquals(record(300, (byte)3), toArray(region.getChunkData(0, 0)));
+        assertArrayEquals(record(100, (byte)2), toArray(region.getChunkData(1, 0)));
+        assertEquals(1, index.getSectorCount(0, 0));
+    }
+
+    @Test
+    public void reusesReleasedSectorsInLaterBatches() throws IOException
+    {
+        RegionIndex index = RegionIndex.load(file);
+        RegionBatch batch = new RegionBatch();
+        batch.add(0, 0, payload(5000, (byte)1), 5000);
+        batch.add(1, 0, payload(100, (byte)2), 100);
+        batch.write(file, index);
+
+        // growing chunk moves to the end, its old sectors stay intact until
+        // the header no longer references them
+        batch = new RegionBatch();
+        batch.add(0, 0, payload(9000, (byte)3), 9000);
+        batch.add(2, 0, payload(100, (byte)4), 100);
+        batch.write(file, index);
+
+        MappedRegionFile region = new MappedRegionFile(file);
+        assertEquals((5 << 8) | 3, region.getOffset(0, 0));
+        assertEquals((8 << 8) | 1, region.getOffset(2, 0));
+        assertEquals(9 * sector_bytes, file.length());
+        assertArrayEquals(record(9000, (byte)3), toArray(region.getChunkData(0, 0)));
+
+        batch = new RegionBatch();
+        batch.add(3, 0, payload(100, (byte)5), 100);
+        batch.write(file, index);
+
+        region = new MappedRegionFile(file);
+        assertEquals((2 << 8) | 1, region.getOffset(3, 0));
+        assertEquals(9 * sector_bytes, file.length());
+        assertArrayEquals(record(100, (byte)5), toArray(region.getChunkData(3, 0)));
+        assertArrayEquals(record(100, (byte)2), toArray(region.getChunkData(1, 0)));
+        assertArrayEquals(record(100, (byte)4), toArray(region.getChunkData(2, 0)));
+    }
+
+    private static byte[] payload(int length, byte fill)
+    {
+        byte[] data = new byte[length];
+        Arrays.fill(data, fill);
+        return data;
+    }
+
+    /** Chunk record as written to the region file: length, version, payload. **/
+    private static byte[] record(int length, byte fill)
+    {
+        ByteBuffer buf = ByteBuffer.allocate(5 + length);
+        buf.putInt(length + 1);
+        buf.put((byte)MappedRegionFile.version_deflate);
+        buf.put(payload(length, fill));
+        return buf.array();
+    }
+
+    private static byte[] toArray(ByteBuffer data)
+    {
+        byte[] array = new byte[data.remaining()];
+        data.get(array);
+        return array;
+    }
+}
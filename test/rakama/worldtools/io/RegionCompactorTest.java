@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RegionCompactorTest
+{
+    private final static int sector_bytes = MappedRegionFile.sector_bytes;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        file = File.createTempFile("r.0.0", ".mca");
+    }
+
+    @After
+    public void tearDown()
+    {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void compactsFragmentedRegion() throws IOException
+    {
+        byte[] a = record(100, (byte)1);
+        byte[] b = record(5000, (byte)2);
+        
+        // b before a in the file, with an orphaned sector in between
+        RegionWriter writer = new RegionWriter(8);
+        writer.put(0, 0, 5, a, 111);
+        writer.put(1, 0, 2, b, 222);
+        writer.write(file);
+
+        RegionStatistics before = RegionCompactor.getStatistics(file);
+        assertEquals(2, before.getNumChunks());
+        assertEquals(3, before.getFreeSectors());
+        assertFalse(before.isCompact());
+
+        RegionStatistics after = RegionCompactor.compact(file);
+        assertTrue(after.isCompact());
+        assertEquals(2, after.getNumChunks());
+        assertEquals(0, after.getNumCorrupt());
+        assertEquals(5 * sector_bytes, file.length());
+
+        MappedRegionFile region = new MappedRegionFile(file);
+        assertEquals(2, region.getOffset(0, 0) >> 8);
+        assertEquals(3, region.getOffset(1, 0) >> 8);
+        assertArrayEquals(a, toArray(region.getChunkData(0, 0)));
+        assertArrayEquals(b, toArray(region.getChunkData(1, 0)));
+        assertEquals(111, region.getTimestamp(0, 0));
+        assertEquals(222, region.getTimestamp(1, 0));
+    }
+
+    @Test
+    public void countsSectorsLikeRegionFile() throws IOException
+    {
+        // a record filling its sector exactly gets a spare one from RegionFile
+        byte[] full = record(sector_bytes - 5, (byte)1);
+
+        RegionWriter writer = new RegionWriter(4);
+        writer.put(0, 0, 3, full, 1);
+        writer.write(file);
+
+        RegionCompactor.compact(file);
+
+        MappedRegionFile region = new MappedRegionFile(file);
+        assertEquals((2 << 8) | 2, region.getOffset(0, 0));
+        assertEquals(4 * sector_bytes, file.length());
+        assertArrayEquals(full, toArray(region.getChunkData(0, 0)));
+    }
+
+    @Test
+    public void keepsCorruptChunks() throws IOException
+    {
+        byte[] good = record(100, (byte)1);
+        byte[] bad = new byte[sector_bytes];
+        
+        // length field larger than the allocated sector
+        ByteBuffer.wrap(bad).putInt(sector_bytes * 3).put((byte)2);
+        bad[sector_bytes - 1] = 42;
+
+        RegionWriter writer = new RegionWriter(8);
+        writer.put(0, 0, 6, good, 1);
+        writer.put(5, 5, 3, bad, 2);
+        writer.write(file);
+
+        assertEquals(1, RegionCompactor.getStatistics(file).getNumCorrupt());
+
+        RegionStatistics after = RegionCompactor.compact(file);
+        assertEquals(2, after.getNumChunks());
+        assertEquals(1, after.getNumCorrupt());
+        assertTrue(after.isCompact());
+
+        MappedRegionFile region = new MappedRegionFile(file);
+        assertArrayEquals(good, toArray(region.getChunkData(0, 0)));
+        assertArrayEquals(bad, toArray(region.getChunkSectors(5, 5)));
+        assertEquals(2, region.getTimestamp(5, 5));
+    }
+
+    @Test
+    public void leavesRegionUntouchedOnFailure() throws IOException
+    {
+        RegionWriter writer = new RegionWriter(8);
+        writer.put(0, 0, 6, record(100, (byte)1), 1);
+        writer.write(file);
+        
+        // points past the end of the file
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(4);
+        raf.writeInt((20 << 8) | 1);
+        raf.close();
+
+        byte[] original = readFile(file);
+
+        try
+        {
+            RegionCompactor.compact(file);
+            fail("expected IOException");
+        }
+        catch(IOException e)
+        {
+            assertNotNull(e.getMessage());
+        }
+
+        assertArrayEquals(original, readFile(file));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void skipsCompactRegion() throws IOException
+    {
+        RegionWriter writer = new RegionWriter(3);
+        writer.put(0, 0, 2, record(100, (byte)1), 1);
+        writer.write(file);
+
+        long modified = file.lastModified();
+        byte[] original = readFile(file);
+
+        assertTrue(RegionCompactor.compact(file).isCompact());
+        assertArrayEquals(original, readFile(file));
+        assertEquals(modified, file.lastModified());
+    }
+
+    /** Chunk record: length, version, payload. **/
+    static byte[] record(int payload, byte fill)
+    {
+        ByteBuffer buf = ByteBuffer.allocate(5 + payload);
+        buf.putInt(payload + 1);
+        buf.put((byte)MappedRegionFile.version_deflate);
+
+        while(buf.hasRemaining())
+            buf.put(fill);
+
+        return buf.array();
+    }
+
+    static byte[] toArray(ByteBuffer data)
+    {
+        byte[] array = new byte[data.remaining()];
+        data.get(array);
+        return array;
+    }
+
+    static byte[] readFile(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try
+        {
+            byte[] data = new byte[(int)raf.length()];
+            raf.readFully(data);
+            return data;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /** Lays out a region file with records at given sectors. **/
+    static class RegionWriter
+    {
+        final ByteBuffer buffer;
+
+        RegionWriter(int numSectors)
+        {
+            buffer = ByteBuffer.allocate(numSectors * sector_bytes);
+        }
+
+        void put(int x, int z, int sector, byte[] record, int timestamp)
+        {
+            int numSectors = (record.length + sector_bytes - 1) / sector_bytes;
+            int index = x + (z << 5);
+            buffer.putInt(index * 4, (sector << 8) | numSectors);
+            buffer.putInt(sector_bytes + index * 4, timestamp);
+            System.arraycopy(record, 0, buffer.array(), sector * sector_bytes, record.length);
+        }
+
+        void write(File file) throws IOException
+        {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+            try
+            {
+                raf.setLength(0);
+                raf.write(buffer.array());
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2012, RamsesA <ramsesakama@gmail.com>
+ * 
+ * Permission to use, copy, modify, and/or distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ * AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ * LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ * OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ * PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package rakama.worldtools.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PaletteArrayTest
+{
+    private final static int size = 4096;
+
+    /** distinct value counts at and just past each index width **/
+    private final static int[] distinct = {1, 2, 3, 4, 5, 16, 17, 256, 257, 4096};
+    private final static int[] bits = {0, 1, 2, 2, 4, 4, 8, 8, 16, 16};
+
+    @Test
+    public void packsValuesAtEveryWidth()
+    {
+        for(int i = 0; i < distinct.length; i++)
+        {
+            int[] values = values(size, distinct[i]);
+            PaletteArray array = new PaletteArray(values);
+
+            assertEquals(bits[i], array.getBitsPerEntry());
+            assertArrayEquals(values, toArray(array));
+        }
+    }
+
+    @Test
+    public void widensAtEveryWidth()
+    {
+        for(int i = 0; i < distinct.length; i++)
+        {
+            int[] values = values(size, distinct[i]);
+            PaletteArray array = new PaletteArray(size, values[0]);
+
+            for(int j = 0; j < size; j++)
+                array.set(j, values[j]);
+
+            assertEquals(bits[i], array.getBitsPerEntry());
+            assertArrayEquals(values, toArray(array));
+        }
+    }
+
+    @Test
+    public void packsPartialLastWord()
+    {
+        // 1000 elements leave the last word partly used at every width
+        for(int i = 0; i < distinct.length - 1; i++)
+        {
+            int[] values = values(1000, distinct[i]);
+            PaletteArray array = new PaletteArray(values);
+
+            assertEquals(bits[i], array.getBitsPerEntry());
+            assertArrayEquals(values, toArray(array));
+        }
+    }
+
+    @Test
+    public void keepsPresizedWidth()
+    {
+        PaletteArray array = new PaletteArray(size, 7, 16);
+        assertEquals(4, array.getBitsPerEntry());
+        assertEquals(7, array.get(size - 1));
+
+        for(int i = 0; i < size; i++)
+            array.set(i, i % 16);
+
+        assertEquals(4, array.getBitsPerEntry());
+        assertEquals(15, array.get(size - 1));
+    }
+
+    @Test
+    public void compactsUnusedEntries()
+    {
+        PaletteArray array = new PaletteArray(size, 0);
+
+        for(int i = 0; i < 15; i++)
+            array.set(i, i + 1);
+
+        // overwritten values leave stale entries until the palette is full
+        for(int i = 0; i < 15; i++)
+            array.set(i, 0);
+
+        assertEquals(4, array.getBitsPerEntry());
+        assertEquals(16, array.getPaletteSize());
+        assertTrue(array.contains(1));
+
+        array.set(100, 500);
+
+        assertEquals(1, array.getBitsPerEntry());
+        assertEquals(2, array.getPaletteSize());
+        assertFalse(array.contains(1));
+        assertEquals(500, array.get(100));
+        assertEquals(0, array.get(3));
+    }
+
+    @Test
+    public void fillsWholeArray()
+    {
+        PaletteArray array = new PaletteArray(values(size, 300));
+        array.fill(9);
+
+        assertTrue(array.isUniform());
+        assertEquals(0, array.getBitsPerEntry());
+        assertEquals(9, array.get(size - 1));
+    }
+
+    @Test
+    public void fillsStridedRange()
+    {
+        PaletteArray array = new PaletteArray(size, 0);
+        array.fill(3, 16, 256, 5);
+
+        for(int i = 0; i < size; i++)
+            assertEquals((i & 0xFF) == 3 ? 5 : 0, array.get(i));
+
+        array.fill(9);
+        assertTrue(array.isUniform());
+        assertEquals(9, array.get(100));
+    }
+
+    @Test
+    public void replacesValues()
+    {
+        int[] values = values(size, 300);
+        PaletteArray array = new PaletteArray(values);
+
+        assertTrue(array.replace(values[5], 0xFFFF));
+        assertFalse(array.replace(0xFFFE, 1));
+
+        for(int i = 0; i < size; i++)
+            assertEquals(values[i] == values[5] ? 0xFFFF : values[i], array.get(i));
+
+        PaletteArray small = new PaletteArray(values(size, 4));
+        assertTrue(small.replace(small.get(1), 77));
+        assertEquals(77, small.get(1));
+        assertTrue(small.contains(77));
+    }
+
+    @Test
+    public void copiesIndependently()
+    {
+        PaletteArray source = new PaletteArray(values(size, 17));
+        PaletteArray copy = new PaletteArray(size, 0);
+        copy.copyFrom(source);
+        source.set(0, 1234);
+
+        assertArrayEquals(values(size, 17), toArray(copy));
+        assertEquals(1234, source.get(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsValuesOutOfRange()
+    {
+        new PaletteArray(size, 0).set(0, 0x10000);
+    }
+
+    /** Spreads values over the whole 16 bit range. **/
+    private static int[] values(int length, int count)
+    {
+        int[] values = new int[length];
+
+        for(int i = 0; i < length; i++)
+            values[i] = (int)((i * 7919L % count) * 0xFFFF / Math.max(1, count - 1));
+
+        return values;
+    }
+
+    private static int[] toArray(PaletteArray array)
+    {
+        int[] values = new int[array.size()];
+
+        for(int i = 0; i < values.length; i++)
+            values[i] = array.get(i);
+
+        return values;
+    }
+}